@@ -0,0 +1,40 @@
+import java.time.LocalDateTime;
+
+/**
+ * One performance in a gig's line up, as passed to task2:
+ * the act, the fee it is paid, when it goes on and how long it plays for (in minutes).
+ */
+public class ActPerformanceDetails {
+    private int actID;
+    private int fee;
+    private LocalDateTime onTime;
+    private int duration;
+
+    public ActPerformanceDetails(int actID, int fee, LocalDateTime onTime, int duration){
+        this.actID = actID;
+        this.fee = fee;
+        this.onTime = onTime;
+        this.duration = duration;
+    }
+
+    public int getActID(){
+        return actID;
+    }
+
+    public int getFee(){
+        return fee;
+    }
+
+    public LocalDateTime getOnTime(){
+        return onTime;
+    }
+
+    public int getDuration(){
+        return duration;
+    }
+
+    @Override
+    public String toString(){
+        return "ActPerformanceDetails [actID=" + actID + ", fee=" + fee + ", onTime=" + onTime + ", duration=" + duration + "]";
+    }
+}
@@ -0,0 +1,354 @@
+import java.sql.Array;
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Group-commit mode for task3.
+ * Bookings submitted from any number of threads are collected for up to windowMillis (or until maxBatch
+ * of them are waiting) and written in one transaction with a single multi-row INSERT, so a busy on-sale pays
+ * for one commit per batch instead of one per ticket. Each caller still gets its own result: if any row of
+ * the batch is rejected, the batch is retried row by row behind savepoints so only the bad rows fail.
+ * All the ticket triggers still run for every row either way, and every booking is counted in GigMetrics as a
+ * task3 call of its own, timed from submit() to its result.
+ *
+ * Several flushers can write batches at once. Each batch takes its locks in the same order as a single booking
+ * does, and as every other batch: new customers in email order, then the gigs' gig_sold rows in gigID order,
+ * then the rows are inserted by headline act and customer name, which is the order the Task 7 running totals
+ * (customer_attendance, customer_act_years) are updated in. So batches don't deadlock each other or task3.
+ * The exception is one batch booking a customer onto the same headliner's gigs in two different years while another
+ * batch books them for one of those years: Postgres then stops one of them, and that batch goes row by row as it
+ * does for any rejected row.
+ */
+public class BookingBatcher implements AutoCloseable {
+
+    //One caller's booking waiting to be written
+    private static class Booking {
+        final int gigID;
+        final String name;
+        final String email;
+        final String ticketType;
+        final CompletableFuture<Void> result = new CompletableFuture<>();
+        final GigMetrics.Call call = GigMetrics.begin(3);
+        int headliner;
+
+        Booking(int gigID, String name, String email, String ticketType) {
+            this.gigID = gigID;
+            this.name = name;
+            this.email = email;
+            this.ticketType = ticketType;
+        }
+
+        void booked() {
+            call.committed();
+            call.finish();
+            result.complete(null);
+        }
+
+        void rejected(SQLException e) {
+            call.failed(e);
+            call.rolledBack();
+            call.finish();
+            result.completeExceptionally(e);
+        }
+    }
+
+    //Adds the batch's new customers up front, in email order, before any gig is locked (see customer_id() in
+    //schema.sql). If an email comes twice with different names the first booking's name is used and the other
+    //booking is then refused by customer_id() as usual. Names and emails that don't fit are left for the INSERT to
+    //refuse, so only their own booking fails.
+    private static final String ADD_CUSTOMERS =
+        "INSERT INTO customer(customername, customeremail) " +
+        "SELECT DISTINCT ON (b.email) b.name, b.email " +
+        "FROM unnest(?::VARCHAR[], ?::VARCHAR[]) WITH ORDINALITY AS b(name, email, n) " +
+        "WHERE length(b.name) <= 100 AND length(b.email) <= 100 " +
+        "ORDER BY b.email, b.n " +
+        "ON CONFLICT (customeremail) DO NOTHING RETURNING customerID";
+
+    //Locks the batch's gig_sold rows in gigID order, and finds each gig's headline act to sort the rows by
+    private static final String LOCK_GIGS =
+        "SELECT s.gigID, h.actID FROM gig_sold s LEFT JOIN gig_headliner h ON h.gigID = s.gigID " +
+        "WHERE s.gigID = ANY(?) ORDER BY s.gigID FOR UPDATE OF s";
+
+    //Customers added for bookings that were all refused go again, as they would have with book_ticket
+    private static final String REMOVE_UNUSED_CUSTOMERS =
+        "DELETE FROM customer c WHERE c.customerID = ANY(?) " +
+        "AND NOT EXISTS (SELECT 1 FROM ticket t WHERE t.customerID = c.customerID)";
+
+    //Same checks as book_ticket: the price must exist for the gig and the gig must not be cancelled.
+    //Each customer is found by customer_id() as in book_ticket (ADD_CUSTOMERS has already added the new ones).
+    //Rows are inserted in the order of the arrays, see writeBatch.
+    private static final String BATCH_INSERT =
+        "INSERT INTO ticket(gigID, pricetype, cost, customerID) " +
+        "SELECT b.gigID, b.pricetype, gt.price, customer_id(b.name, b.email) " +
+        "FROM unnest(?::INTEGER[], ?::VARCHAR[], ?::VARCHAR[], ?::VARCHAR[]) WITH ORDINALITY AS b(gigID, pricetype, name, email, n) " +
+        "JOIN gig_ticket gt ON gt.gigID = b.gigID AND gt.pricetype = b.pricetype " +
+        "JOIN gig g ON g.gigID = b.gigID AND g.gigstatus IS DISTINCT FROM 'Cancelled' " +
+        "ORDER BY b.n";
+
+    private final ConnectionPool pool;
+    private final long windowMillis;
+    private final int maxBatch;
+    private final BlockingQueue<Booking> pending = new LinkedBlockingQueue<>();
+    private final List<Thread> flushers = new ArrayList<>();
+    private volatile boolean closed = false;
+
+    /**
+     * @param pool Where the batches get their connections from
+     * @param windowMillis How long to keep collecting after the first booking of a batch arrives
+     * @param maxBatch Write the batch as soon as this many bookings are waiting
+     * @param flusherThreads How many batches can be written at the same time (each needs one pooled connection)
+     */
+    public BookingBatcher(ConnectionPool pool, long windowMillis, int maxBatch, int flusherThreads) {
+        if (maxBatch <= 0 || flusherThreads <= 0) {
+            throw new IllegalArgumentException("maxBatch and flusherThreads must be at least 1");
+        }
+        this.pool = pool;
+        this.windowMillis = windowMillis;
+        this.maxBatch = maxBatch;
+        for (int i = 0; i < flusherThreads; i++) {
+            Thread flusher = new Thread(this::flushLoop, "booking-batcher-" + i);
+            flusher.setDaemon(true);
+            flusher.start();
+            flushers.add(flusher);
+        }
+    }
+
+    public BookingBatcher(ConnectionPool pool) {
+        this(pool, 5, 500, 1);
+    }
+
+    /**
+     * Queues a booking for the next batch.
+     * @return Completes normally once the ticket is committed, or exceptionally with the reason it was rejected
+     */
+    public CompletableFuture<Void> submit(int gigID, String name, String email, String ticketType) {
+        Booking booking = new Booking(gigID, name, email, ticketType);
+        if (closed) {
+            booking.rejected(new SQLException("Booking batcher is closed"));
+            return booking.result;
+        }
+        pending.add(booking);
+        //close() may have drained the queue between the check above and the add, in which case nothing would ever
+        //write this booking. If it is still queued, take it back out. If it isn't, a flusher or close() has it.
+        if (closed && pending.remove(booking)) {
+            booking.rejected(new SQLException("Booking batcher is closed"));
+        }
+        return booking.result;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        for (Thread flusher : flushers) {
+            flusher.interrupt();
+        }
+        for (Thread flusher : flushers) {
+            try {
+                flusher.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        //Anything still queued was never written
+        Booking left;
+        while ((left = pending.poll()) != null) {
+            left.rejected(new SQLException("Booking batcher is closed"));
+        }
+    }
+
+    private void flushLoop() {
+        List<Booking> batch = new ArrayList<>(maxBatch);
+        while (!closed) {
+            try {
+                Booking first = pending.take();
+                batch.add(first);
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(windowMillis);
+                while (batch.size() < maxBatch) {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        //Window is over, but still take anything that is already waiting
+                        pending.drainTo(batch, maxBatch - batch.size());
+                        break;
+                    }
+                    Booking next = pending.poll(remaining, TimeUnit.NANOSECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+            } catch (InterruptedException e) {
+                if (batch.isEmpty()) {
+                    break;
+                }
+            }
+            writeBatch(batch);
+            batch.clear();
+        }
+    }
+
+    private void writeBatch(List<Booking> batch) {
+        try {
+            pool.withConnection(conn -> {
+                writeBatch(conn, batch);
+                return null;
+            });
+        } catch (SQLException e) {
+            //Could not get a connection or the commit failed, so nothing in this batch was written
+            for (Booking booking : batch) {
+                if (!booking.result.isDone()) {
+                    booking.rejected(e);
+                }
+            }
+        }
+    }
+
+    private void writeBatch(Connection conn, List<Booking> batch) throws SQLException {
+        List<Booking> succeeded = new ArrayList<>(batch.size());
+        try {
+            conn.setAutoCommit(false);
+
+            //Taken before the savepoint, so the slow path below still holds them
+            Object[] added = addCustomers(conn, batch);
+            lockGigs(conn, batch);
+            batch.sort(Comparator.<Booking>comparingInt(b -> b.headliner).thenComparing(b -> b.name)
+                .thenComparingInt(b -> b.gigID));
+
+            Savepoint wholeBatch = conn.setSavepoint();
+            boolean allInserted = false;
+            try {
+                allInserted = insertAll(conn, batch) == batch.size();
+            } catch (SQLException e) {
+                //A trigger rejected one of the rows, find out which below
+            }
+
+            if (allInserted) {
+                succeeded.addAll(batch);
+            } else {
+                conn.rollback(wholeBatch);
+                insertOneByOne(conn, batch, succeeded);
+            }
+
+            if (added.length > 0 && succeeded.size() < batch.size()) {
+                try (PreparedStatement remove = conn.prepareStatement(REMOVE_UNUSED_CUSTOMERS)) {
+                    remove.setArray(1, conn.createArrayOf("integer", added));
+                    remove.executeUpdate();
+                }
+            }
+
+            conn.commit();
+        } catch (SQLException e) {
+            try {
+                conn.rollback();
+            } catch (SQLException e2) {
+                System.err.println("SQL Error during rollback: " + e2.getMessage());
+            }
+            throw e;
+        } finally {
+            conn.setAutoCommit(true);
+        }
+        for (Booking booking : succeeded) {
+            booking.booked();
+        }
+    }
+
+    //Returns the customerIDs that were added
+    private Object[] addCustomers(Connection conn, List<Booking> batch) throws SQLException {
+        Object[] names = new Object[batch.size()];
+        Object[] emails = new Object[batch.size()];
+        for (int i = 0; i < batch.size(); i++) {
+            names[i] = batch.get(i).name;
+            emails[i] = batch.get(i).email;
+        }
+        List<Object> added = new ArrayList<>();
+        try (PreparedStatement insert = conn.prepareStatement(ADD_CUSTOMERS)) {
+            insert.setArray(1, conn.createArrayOf("varchar", names));
+            insert.setArray(2, conn.createArrayOf("varchar", emails));
+            try (ResultSet rs = insert.executeQuery()) {
+                while (rs.next()) {
+                    added.add(rs.getInt(1));
+                }
+            }
+        }
+        return added.toArray();
+    }
+
+    //Sets each booking's headliner (0 for a gig without a line up or that doesn't exist)
+    private void lockGigs(Connection conn, List<Booking> batch) throws SQLException {
+        Object[] gigIDs = new Object[batch.size()];
+        for (int i = 0; i < batch.size(); i++) {
+            gigIDs[i] = batch.get(i).gigID;
+        }
+        Map<Integer, Integer> headliners = new HashMap<>();
+        try (PreparedStatement lock = conn.prepareStatement(LOCK_GIGS)) {
+            lock.setArray(1, conn.createArrayOf("integer", gigIDs));
+            try (ResultSet rs = lock.executeQuery()) {
+                while (rs.next()) {
+                    headliners.put(rs.getInt(1), rs.getInt(2));
+                }
+            }
+        }
+        for (Booking booking : batch) {
+            booking.headliner = headliners.getOrDefault(booking.gigID, 0);
+        }
+    }
+
+    private int insertAll(Connection conn, List<Booking> batch) throws SQLException {
+        Object[] gigIDs = new Object[batch.size()];
+        Object[] types = new Object[batch.size()];
+        Object[] names = new Object[batch.size()];
+        Object[] emails = new Object[batch.size()];
+        for (int i = 0; i < batch.size(); i++) {
+            Booking booking = batch.get(i);
+            gigIDs[i] = booking.gigID;
+            types[i] = booking.ticketType;
+            names[i] = booking.name;
+            emails[i] = booking.email;
+        }
+        try (PreparedStatement insert = conn.prepareStatement(BATCH_INSERT)) {
+            Array gigArray = conn.createArrayOf("integer", gigIDs);
+            Array typeArray = conn.createArrayOf("varchar", types);
+            Array nameArray = conn.createArrayOf("varchar", names);
+            Array emailArray = conn.createArrayOf("varchar", emails);
+            insert.setArray(1, gigArray);
+            insert.setArray(2, typeArray);
+            insert.setArray(3, nameArray);
+            insert.setArray(4, emailArray);
+            return insert.executeUpdate();
+        }
+    }
+
+    //Slow path: each booking goes through book_ticket behind its own savepoint so a rejected row only fails its own caller
+    private void insertOneByOne(Connection conn, List<Booking> batch, List<Booking> succeeded) throws SQLException {
+        try (CallableStatement bookTicketStmt = conn.prepareCall("CALL book_ticket(?, ?, ?, ?)")) {
+            for (Booking booking : batch) {
+                Savepoint row = conn.setSavepoint();
+                try {
+                    bookTicketStmt.setInt(1, booking.gigID);
+                    bookTicketStmt.setString(2, booking.name);
+                    bookTicketStmt.setString(3, booking.email);
+                    bookTicketStmt.setString(4, booking.ticketType);
+                    bookTicketStmt.execute();
+                    conn.releaseSavepoint(row);
+                    succeeded.add(booking);
+                } catch (SQLException e) {
+                    conn.rollback(row);
+                    booking.rejected(e);
+                }
+            }
+        }
+    }
+}
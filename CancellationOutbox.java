@@ -0,0 +1,401 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Emails the ticket holders of cancelled gigs from the cancellation_outbox table (filled by GigSystem.cancelAct,
+ * see schema.sql), on its own background thread.
+ *
+ * A due row is claimed for LEASE_SECONDS with FOR UPDATE SKIP LOCKED, so several nodes can run one of these
+ * without sending the same gig twice, and a node that dies mid-gig leaves it to the others once the lease runs out.
+ * The gig's ticket holders are then read in customerID order a batch at a time (keyset paging on ticket_gig, each
+ * customer once however many tickets they hold) and their emails handed to the Sender. After every batch
+ * last_customer and sent are saved and the lease extended, so a restart carries on after the last batch that went
+ * out: a batch can be sent twice if the node dies between sending it and saving that, but never skipped.
+ *
+ * A batch the Sender throws on is retried after 1s, 2s, 4s ... (at most MAX_BACKOFF_SECONDS) and the gig is given
+ * up on as Failed after maxAttempts failures in a row, with the error in last_error.
+ *
+ * It checks for due rows every pollMillis, and straight away when a gig changes if it is registered with a
+ * GigChangeFeed (cancelling a gig updates it).
+ */
+public class CancellationOutbox implements GigChangeFeed.Listener, AutoCloseable {
+
+    /**
+     * Delivers one batch of cancellation notices. Throwing means none of the batch counts as sent, and it will be
+     * tried again.
+     */
+    public interface Sender {
+        void send(int gigID, String gigTitle, LocalDateTime gigStart, List<String> emails) throws IOException;
+    }
+
+    public static final int DEFAULT_BATCH_SIZE = 500;
+    public static final int DEFAULT_MAX_ATTEMPTS = 8;
+    static final int LEASE_SECONDS = 60;
+    static final int MAX_BACKOFF_SECONDS = 300;
+
+    private static final String CLAIM =
+        "UPDATE cancellation_outbox o SET next_attempt = now() + ? * interval '1 second' FROM gig g " +
+        "WHERE o.outboxID = (SELECT outboxID FROM cancellation_outbox WHERE status = 'Pending' AND next_attempt <= now() " +
+        "                    ORDER BY next_attempt LIMIT 1 FOR UPDATE SKIP LOCKED) " +
+        "AND g.gigID = o.gigID " +
+        "RETURNING o.outboxID, o.gigID, o.last_customer, o.attempts, g.gigtitle, g.gigdatetime";
+
+    private static final String NEXT_BATCH =
+        "SELECT c.customerID, c.customeremail FROM customer c " +
+        "JOIN (SELECT DISTINCT customerID FROM ticket WHERE gigID = ? AND customerID > ? ORDER BY customerID LIMIT ?) t " +
+        "ON t.customerID = c.customerID ORDER BY c.customerID";
+
+    private static final String SENT =
+        "UPDATE cancellation_outbox SET last_customer = ?, sent = sent + ?, attempts = 0, last_error = NULL, " +
+        "next_attempt = now() + ? * interval '1 second', status = CASE WHEN ? THEN 'Sent' ELSE 'Pending' END " +
+        "WHERE outboxID = ?";
+
+    private static final String FAILED =
+        "UPDATE cancellation_outbox SET attempts = attempts + 1, last_error = ?, " +
+        "next_attempt = now() + ? * interval '1 second', status = CASE WHEN attempts + 1 >= ? THEN 'Failed' ELSE 'Pending' END " +
+        "WHERE outboxID = ?";
+
+    private final ConnectionPool pool;
+    private final Sender sender;
+    private final int batchSize;
+    private final int maxAttempts;
+    private final ScheduledExecutorService executor;
+    //Set while a dispatch is waiting to run, so a burst of wake ups only runs it once
+    private final AtomicBoolean queued = new AtomicBoolean();
+
+    private final AtomicLong emailsSent = new AtomicLong();
+    private final AtomicLong batchesSent = new AtomicLong();
+    private final AtomicLong batchesFailed = new AtomicLong();
+    private final AtomicLong gigsSent = new AtomicLong();
+    private final AtomicLong gigsFailed = new AtomicLong();
+
+    public CancellationOutbox(ConnectionPool pool, Sender sender, int batchSize, int maxAttempts) {
+        this.pool = pool;
+        this.sender = sender;
+        this.batchSize = batchSize;
+        this.maxAttempts = maxAttempts;
+        this.executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "cancellation-outbox");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public CancellationOutbox(ConnectionPool pool, Sender sender) {
+        this(pool, sender, DEFAULT_BATCH_SIZE, DEFAULT_MAX_ATTEMPTS);
+    }
+
+    /**
+     * Starts checking for due rows every pollMillis.
+     */
+    public CancellationOutbox start(long pollMillis) {
+        executor.scheduleWithFixedDelay(this::dispatchQuietly, 0, pollMillis, TimeUnit.MILLISECONDS);
+        return this;
+    }
+
+    /**
+     * Checks for due rows now rather than at the next poll.
+     */
+    public void wake() {
+        if (queued.compareAndSet(false, true)) {
+            executor.execute(this::dispatchQuietly);
+        }
+    }
+
+    @Override
+    public void gigChanged(String table, int gigID) {
+        if (table.equals("gig")) {
+            wake();
+        }
+    }
+
+    @Override
+    public void resync() {
+        wake();
+    }
+
+    @Override
+    public void close() {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void dispatchQuietly() {
+        queued.set(false);
+        try {
+            dispatch();
+        } catch (SQLException e) {
+            System.err.println("SQL Error in the cancellation outbox: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Works through every gig that is due, on the calling thread.
+     * @return The number of emails sent
+     */
+    public int dispatch() throws SQLException {
+        int sent = 0;
+        while (true) {
+            Claim claim = claim();
+            if (claim == null) {
+                return sent;
+            }
+            sent += send(claim);
+        }
+    }
+
+    private Claim claim() throws SQLException {
+        return pool.withConnection(conn -> {
+            try (PreparedStatement stmt = conn.prepareStatement(CLAIM)) {
+                stmt.setInt(1, LEASE_SECONDS);
+                try (ResultSet rs = stmt.executeQuery()) {
+                    if (!rs.next()) {
+                        return null;
+                    }
+                    return new Claim(rs.getInt(1), rs.getInt(2), rs.getInt(3), rs.getInt(4), rs.getString(5),
+                        rs.getTimestamp(6).toLocalDateTime());
+                }
+            }
+        });
+    }
+
+    //Sends the claimed gig's batches until it is done or a batch fails
+    private int send(Claim claim) throws SQLException {
+        //customerIDs start at 1, and a NULL last_customer reads as 0
+        int after = claim.lastCustomer;
+        int sent = 0;
+        while (true) {
+            List<String> batch = new ArrayList<>(batchSize);
+            int lastRead = nextBatch(claim.gigID, after, batch);
+            boolean last = batch.size() < batchSize;
+            if (!batch.isEmpty()) {
+                try {
+                    sender.send(claim.gigID, claim.title, claim.start, batch);
+                } catch (IOException | RuntimeException e) {
+                    batchesFailed.incrementAndGet();
+                    failed(claim, e);
+                    return sent;
+                }
+                batchesSent.incrementAndGet();
+                emailsSent.addAndGet(batch.size());
+                sent += batch.size();
+                after = lastRead;
+            }
+            saveProgress(claim.outboxID, after, batch.size(), last);
+            if (last) {
+                gigsSent.incrementAndGet();
+                return sent;
+            }
+        }
+    }
+
+    //Adds the next batch's emails and returns the customerID of the last one (after, if there are none left)
+    private int nextBatch(int gigID, int after, List<String> emails) throws SQLException {
+        return pool.withConnection(conn -> {
+            int lastRead = after;
+            try (PreparedStatement stmt = conn.prepareStatement(NEXT_BATCH)) {
+                stmt.setInt(1, gigID);
+                stmt.setInt(2, after);
+                stmt.setInt(3, batchSize);
+                try (ResultSet rs = stmt.executeQuery()) {
+                    while (rs.next()) {
+                        lastRead = rs.getInt(1);
+                        emails.add(rs.getString(2));
+                    }
+                }
+            }
+            return lastRead;
+        });
+    }
+
+    private void saveProgress(int outboxID, int lastCustomer, int count, boolean done) throws SQLException {
+        pool.withConnection(conn -> {
+            try (PreparedStatement stmt = conn.prepareStatement(SENT)) {
+                stmt.setInt(1, lastCustomer);
+                stmt.setInt(2, count);
+                stmt.setInt(3, LEASE_SECONDS);
+                stmt.setBoolean(4, done);
+                stmt.setInt(5, outboxID);
+                return stmt.executeUpdate();
+            }
+        });
+    }
+
+    private void failed(Claim claim, Exception e) throws SQLException {
+        //attempts counts the failures since the last batch that went through
+        int failures = claim.attempts + 1;
+        if (failures >= maxAttempts) {
+            gigsFailed.incrementAndGet();
+            System.err.println("Giving up on the cancellation emails for gig " + claim.gigID + ": " + e.getMessage());
+        }
+        long backoff = Math.min(MAX_BACKOFF_SECONDS, 1L << Math.min(failures - 1, 20));
+        pool.withConnection(conn -> {
+            try (PreparedStatement stmt = conn.prepareStatement(FAILED)) {
+                stmt.setString(1, String.valueOf(e.getMessage()));
+                stmt.setLong(2, backoff);
+                stmt.setInt(3, maxAttempts);
+                stmt.setInt(4, claim.outboxID);
+                return stmt.executeUpdate();
+            }
+        });
+    }
+
+    public long getEmailsSent() {
+        return emailsSent.get();
+    }
+
+    public long getBatchesSent() {
+        return batchesSent.get();
+    }
+
+    public long getBatchesFailed() {
+        return batchesFailed.get();
+    }
+
+    public long getGigsSent() {
+        return gigsSent.get();
+    }
+
+    public long getGigsFailed() {
+        return gigsFailed.get();
+    }
+
+    private static final class Claim {
+        final int outboxID;
+        final int gigID;
+        final int lastCustomer;
+        final int attempts;
+        final String title;
+        final LocalDateTime start;
+
+        Claim(int outboxID, int gigID, int lastCustomer, int attempts, String title, LocalDateTime start) {
+            this.outboxID = outboxID;
+            this.gigID = gigID;
+            this.lastCustomer = lastCustomer;
+            this.attempts = attempts;
+            this.title = title;
+            this.start = start;
+        }
+    }
+
+    /**
+     * Sends each batch as one message over SMTP, with the ticket holders as Bcc recipients.
+     * A recipient the server refuses outright (5xx) is skipped, anything else it refuses fails the batch.
+     * The emails and gig titles come from whoever booked or organised the gig, so an address that could break out of
+     * RCPT TO (a line break or angle bracket) is skipped the same way, line breaks are taken out of the title and
+     * the message is dot-stuffed, so nothing in them is ever read by the server as a command or a header.
+     */
+    public static class SmtpSender implements Sender {
+        private final String host;
+        private final int port;
+        private final String from;
+
+        public SmtpSender(String host, int port, String from) {
+            this.host = host;
+            this.port = port;
+            this.from = from;
+        }
+
+        @Override
+        public void send(int gigID, String gigTitle, LocalDateTime gigStart, List<String> emails) throws IOException {
+            try (Socket socket = new Socket()) {
+                socket.connect(new InetSocketAddress(host, port), 5000);
+                socket.setSoTimeout(30000);
+                BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+                Writer out = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8);
+                expect(in, 2);
+                command(in, out, "HELO gigsystem", 2);
+                command(in, out, "MAIL FROM:<" + from + ">", 2);
+                int accepted = 0;
+                for (String email : emails) {
+                    if (!safeAddress(email)) {
+                        continue;
+                    }
+                    out.write("RCPT TO:<" + email + ">\r\n");
+                    out.flush();
+                    int code = reply(in);
+                    if (code / 100 == 2) {
+                        accepted++;
+                    } else if (code / 100 != 5) {
+                        throw new IOException("SMTP server refused " + email + " with " + code);
+                    }
+                }
+                if (accepted > 0) {
+                    command(in, out, "DATA", 3);
+                    String title = oneLine(gigTitle);
+                    out.write(dotStuff("From: " + from + "\r\nTo: undisclosed-recipients:;\r\nSubject: Cancelled: " + title
+                        + "\r\n\r\nSorry, " + title + " on " + gigStart + " has been cancelled. Your ticket has been refunded.\r\n")
+                        + ".\r\n");
+                    out.flush();
+                    expect(in, 2);
+                }
+                command(in, out, "QUIT", 2);
+            }
+        }
+
+        private static boolean safeAddress(String email) {
+            for (int i = 0; i < email.length(); i++) {
+                char c = email.charAt(i);
+                if (c == '\r' || c == '\n' || c == '<' || c == '>') {
+                    return false;
+                }
+            }
+            return !email.isEmpty();
+        }
+
+        private static String oneLine(String text) {
+            return text.replace('\r', ' ').replace('\n', ' ');
+        }
+
+        //A line starting with '.' gets another one in front, so only the final ".\r\n" ends DATA (RFC 5321 4.5.2)
+        private static String dotStuff(String message) {
+            return (message.startsWith(".") ? "." : "") + message.replace("\r\n.", "\r\n..");
+        }
+
+        private static void command(BufferedReader in, Writer out, String line, int expected) throws IOException {
+            out.write(line + "\r\n");
+            out.flush();
+            expect(in, expected);
+        }
+
+        private static void expect(BufferedReader in, int expected) throws IOException {
+            int code = reply(in);
+            if (code / 100 != expected) {
+                throw new IOException("SMTP server answered " + code);
+            }
+        }
+
+        //Reads a (possibly multi-line) reply and returns its code
+        private static int reply(BufferedReader in) throws IOException {
+            String line;
+            do {
+                line = in.readLine();
+                if (line == null || line.length() < 3) {
+                    throw new IOException("SMTP server closed the connection");
+                }
+            } while (line.length() > 3 && line.charAt(3) == '-');
+            return Integer.parseInt(line.substring(0, 3));
+        }
+    }
+}
@@ -0,0 +1,211 @@
+import java.sql.Connection;
+import java.sql.SQLException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * A fixed-size pool of JDBC connections so the task methods can be called from many threads at once.
+ * Every borrowed connection is used by exactly one caller until it is released, so the
+ * setAutoCommit/commit/rollback calls in the task methods never interleave between threads.
+ */
+public class ConnectionPool implements AutoCloseable {
+
+    //Callback run with a pooled connection, see withConnection()
+    public interface ConnectionWork<T> {
+        T apply(Connection conn) throws SQLException;
+    }
+
+    private final Supplier<Connection> factory;
+    private final BlockingQueue<Connection> idle;
+    private final List<Connection> all = new ArrayList<>();
+    private final AtomicInteger created = new AtomicInteger();
+    private final int maxSize;
+    private final int validationTimeoutSeconds;
+    private final long borrowTimeoutMillis;
+    private volatile boolean closed = false;
+
+    /**
+     * @param factory Opens a new connection, e.g. GigSystem::getPortConnection
+     * @param maxSize The most connections this pool will ever open
+     * @param validationTimeoutSeconds Timeout passed to Connection.isValid() when a connection is borrowed (0 skips validation)
+     * @param borrowTimeoutMillis How long borrow() waits for a free connection before giving up
+     */
+    public ConnectionPool(Supplier<Connection> factory, int maxSize, int validationTimeoutSeconds, long borrowTimeoutMillis) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("Pool size must be at least 1");
+        }
+        this.factory = factory;
+        this.maxSize = maxSize;
+        this.validationTimeoutSeconds = validationTimeoutSeconds;
+        this.borrowTimeoutMillis = borrowTimeoutMillis;
+        this.idle = new ArrayBlockingQueue<>(maxSize);
+    }
+
+    public ConnectionPool(Supplier<Connection> factory, int maxSize) {
+        this(factory, maxSize, 2, 30000);
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public int getOpenConnections() {
+        return created.get();
+    }
+
+    public int getIdleConnections() {
+        return idle.size();
+    }
+
+    /**
+     * Takes a connection out of the pool, opening a new one if the pool has not reached its size yet.
+     * The caller must hand it back with release().
+     * @return A validated connection in auto-commit mode
+     */
+    public Connection borrow() throws SQLException {
+        long started = System.nanoTime();
+        GigMetrics.PoolWaitEvent event = new GigMetrics.PoolWaitEvent();
+        event.begin();
+        long deadline = started + TimeUnit.MILLISECONDS.toNanos(borrowTimeoutMillis);
+        while (true) {
+            if (closed) {
+                throw new SQLException("Connection pool is closed");
+            }
+            Connection conn = idle.poll();
+            if (conn == null) {
+                conn = tryOpen();
+            }
+            if (conn == null) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    throw new SQLException("Timed out waiting for a pooled connection");
+                }
+                try {
+                    conn = idle.poll(remaining, TimeUnit.NANOSECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new SQLException("Interrupted waiting for a pooled connection", e);
+                }
+                if (conn == null) {
+                    continue;
+                }
+            }
+            if (isUsable(conn)) {
+                GigMetrics.waitedForConnection(event, started);
+                return conn;
+            }
+            discard(conn);
+        }
+    }
+
+    /**
+     * Returns a connection to the pool. Any open transaction is rolled back so the next borrower starts clean.
+     */
+    public void release(Connection conn) {
+        if (conn == null) {
+            return;
+        }
+        try {
+            if (!conn.getAutoCommit()) {
+                conn.rollback();
+                conn.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            discard(conn);
+            return;
+        }
+        if (closed || !idle.offer(conn)) {
+            discard(conn);
+        }
+    }
+
+    /**
+     * Borrows a connection, runs the work with it and always releases it again.
+     */
+    public <T> T withConnection(ConnectionWork<T> work) throws SQLException {
+        Connection conn = borrow();
+        try {
+            return work.apply(conn);
+        } finally {
+            release(conn);
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        List<Connection> toClose;
+        synchronized (all) {
+            toClose = new ArrayList<>(all);
+            all.clear();
+        }
+        idle.clear();
+        for (Connection conn : toClose) {
+            try {
+                conn.close();
+            } catch (SQLException e) {
+                System.err.println("Error closing pooled connection: " + e.getMessage());
+            }
+        }
+    }
+
+    //Opens a new connection if we are still under the size limit, otherwise returns null
+    private Connection tryOpen() throws SQLException {
+        while (true) {
+            int current = created.get();
+            if (current >= maxSize) {
+                return null;
+            }
+            if (created.compareAndSet(current, current + 1)) {
+                break;
+            }
+        }
+        Connection conn;
+        try {
+            conn = factory.get();
+        } catch (RuntimeException e) {
+            created.decrementAndGet();
+            throw new SQLException("Could not open a pooled connection", e);
+        }
+        if (conn == null) {
+            created.decrementAndGet();
+            throw new SQLException("Could not open a pooled connection");
+        }
+        synchronized (all) {
+            all.add(conn);
+        }
+        return conn;
+    }
+
+    private boolean isUsable(Connection conn) {
+        try {
+            if (conn.isClosed()) {
+                return false;
+            }
+            return validationTimeoutSeconds <= 0 || conn.isValid(validationTimeoutSeconds);
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    private void discard(Connection conn) {
+        boolean owned;
+        synchronized (all) {
+            owned = all.remove(conn);
+        }
+        if (owned) {
+            created.decrementAndGet();
+        }
+        try {
+            conn.close();
+        } catch (SQLException e) {
+            //The connection is being thrown away anyway
+        }
+    }
+}
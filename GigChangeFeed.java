@@ -0,0 +1,177 @@
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+
+/**
+ * Listens on the gig_changes channel (see notify_gig_change() in schema.sql) on its own connection and
+ * passes every change on to the registered listeners, whichever node made it.
+ * If the connection drops, notifications may have been missed, so listeners are told to resync
+ * once the feed is listening again. They are also told to when the database says so ('resync' on the channel).
+ */
+public class GigChangeFeed implements AutoCloseable {
+
+    public static final String CHANNEL = "gig_changes";
+
+    public interface Listener {
+        //table is the table that changed (gig, act_gig, gig_ticket or gig_sold)
+        void gigChanged(String table, int gigID);
+
+        //Changes may have been missed, reload everything
+        void resync();
+    }
+
+    private final Supplier<Connection> factory;
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    private final Thread worker;
+    private final CountDownLatch listening = new CountDownLatch(1);
+    private volatile boolean closed = false;
+    private volatile Connection conn;
+
+    /**
+     * @param factory Opens the connection used for LISTEN, e.g. GigSystem::getPortConnection. It is not taken from a pool
+     * because it stays open for as long as the feed runs.
+     */
+    public GigChangeFeed(Supplier<Connection> factory) {
+        this.factory = factory;
+        this.worker = new Thread(this::run, "gig-change-feed");
+        this.worker.setDaemon(true);
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    public GigChangeFeed start() {
+        worker.start();
+        return this;
+    }
+
+    /**
+     * Waits for the feed to be listening, so a listener loaded after this doesn't miss changes committed while it
+     * loads. Listeners are only told to resync after a reconnect, not on the first connect.
+     * @return Whether it is listening, false if it couldn't connect in time (it resyncs everyone once it does)
+     */
+    public boolean awaitListening(long timeoutMillis) throws InterruptedException {
+        return listening.await(timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        worker.interrupt();
+        closeConnection();
+        try {
+            worker.join(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void run() {
+        boolean firstConnect = true;
+        while (!closed) {
+            try {
+                conn = factory.get();
+                if (conn == null) {
+                    throw new SQLException("Could not open a connection for " + CHANNEL);
+                }
+                try (Statement listen = conn.createStatement()) {
+                    listen.execute("LISTEN " + CHANNEL);
+                }
+                listening.countDown();
+                //Anything could have changed while we were not listening
+                if (!firstConnect) {
+                    resyncAll();
+                }
+                firstConnect = false;
+
+                PGConnection pgConn = conn.unwrap(PGConnection.class);
+                while (!closed) {
+                    PGNotification[] notifications = pgConn.getNotifications(500);
+                    if (notifications == null) {
+                        continue;
+                    }
+                    for (PGNotification notification : notifications) {
+                        dispatch(notification.getParameter());
+                    }
+                }
+            } catch (SQLException e) {
+                if (!closed) {
+                    System.err.println("Gig change feed lost its connection: " + e.getMessage());
+                    firstConnect = false;
+                }
+            } finally {
+                closeConnection();
+            }
+            if (!closed) {
+                try {
+                    Thread.sleep(1000);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+
+    //A listener that throws is reported and skipped, it mustn't stop the feed thread
+    private void resyncAll() {
+        for (Listener listener : listeners) {
+            try {
+                listener.resync();
+            } catch (RuntimeException e) {
+                System.err.println("Gig change listener failed: " + e.getMessage());
+            }
+        }
+    }
+
+    private void dispatch(String payload) {
+        //Sent instead of a message per row when a whole season is archived or restored
+        if (payload.equals("resync")) {
+            resyncAll();
+            return;
+        }
+        int split = payload.indexOf(':');
+        if (split < 0) {
+            return;
+        }
+        int gigID;
+        try {
+            gigID = Integer.parseInt(payload.substring(split + 1));
+        } catch (NumberFormatException e) {
+            return;
+        }
+        String table = payload.substring(0, split);
+        for (Listener listener : listeners) {
+            try {
+                listener.gigChanged(table, gigID);
+            } catch (RuntimeException e) {
+                System.err.println("Gig change listener failed: " + e.getMessage());
+            }
+        }
+    }
+
+    private void closeConnection() {
+        Connection current = conn;
+        conn = null;
+        if (current != null) {
+            try {
+                current.close();
+            } catch (SQLException e) {
+                //Already broken
+            }
+        }
+    }
+}
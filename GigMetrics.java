@@ -0,0 +1,484 @@
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.ObjectName;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * Counters and latency histograms for the GigSystem tasks, collected as they run.
+ *
+ * Per task: latency, calls, commits, rollbacks, errors and rows returned. Also rule violations by rule number
+ * (taken from the "RULE n VIOLATED" messages the triggers raise, or the rule_n_... constraint names in range mode),
+ * time spent turning result sets into strings, and time spent waiting for a pooled connection.
+ * Task 3 means bookTicket (and so task3 and the pooled task3), and each booking written by a BookingBatcher.
+ *
+ * Everything is readable over JMX as GigSystem:type=GigMetrics (e.g. in JConsole or with jcmd), and every call is
+ * also a JFR event (gigsystem.Task, gigsystem.PoolWait) when a flight recording is running:
+ *
+ *   java -XX:StartFlightRecording=filename=gigs.jfr,settings=profile ...
+ *
+ * Recording is a few striped counter increments per call, with no locks and no allocation apart from the JFR event
+ * (which the JIT usually removes when no recording is on), so it stays on under full load.
+ * bench/MetricsOverheadBenchmark measures it.
+ */
+public final class GigMetrics implements GigMetricsMXBean {
+
+    public static final int TASKS = 8;
+    public static final int RULES = 12;
+
+    private static final GigMetrics INSTANCE = new GigMetrics();
+
+    static {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(INSTANCE, new ObjectName("GigSystem:type=GigMetrics"));
+        } catch (Exception e) {
+            //Already registered (e.g. loaded twice by different class loaders) or no JMX, the counters still work
+            System.err.println("GigMetrics not registered with JMX: " + e.getMessage());
+        }
+    }
+
+    //Index 0 is unused so that task n is at index n
+    private final Histogram[] latency = new Histogram[TASKS + 1];
+    private final LongAdder[] calls = adders(TASKS + 1);
+    private final LongAdder[] commits = adders(TASKS + 1);
+    private final LongAdder[] rollbacks = adders(TASKS + 1);
+    private final LongAdder[] errors = adders(TASKS + 1);
+    private final LongAdder[] rows = adders(TASKS + 1);
+    //Index 0 counts errors that aren't a rule violation
+    private final LongAdder[] violations = adders(RULES + 1);
+    private final Histogram conversion = new Histogram();
+    private final LongAdder convertedRows = new LongAdder();
+    private final Histogram poolWait = new Histogram();
+
+    private GigMetrics() {
+        for (int t = 0; t <= TASKS; t++) {
+            latency[t] = new Histogram();
+        }
+    }
+
+    public static GigMetrics get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Starts timing one call of a task. The caller reports what happened on the returned Call and then calls finish().
+     */
+    public static Call begin(int task) {
+        Call call = new Call();
+        call.task = task;
+        call.started = System.nanoTime();
+        call.begin();
+        return call;
+    }
+
+    /**
+     * Records the time convertResultToStrings took, from a System.nanoTime() taken before it started.
+     */
+    static void converted(long startedNanos, int rowCount) {
+        INSTANCE.conversion.record(System.nanoTime() - startedNanos);
+        INSTANCE.convertedRows.add(rowCount);
+    }
+
+    /**
+     * Records how long a borrower waited in ConnectionPool.borrow().
+     */
+    static void waitedForConnection(PoolWaitEvent event, long startedNanos) {
+        long waited = System.nanoTime() - startedNanos;
+        INSTANCE.poolWait.record(waited);
+        event.end();
+        if (event.shouldCommit()) {
+            event.commit();
+        }
+    }
+
+    /**
+     * Which rule an error says was broken, or 0 if it isn't a rule violation.
+     * Understands the trigger messages ("RULE 9 VIOLATED - ...") and the exclusion constraint names of
+     * schema_ranges.sql ("... violates exclusion constraint "rule_5_travel_time""), and Rule 12's check constraint.
+     */
+    public static int ruleNumber(String message) {
+        if (message == null) {
+            return 0;
+        }
+        int rule = numberAfter(message, "RULE ");
+        if (rule == 0) {
+            rule = numberAfter(message, "rule_");
+        }
+        return rule == 0 && message.contains("check_gig_start_time") ? 12 : rule;
+    }
+
+    private static int numberAfter(String message, String prefix) {
+        int at = message.indexOf(prefix);
+        while (at >= 0) {
+            int i = at + prefix.length();
+            int n = 0;
+            while (i < message.length() && Character.isDigit(message.charAt(i)) && n <= RULES) {
+                n = n * 10 + (message.charAt(i) - '0');
+                i++;
+            }
+            if (n >= 1 && n <= RULES) {
+                return n;
+            }
+            at = message.indexOf(prefix, at + 1);
+        }
+        return 0;
+    }
+
+    /**
+     * One call of a task, and the JFR event for it.
+     */
+    @Name("gigsystem.Task")
+    @Label("GigSystem task")
+    @Category("GigSystem")
+    @Description("One call of a GigSystem task method")
+    public static final class Call extends Event {
+        @Label("Task")
+        int task;
+
+        @Label("Rows")
+        int rows;
+
+        @Label("Commits")
+        int commits;
+
+        @Label("Rollbacks")
+        int rollbacks;
+
+        @Label("Rule violated")
+        int rule;
+
+        @Label("Error")
+        String error;
+
+        @Label("Latency")
+        @Timespan(Timespan.NANOSECONDS)
+        long latency;
+
+        private transient long started;
+
+        private Call() {
+        }
+
+        public void rows(int count) {
+            rows += count;
+        }
+
+        public void committed() {
+            commits++;
+        }
+
+        public void rolledBack() {
+            rollbacks++;
+        }
+
+        //Every failure counts towards the rule violation numbers straight away, even if the call then recovers
+        public void failed(Exception e) {
+            String message = String.valueOf(e.getMessage());
+            error = message;
+            rule = ruleNumber(message);
+            INSTANCE.violations[rule].increment();
+        }
+
+        //The call got round an earlier failure (task4 falling back to cancelling the whole gig), so it isn't an error
+        public void recovered() {
+            error = null;
+        }
+
+        public void finish() {
+            end();
+            latency = System.nanoTime() - started;
+            GigMetrics m = INSTANCE;
+            m.latency[task].record(latency);
+            m.calls[task].increment();
+            if (commits > 0) {
+                m.commits[task].add(commits);
+            }
+            if (rollbacks > 0) {
+                m.rollbacks[task].add(rollbacks);
+            }
+            if (rows > 0) {
+                m.rows[task].add(rows);
+            }
+            if (error != null) {
+                m.errors[task].increment();
+            }
+            if (shouldCommit()) {
+                commit();
+            }
+        }
+    }
+
+    @Name("gigsystem.PoolWait")
+    @Label("Pooled connection wait")
+    @Category("GigSystem")
+    @Description("Time spent in ConnectionPool.borrow()")
+    public static final class PoolWaitEvent extends Event {
+    }
+
+    // ----- JMX, see GigMetricsMXBean -----
+
+    @Override
+    public Map<String, Long> getCalls() {
+        return perTask(calls);
+    }
+
+    @Override
+    public Map<String, Long> getCommits() {
+        return perTask(commits);
+    }
+
+    @Override
+    public Map<String, Long> getRollbacks() {
+        return perTask(rollbacks);
+    }
+
+    @Override
+    public Map<String, Long> getErrors() {
+        return perTask(errors);
+    }
+
+    @Override
+    public Map<String, Long> getRowsReturned() {
+        return perTask(rows);
+    }
+
+    @Override
+    public Map<String, Double> getLatencyMeanMillis() {
+        Map<String, Double> out = new LinkedHashMap<>();
+        for (int t = 1; t <= TASKS; t++) {
+            out.put("task" + t, millis(latency[t].mean()));
+        }
+        return out;
+    }
+
+    @Override
+    public Map<String, Double> getLatencyP50Millis() {
+        return percentile(50);
+    }
+
+    @Override
+    public Map<String, Double> getLatencyP99Millis() {
+        return percentile(99);
+    }
+
+    @Override
+    public Map<String, Double> getLatencyP999Millis() {
+        return percentile(99.9);
+    }
+
+    @Override
+    public Map<String, Double> getLatencyMaxMillis() {
+        Map<String, Double> out = new LinkedHashMap<>();
+        for (int t = 1; t <= TASKS; t++) {
+            out.put("task" + t, millis(latency[t].max()));
+        }
+        return out;
+    }
+
+    @Override
+    public Map<String, Long> getRuleViolations() {
+        Map<String, Long> out = new LinkedHashMap<>();
+        for (int r = 1; r <= RULES; r++) {
+            out.put("rule" + r, violations[r].sum());
+        }
+        out.put("other", violations[0].sum());
+        return out;
+    }
+
+    @Override
+    public long getConversions() {
+        return conversion.count();
+    }
+
+    @Override
+    public long getConvertedRows() {
+        return convertedRows.sum();
+    }
+
+    @Override
+    public double getConversionMeanMillis() {
+        return millis(conversion.mean());
+    }
+
+    @Override
+    public double getConversionP99Millis() {
+        return millis(conversion.percentile(99));
+    }
+
+    @Override
+    public long getPoolBorrows() {
+        return poolWait.count();
+    }
+
+    @Override
+    public double getPoolWaitMeanMillis() {
+        return millis(poolWait.mean());
+    }
+
+    @Override
+    public double getPoolWaitP99Millis() {
+        return millis(poolWait.percentile(99));
+    }
+
+    @Override
+    public double getPoolWaitMaxMillis() {
+        return millis(poolWait.max());
+    }
+
+    /**
+     * Starts all the counters again from zero. Calls in progress while this runs may be half counted.
+     */
+    @Override
+    public void reset() {
+        for (int t = 0; t <= TASKS; t++) {
+            latency[t].reset();
+            calls[t].reset();
+            commits[t].reset();
+            rollbacks[t].reset();
+            errors[t].reset();
+            rows[t].reset();
+        }
+        for (LongAdder adder : violations) {
+            adder.reset();
+        }
+        conversion.reset();
+        convertedRows.reset();
+        poolWait.reset();
+    }
+
+    /**
+     * Latency at the given percentile for a task, in nanoseconds (within 12.5%).
+     */
+    public long latencyPercentile(int task, double percentile) {
+        return latency[task].percentile(percentile);
+    }
+
+    private Map<String, Double> percentile(double percentile) {
+        Map<String, Double> out = new LinkedHashMap<>();
+        for (int t = 1; t <= TASKS; t++) {
+            out.put("task" + t, millis(latency[t].percentile(percentile)));
+        }
+        return out;
+    }
+
+    private static Map<String, Long> perTask(LongAdder[] adders) {
+        Map<String, Long> out = new LinkedHashMap<>();
+        for (int t = 1; t <= TASKS; t++) {
+            out.put("task" + t, adders[t].sum());
+        }
+        return out;
+    }
+
+    private static double millis(double nanos) {
+        return nanos / 1e6;
+    }
+
+    private static LongAdder[] adders(int n) {
+        LongAdder[] out = new LongAdder[n];
+        for (int i = 0; i < n; i++) {
+            out[i] = new LongAdder();
+        }
+        return out;
+    }
+
+    /*
+     * Log-linear histogram of nanosecond values: each power of two is split into 8 buckets, so any value is
+     * reported within 12.5%, and the whole range of a long fits in 488 buckets. Recording is one increment of a
+     * LongAdder (which spreads contended increments over several cells) and reads are only approximately
+     * consistent with concurrent writes, which is fine for monitoring.
+     */
+    static final class Histogram {
+        private static final int SUB_BITS = 3;
+        private static final int SUB_BUCKETS = 1 << SUB_BITS;
+        private static final int BUCKETS = index(Long.MAX_VALUE) + 1;
+
+        private final LongAdder[] buckets = adders(BUCKETS);
+        private final LongAdder total = new LongAdder();
+        private final AtomicLong max = new AtomicLong();
+
+        void record(long value) {
+            if (value < 0) {
+                value = 0;
+            }
+            buckets[index(value)].increment();
+            total.add(value);
+            long currentMax = max.get();
+            while (value > currentMax && !max.compareAndSet(currentMax, value)) {
+                currentMax = max.get();
+            }
+        }
+
+        static int index(long value) {
+            if (value < SUB_BUCKETS) {
+                return (int) value;
+            }
+            int magnitude = 63 - Long.numberOfLeadingZeros(value);
+            return ((magnitude - SUB_BITS + 1) << SUB_BITS) + (int) ((value >>> (magnitude - SUB_BITS)) & (SUB_BUCKETS - 1));
+        }
+
+        //Largest value that lands in the bucket
+        static long highestIn(int index) {
+            if (index < SUB_BUCKETS) {
+                return index;
+            }
+            int magnitude = (index >>> SUB_BITS) + SUB_BITS - 1;
+            long lowest = (long) (SUB_BUCKETS + (index & (SUB_BUCKETS - 1))) << (magnitude - SUB_BITS);
+            return lowest + (1L << (magnitude - SUB_BITS)) - 1;
+        }
+
+        long count() {
+            long count = 0;
+            for (LongAdder bucket : buckets) {
+                count += bucket.sum();
+            }
+            return count;
+        }
+
+        double mean() {
+            long count = count();
+            return count == 0 ? 0 : total.sum() / (double) count;
+        }
+
+        long max() {
+            return max.get();
+        }
+
+        long percentile(double percentile) {
+            long[] counts = new long[BUCKETS];
+            long count = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                counts[i] = buckets[i].sum();
+                count += counts[i];
+            }
+            if (count == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(percentile / 100.0 * count);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += counts[i];
+                if (seen >= Math.max(1, rank)) {
+                    return Math.min(highestIn(i), max.get());
+                }
+            }
+            return max.get();
+        }
+
+        void reset() {
+            for (LongAdder bucket : buckets) {
+                bucket.reset();
+            }
+            total.reset();
+            max.set(0);
+        }
+    }
+}
@@ -0,0 +1,29 @@
+import java.util.Map;
+
+/**
+ * What GigMetrics shows over JMX. Maps are keyed by task ("task1" ... "task8") or rule ("rule1" ... "rule12",
+ * plus "other" for errors that aren't a rule violation). Times are in milliseconds.
+ * Registered as GigSystem:type=GigMetrics when GigMetrics is first used.
+ */
+public interface GigMetricsMXBean {
+    Map<String, Long> getCalls();
+    Map<String, Long> getCommits();
+    Map<String, Long> getRollbacks();
+    Map<String, Long> getErrors();
+    Map<String, Long> getRowsReturned();
+    Map<String, Double> getLatencyMeanMillis();
+    Map<String, Double> getLatencyP50Millis();
+    Map<String, Double> getLatencyP99Millis();
+    Map<String, Double> getLatencyP999Millis();
+    Map<String, Double> getLatencyMaxMillis();
+    Map<String, Long> getRuleViolations();
+    long getConversions();
+    long getConvertedRows();
+    double getConversionMeanMillis();
+    double getConversionP99Millis();
+    long getPoolBorrows();
+    double getPoolWaitMeanMillis();
+    double getPoolWaitP99Millis();
+    double getPoolWaitMaxMillis();
+    void reset();
+}
@@ -0,0 +1,807 @@
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * The GigSystem tasks over HTTP with JSON, for the box office and the web shop.
+ *
+ *   java GigSystem serve [--port=8080] [--pool=16] [--queue=500] [--lineup-cache=10000] [--validate=true]
+ *                        [--smtp=host:port] [--report-pool=2] [--report-staleness=5000] [--report-url=jdbc:...]
+ *                        [--url=jdbc:postgresql://...]
+ *
+ *   GET  /gigs/{id}/lineup                    task1  [{"act_name", "on_time", "finish_time"}, ...]
+ *   POST /gigs                                task2  {"venue", "title", "start", "adultTicketPrice",
+ *                                                     "acts": [{"actID", "fee", "onTime", "duration"}, ...]}
+ *   POST /gigs/{id}/tickets                   task3  {"name", "email", "ticketType"}
+ *   POST /gigs/{id}/cancellations             task4  {"act"}
+ *   GET  /reports/tickets-to-sell             task5
+ *   GET  /reports/headline-sales              task6
+ *   GET  /reports/regular-customers[?act=]    task7
+ *   GET  /reports/feasible-gigs[?venue=&genre=&maxTickets=&actsPerVenue=&pageSize=&pageOffset=]  task8
+ *   GET  /metrics                             GigMetrics and the server's own numbers
+ *
+ * Line ups are served from a LineupCache of --lineup-cache gigs (0 turns it off), kept up to date by a GigChangeFeed.
+ * New gigs are checked by a LineupValidator first (unless --validate=false), and a line up breaking any rules is
+ * refused with 409 and all of them in "violations": [{"rule", "act" (position in acts, null for the gig), "message"}].
+ * A cancellation that takes the whole gig with it answers {"gigCancelled": true} as soon as it commits, and the ticket
+ * holders are emailed afterwards from cancellation_outbox. With --smtp this server runs the CancellationOutbox that
+ * sends them, otherwise another node has to.
+ *
+ * Reports go through a ReportingLane of --report-pool read only connections (0 runs them on the main pool as before),
+ * to --report-url if given (a replica or a copy) and otherwise to the main database. A report result is handed out
+ * again until it is --report-staleness milliseconds old, with its age in seconds in the Age header.
+ *
+ * Times are ISO local date-times (2024-06-01T18:00). Reports are arrays of objects keyed by the report's columns.
+ * A refused request (a rule, sold out, a cancelled gig) is 409 with {"error": message, "rule": n}.
+ *
+ * Every request runs on its own virtual thread (on Java 21 and later, on a new platform thread before that),
+ * so a request waiting for the database costs a few hundred bytes rather than a thread stack.
+ * The database only ever sees pool sessions: the rest wait for a connection in the pool, up to queue of them.
+ * Beyond that a request is turned away at once with 503 and Retry-After, so overload shows up as fast refusals
+ * instead of ever longer queues and timeouts.
+ */
+public class GigServer implements AutoCloseable {
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final ConnectionPool pool;
+    //Permits for pool size + queue requests, anything past that is refused
+    private final Semaphore admission;
+    private final int maxAdmitted;
+    private final AtomicLong rejected = new AtomicLong();
+    //null to always read line ups from the database
+    private final LineupCache lineups;
+    //null to leave all the checking of new gigs to the triggers
+    private final LineupValidator validator;
+    //null if another node sends the cancellation emails
+    private final CancellationOutbox outbox;
+    //null to run the reports on the main pool
+    private final ReportingLane reports;
+
+    public GigServer(ConnectionPool pool, int port, int queue) throws IOException {
+        this(pool, null, null, port, queue);
+    }
+
+    public GigServer(ConnectionPool pool, LineupCache lineups, int port, int queue) throws IOException {
+        this(pool, lineups, null, port, queue);
+    }
+
+    public GigServer(ConnectionPool pool, LineupCache lineups, LineupValidator validator, int port, int queue) throws IOException {
+        this(pool, lineups, validator, null, port, queue);
+    }
+
+    public GigServer(ConnectionPool pool, LineupCache lineups, LineupValidator validator, CancellationOutbox outbox,
+                     int port, int queue) throws IOException {
+        this(pool, lineups, validator, outbox, null, port, queue);
+    }
+
+    public GigServer(ConnectionPool pool, LineupCache lineups, LineupValidator validator, CancellationOutbox outbox,
+                     ReportingLane reports, int port, int queue) throws IOException {
+        this.pool = pool;
+        this.lineups = lineups;
+        this.validator = validator;
+        this.outbox = outbox;
+        this.reports = reports;
+        this.maxAdmitted = pool.getMaxSize() + queue;
+        this.admission = new Semaphore(maxAdmitted);
+        this.executor = requestExecutor();
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 4096);
+        server.setExecutor(executor);
+        server.createContext("/", this::handle);
+    }
+
+    public static void main(String[] args) throws IOException, SQLException {
+        int port = 8080;
+        int poolSize = 16;
+        int queue = 500;
+        int lineupCacheSize = 10000;
+        boolean validate = true;
+        String smtp = null;
+        int reportPoolSize = 2;
+        long reportStaleness = 5000;
+        String reportUrl = null;
+        String url = null;
+        for (String arg : args) {
+            String value = arg.substring(arg.indexOf('=') + 1);
+            if (arg.startsWith("--port=")) {
+                port = Integer.parseInt(value);
+            } else if (arg.startsWith("--pool=")) {
+                poolSize = Integer.parseInt(value);
+            } else if (arg.startsWith("--queue=")) {
+                queue = Integer.parseInt(value);
+            } else if (arg.startsWith("--lineup-cache=")) {
+                lineupCacheSize = Integer.parseInt(value);
+            } else if (arg.startsWith("--validate=")) {
+                validate = Boolean.parseBoolean(value);
+            } else if (arg.startsWith("--smtp=")) {
+                smtp = value;
+            } else if (arg.startsWith("--report-pool=")) {
+                reportPoolSize = Integer.parseInt(value);
+            } else if (arg.startsWith("--report-staleness=")) {
+                reportStaleness = Long.parseLong(value);
+            } else if (arg.startsWith("--report-url=")) {
+                reportUrl = value;
+            } else if (arg.startsWith("--url=")) {
+                url = value;
+            } else if (!arg.equals("serve")) {
+                System.err.println("Unknown option " + arg);
+                return;
+            }
+        }
+
+        String jdbcUrl = url;
+        Supplier<Connection> factory = jdbcUrl == null ? GigSystem::getPortConnection : () -> {
+            try {
+                return DriverManager.getConnection(jdbcUrl);
+            } catch (SQLException e) {
+                System.err.println("SQL Error: " + e.getMessage());
+                return null;
+            }
+        };
+        //A request that can't get a connection in 5s is answered with 503 rather than left hanging
+        ConnectionPool pool = new ConnectionPool(factory, poolSize, 0, 5000);
+        LineupCache lineups = null;
+        ScheduleIndex schedule = null;
+        LineupValidator validator = null;
+        CancellationOutbox outbox = null;
+        GigChangeFeed feed = null;
+        if (lineupCacheSize > 0 || validate || smtp != null) {
+            feed = new GigChangeFeed(factory);
+        }
+        if (lineupCacheSize > 0) {
+            lineups = new LineupCache(pool, lineupCacheSize);
+            feed.addListener(lineups);
+        }
+        if (validate) {
+            schedule = new ScheduleIndex(pool);
+            feed.addListener(schedule);
+            validator = new LineupValidator(schedule, pool);
+        }
+        if (smtp != null) {
+            int colon = smtp.lastIndexOf(':');
+            outbox = new CancellationOutbox(pool, new CancellationOutbox.SmtpSender(smtp.substring(0, colon),
+                Integer.parseInt(smtp.substring(colon + 1)), "tickets@gigsystem.example"));
+            //Woken by the gig being cancelled, polls in case the feed missed it
+            feed.addListener(outbox);
+            outbox.start(10000);
+        }
+        if (feed != null) {
+            feed.start();
+        }
+        if (schedule != null) {
+            //Listen before loading, so nothing that commits in between is missed. If the feed can't connect yet it
+            //tells the index to resync once it does.
+            try {
+                if (!feed.awaitListening(10000)) {
+                    System.err.println("Gig change feed is not listening yet, the schedule will be reloaded when it is");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            schedule.reload();
+        }
+        ReportingLane reports = null;
+        if (reportPoolSize > 0) {
+            String reportJdbcUrl = reportUrl;
+            reports = new ReportingLane(reportJdbcUrl == null ? factory : () -> {
+                try {
+                    return DriverManager.getConnection(reportJdbcUrl);
+                } catch (SQLException e) {
+                    System.err.println("SQL Error: " + e.getMessage());
+                    return null;
+                }
+            }, reportPoolSize, reportStaleness);
+        }
+        GigServer server = new GigServer(pool, lineups, validator, outbox, reports, port, queue);
+        GigChangeFeed feedToClose = feed;
+        ScheduleIndex scheduleToClose = schedule;
+        CancellationOutbox outboxToClose = outbox;
+        ReportingLane reportsToClose = reports;
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            server.close();
+            if (feedToClose != null) {
+                feedToClose.close();
+            }
+            if (outboxToClose != null) {
+                outboxToClose.close();
+            }
+            if (scheduleToClose != null) {
+                scheduleToClose.close();
+            }
+            if (reportsToClose != null) {
+                reportsToClose.close();
+            }
+            pool.close();
+        }));
+        server.start();
+        System.out.println("GigServer listening on http://127.0.0.1:" + server.getPort() + " with " + poolSize
+            + " database sessions, " + queue + " queued requests, " + lineupCacheSize + " cached line ups, line up checks: "
+            + validate + ", cancellation emails: " + (smtp == null ? "sent elsewhere" : smtp) + ", reports: "
+            + (reportPoolSize == 0 ? "main pool" : reportPoolSize + " sessions " + (reportUrl == null ? "" : "on " + reportUrl + " ")
+            + "up to " + reportStaleness + " ms old") + ", virtual threads: " + usesVirtualThreads());
+    }
+
+    public void start() {
+        server.start();
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    @Override
+    public void close() {
+        server.stop(1);
+        executor.shutdown();
+    }
+
+    /**
+     * Virtual threads only exist from Java 21, and the project still builds for 17, so look for them at run time.
+     */
+    static ExecutorService requestExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool();
+        }
+    }
+
+    static boolean usesVirtualThreads() {
+        return Runtime.version().feature() >= 21;
+    }
+
+    // ----- Requests -----
+
+    //Sent back as {"error": message} with the status
+    private static class RequestException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        final int status;
+
+        RequestException(int status, String message) {
+            super(message);
+            this.status = status;
+        }
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            if (!admission.tryAcquire()) {
+                rejected.incrementAndGet();
+                exchange.getResponseHeaders().set("Retry-After", "1");
+                sendError(exchange, 503, "Too many requests in progress, try again shortly");
+                return;
+            }
+            try {
+                route(exchange);
+            } finally {
+                admission.release();
+            }
+        } catch (RequestException e) {
+            sendError(exchange, e.status, e.getMessage());
+        } catch (IllegalArgumentException | DateTimeParseException e) {
+            sendError(exchange, 400, e.getMessage());
+        } catch (SQLException e) {
+            handleSqlError(exchange, e);
+        } catch (RuntimeException e) {
+            System.err.println("Error handling " + exchange.getRequestURI() + ": " + e);
+            sendError(exchange, 500, e.getMessage());
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void route(HttpExchange exchange) throws IOException, SQLException, RequestException {
+        String method = exchange.getRequestMethod();
+        String[] path = exchange.getRequestURI().getPath().split("/");
+        Map<String, String> query = queryParameters(exchange);
+        //path[0] is the empty string before the first slash
+        if (path.length == 4 && path[1].equals("gigs")) {
+            int gigID = parseInt(path[2], "gig id");
+            if (path[3].equals("lineup") && method.equals("GET")) {
+                lineup(exchange, gigID);
+                return;
+            } else if (path[3].equals("tickets") && method.equals("POST")) {
+                bookTicket(exchange, gigID, body(exchange));
+                return;
+            } else if (path[3].equals("cancellations") && method.equals("POST")) {
+                cancelAct(exchange, gigID, body(exchange));
+                return;
+            }
+        } else if (path.length == 2 && path[1].equals("gigs") && method.equals("POST")) {
+            organiseGig(exchange, body(exchange));
+            return;
+        } else if (path.length == 3 && path[1].equals("reports") && method.equals("GET")) {
+            report(exchange, path[2], query);
+            return;
+        } else if (path.length == 2 && path[1].equals("metrics") && method.equals("GET")) {
+            metrics(exchange);
+            return;
+        }
+        throw new RequestException(404, "No such endpoint: " + method + " " + exchange.getRequestURI().getPath());
+    }
+
+    private void lineup(HttpExchange exchange, int gigID) throws IOException, SQLException {
+        String[][] lineup = lineups != null ? lineups.get(gigID) : pool.withConnection(conn -> GigSystem.task1(conn, gigID));
+        if (lineup == null) {
+            throw new SQLException("Could not read the line up");
+        }
+        send(exchange, 200, appendLineup(new StringBuilder(), lineup));
+    }
+
+    private static StringBuilder appendLineup(StringBuilder out, String[][] lineup) {
+        out.append('[');
+        for (int i = 0; i < lineup.length; i++) {
+            out.append(i == 0 ? "" : ",").append("{\"act_name\":");
+            Json.quote(out, lineup[i][0]).append(",\"on_time\":");
+            Json.quote(out, lineup[i][1]).append(",\"finish_time\":");
+            Json.quote(out, lineup[i][2]).append('}');
+        }
+        return out.append(']');
+    }
+
+    private void organiseGig(HttpExchange exchange, Map<String, Object> body) throws IOException, SQLException, RequestException {
+        String venue = string(body, "venue");
+        String title = string(body, "title");
+        LocalDateTime start = LocalDateTime.parse(string(body, "start"));
+        int price = integer(body, "adultTicketPrice");
+        Object actsValue = body.get("acts");
+        if (!(actsValue instanceof List) || ((List<?>) actsValue).isEmpty()) {
+            throw new RequestException(400, "acts must be a list of performances");
+        }
+        List<?> acts = (List<?>) actsValue;
+        ActPerformanceDetails[] details = new ActPerformanceDetails[acts.size()];
+        for (int i = 0; i < details.length; i++) {
+            if (!(acts.get(i) instanceof Map)) {
+                throw new RequestException(400, "Each act must be an object");
+            }
+            @SuppressWarnings("unchecked")
+            Map<String, Object> act = (Map<String, Object>) acts.get(i);
+            details[i] = new ActPerformanceDetails(integer(act, "actID"), integer(act, "fee"),
+                LocalDateTime.parse(string(act, "onTime")), integer(act, "duration"));
+        }
+        if (validator != null) {
+            List<LineupValidator.Violation> violations = validator.validate(venue, start, details);
+            if (!violations.isEmpty()) {
+                //Everything wrong at once, without touching the database
+                LineupValidator.Violation firstViolation = violations.get(0);
+                StringBuilder out = new StringBuilder("{\"error\":");
+                Json.quote(out, firstViolation.toString());
+                out.append(",\"rule\":").append(firstViolation.rule).append(",\"violations\":[");
+                for (int i = 0; i < violations.size(); i++) {
+                    LineupValidator.Violation violation = violations.get(i);
+                    out.append(i == 0 ? "" : ",").append("{\"rule\":").append(violation.rule).append(",\"act\":");
+                    if (violation.act >= 0) {
+                        out.append(violation.act);
+                    } else {
+                        out.append("null");
+                    }
+                    Json.quote(out.append(",\"message\":"), violation.message).append('}');
+                }
+                send(exchange, 409, out.append("]}"));
+                return;
+            }
+        }
+        int gigID = pool.withConnection(conn -> GigSystem.organiseGig(conn, venue, title, start, price, details));
+        if (validator != null) {
+            try {
+                //So the next request sees this gig without waiting for the feed
+                validator.refresh(gigID);
+            } catch (SQLException e) {
+                System.err.println("SQL Error refreshing the schedule after gig " + gigID + ": " + e.getMessage());
+            }
+        }
+        send(exchange, 201, new StringBuilder("{\"gigID\":").append(gigID).append('}'));
+    }
+
+    private void bookTicket(HttpExchange exchange, int gigID, Map<String, Object> body) throws IOException, SQLException {
+        String name = string(body, "name");
+        String email = string(body, "email");
+        String ticketType = body.containsKey("ticketType") ? string(body, "ticketType") : "A";
+        pool.withConnection(conn -> {
+            GigSystem.bookTicket(conn, gigID, name, email, ticketType);
+            return null;
+        });
+        send(exchange, 201, new StringBuilder("{\"booked\":true}"));
+    }
+
+    /*
+     * task4 through GigSystem.cancelAct, so cancelling a big gig doesn't read back (or send) every ticket holder:
+     * they are queued in cancellation_outbox and emailed in the background. A gig that was already cancelled is
+     * refused up front.
+     */
+    private void cancelAct(HttpExchange exchange, int gigID, Map<String, Object> body) throws IOException, SQLException {
+        String actName = string(body, "act");
+        StringBuilder out = new StringBuilder();
+        int status = pool.withConnection(conn -> {
+            String before = gigStatus(conn, gigID);
+            if (before == null) {
+                return 404;
+            } else if (before.equals("Cancelled")) {
+                return 409;
+            }
+            String[][] result = GigSystem.cancelAct(conn, gigID, actName);
+            if (lineups != null) {
+                //Don't wait for the feed, the next lineup request might come from the same client
+                lineups.invalidate(gigID);
+            }
+            if (result == null) {
+                if (outbox != null) {
+                    outbox.wake();
+                }
+                out.append("{\"gigCancelled\":true}");
+            } else {
+                out.append("{\"gigCancelled\":false,\"lineup\":");
+                appendLineup(out, result).append('}');
+            }
+            return 200;
+        });
+        if (status == 404) {
+            sendError(exchange, 404, "No such gig");
+        } else if (status == 409) {
+            sendError(exchange, 409, "Gig is cancelled");
+        } else {
+            send(exchange, 200, out);
+        }
+    }
+
+    private static String gigStatus(Connection conn, int gigID) throws SQLException {
+        try (PreparedStatement stmt = conn.prepareStatement("SELECT gigstatus FROM gig WHERE gigID = ?")) {
+            stmt.setInt(1, gigID);
+            try (ResultSet rs = stmt.executeQuery()) {
+                return rs.next() ? rs.getString(1) : null;
+            }
+        }
+    }
+
+    private void report(HttpExchange exchange, String name, Map<String, String> query) throws IOException, SQLException, RequestException {
+        if (reports != null) {
+            laneReport(exchange, name, query);
+            return;
+        }
+        ReportWriter writer = new ReportWriter(exchange);
+        switch (name) {
+            case "tickets-to-sell":
+                pool.withConnection(conn -> GigSystem.task5(conn, GigSystem.DEFAULT_FETCH_SIZE, writer));
+                break;
+            case "headline-sales":
+                pool.withConnection(conn -> GigSystem.task6(conn, GigSystem.DEFAULT_FETCH_SIZE, writer));
+                break;
+            case "regular-customers":
+                String act = query.get("act");
+                pool.withConnection(conn -> act == null
+                    ? GigSystem.task7(conn, GigSystem.DEFAULT_FETCH_SIZE, writer)
+                    : GigSystem.task7(conn, act, GigSystem.DEFAULT_FETCH_SIZE, writer));
+                break;
+            case "feasible-gigs":
+                String venue = query.get("venue");
+                String genre = query.get("genre");
+                Integer maxTickets = optionalInt(query, "maxTickets");
+                Integer actsPerVenue = optionalInt(query, "actsPerVenue");
+                Integer pageSize = optionalInt(query, "pageSize");
+                Integer pageOffset = optionalInt(query, "pageOffset");
+                pool.withConnection(conn -> GigSystem.task8(conn, venue, genre, maxTickets, actsPerVenue, pageSize,
+                    pageOffset == null ? 0 : pageOffset, GigSystem.DEFAULT_FETCH_SIZE, writer));
+                break;
+            default:
+                throw new RequestException(404, "No such report: " + name);
+        }
+        writer.finish();
+    }
+
+    private void laneReport(HttpExchange exchange, String name, Map<String, String> query) throws IOException, SQLException, RequestException {
+        ReportingLane.Report report;
+        switch (name) {
+            case "tickets-to-sell":
+                report = reports.task5();
+                break;
+            case "headline-sales":
+                report = reports.task6();
+                break;
+            case "regular-customers":
+                report = reports.task7(query.get("act"));
+                break;
+            case "feasible-gigs":
+                Integer pageOffset = optionalInt(query, "pageOffset");
+                report = reports.task8(query.get("venue"), query.get("genre"), optionalInt(query, "maxTickets"),
+                    optionalInt(query, "actsPerVenue"), optionalInt(query, "pageSize"), pageOffset == null ? 0 : pageOffset);
+                break;
+            default:
+                throw new RequestException(404, "No such report: " + name);
+        }
+        //Same JSON as ReportWriter
+        String[] columns = report.getColumns();
+        String[][] rows = report.getRows();
+        StringBuilder out = new StringBuilder("[");
+        for (int r = 0; r < rows.length; r++) {
+            out.append(r == 0 ? "{" : ",{");
+            for (int i = 0; i < columns.length; i++) {
+                out.append(i == 0 ? "" : ",");
+                Json.quote(out, columns[i]).append(':');
+                if (rows[r][i] == null) {
+                    out.append("null");
+                } else if (report.isNumeric(i)) {
+                    out.append(rows[r][i]);
+                } else {
+                    Json.quote(out, rows[r][i]);
+                }
+            }
+            out.append('}');
+        }
+        exchange.getResponseHeaders().set("Age", Long.toString(report.getAgeMillis() / 1000));
+        send(exchange, 200, out.append(']'));
+    }
+
+    /*
+     * Writes report rows to the response as the cursor delivers them, so a big report is never held in memory.
+     * The status line is only sent with the first row, so an error before then can still be answered properly.
+     */
+    private static class ReportWriter implements GigSystem.RowHandler {
+        private final HttpExchange exchange;
+        private OutputStream body;
+        private String[] columns;
+        private int[] types;
+        private final StringBuilder row = new StringBuilder();
+
+        ReportWriter(HttpExchange exchange) {
+            this.exchange = exchange;
+        }
+
+        @Override
+        public void row(ResultSet rs) throws SQLException {
+            row.setLength(0);
+            if (body == null) {
+                ResultSetMetaData meta = rs.getMetaData();
+                columns = new String[meta.getColumnCount()];
+                types = new int[columns.length];
+                for (int i = 0; i < columns.length; i++) {
+                    columns[i] = Json.quote(meta.getColumnLabel(i + 1)) + ":";
+                    types[i] = meta.getColumnType(i + 1);
+                }
+                open();
+                row.append('[');
+            } else {
+                row.append(',');
+            }
+            row.append('{');
+            for (int i = 0; i < columns.length; i++) {
+                row.append(i == 0 ? "" : ",").append(columns[i]);
+                if (types[i] == Types.INTEGER || types[i] == Types.BIGINT || types[i] == Types.SMALLINT) {
+                    long value = rs.getLong(i + 1);
+                    row.append(rs.wasNull() ? "null" : Long.toString(value));
+                } else {
+                    Json.quote(row, rs.getString(i + 1));
+                }
+            }
+            row.append('}');
+            write(row);
+        }
+
+        void finish() throws IOException {
+            if (body == null) {
+                send(exchange, 200, new StringBuilder("[]"));
+                return;
+            }
+            body.write(']');
+            body.flush();
+        }
+
+        private void open() throws SQLException {
+            try {
+                exchange.getResponseHeaders().set("Content-Type", "application/json");
+                exchange.sendResponseHeaders(200, 0);
+                body = new BufferedOutputStream(exchange.getResponseBody(), 16384);
+            } catch (IOException e) {
+                throw new SQLException("Client went away", e);
+            }
+        }
+
+        private void write(StringBuilder text) throws SQLException {
+            try {
+                body.write(text.toString().getBytes(StandardCharsets.UTF_8));
+            } catch (IOException e) {
+                //Stops the report, and so frees the connection, as soon as the client has gone
+                throw new SQLException("Client went away", e);
+            }
+        }
+    }
+
+    private void metrics(HttpExchange exchange) throws IOException {
+        GigMetrics metrics = GigMetrics.get();
+        StringBuilder out = new StringBuilder("{\"server\":{");
+        out.append("\"inFlight\":").append(maxAdmitted - admission.availablePermits())
+            .append(",\"maxInFlight\":").append(maxAdmitted)
+            .append(",\"rejected\":").append(rejected.get())
+            .append(",\"openConnections\":").append(pool.getOpenConnections())
+            .append(",\"idleConnections\":").append(pool.getIdleConnections())
+            .append(",\"platformThreads\":").append(ManagementFactory.getThreadMXBean().getThreadCount())
+            .append(",\"virtualThreads\":").append(usesVirtualThreads())
+            .append("},\"tasks\":{");
+        Map<String, Long> calls = metrics.getCalls();
+        Map<String, Long> errors = metrics.getErrors();
+        Map<String, Double> p50 = metrics.getLatencyP50Millis();
+        Map<String, Double> p99 = metrics.getLatencyP99Millis();
+        boolean first = true;
+        for (String task : calls.keySet()) {
+            out.append(first ? "" : ",").append('"').append(task).append("\":{\"calls\":").append(calls.get(task))
+                .append(",\"errors\":").append(errors.get(task))
+                .append(",\"p50Millis\":").append(p50.get(task))
+                .append(",\"p99Millis\":").append(p99.get(task)).append('}');
+            first = false;
+        }
+        out.append("},\"ruleViolations\":{");
+        first = true;
+        for (Map.Entry<String, Long> rule : metrics.getRuleViolations().entrySet()) {
+            out.append(first ? "" : ",").append('"').append(rule.getKey()).append("\":").append(rule.getValue());
+            first = false;
+        }
+        out.append("},\"poolWaitP99Millis\":").append(metrics.getPoolWaitP99Millis());
+        if (lineups != null) {
+            out.append(",\"lineupCache\":{\"size\":").append(lineups.getSize())
+                .append(",\"hits\":").append(lineups.getHits())
+                .append(",\"misses\":").append(lineups.getMisses())
+                .append(",\"hitRate\":").append(lineups.getHitRate())
+                .append(",\"evictions\":").append(lineups.getEvictions())
+                .append(",\"invalidations\":").append(lineups.getInvalidations()).append('}');
+        }
+        if (reports != null) {
+            out.append(",\"reports\":{\"cached\":").append(reports.getCachedReports())
+                .append(",\"maxStaleMillis\":").append(reports.getMaxStaleMillis())
+                .append(",\"hits\":").append(reports.getHits())
+                .append(",\"shared\":").append(reports.getShared())
+                .append(",\"misses\":").append(reports.getMisses())
+                .append(",\"hitRate\":").append(reports.getHitRate())
+                .append(",\"openConnections\":").append(reports.getOpenConnections()).append('}');
+        }
+        if (outbox != null) {
+            out.append(",\"cancellationOutbox\":{\"emailsSent\":").append(outbox.getEmailsSent())
+                .append(",\"batchesSent\":").append(outbox.getBatchesSent())
+                .append(",\"batchesFailed\":").append(outbox.getBatchesFailed())
+                .append(",\"gigsSent\":").append(outbox.getGigsSent())
+                .append(",\"gigsFailed\":").append(outbox.getGigsFailed()).append('}');
+        }
+        out.append('}');
+        send(exchange, 200, out);
+    }
+
+    /*
+     * Rule violations, sold out and cancelled gigs are the request's fault (409), as are the checks book_ticket
+     * raises itself (400). No free connection in time means we are overloaded (503). Anything else is ours (500).
+     */
+    private void handleSqlError(HttpExchange exchange, SQLException e) throws IOException {
+        String message = String.valueOf(e.getMessage());
+        if (exchange.getResponseCode() != -1) {
+            //A report failed part way through, the client will see the JSON cut short
+            System.err.println("SQL Error part way through " + exchange.getRequestURI() + ": " + message);
+            return;
+        }
+        int rule = GigMetrics.ruleNumber(message);
+        if (rule != 0 || message.contains("cancelled")) {
+            StringBuilder out = new StringBuilder("{\"error\":");
+            Json.quote(out, firstLine(message));
+            if (rule != 0) {
+                out.append(",\"rule\":").append(rule);
+            }
+            send(exchange, 409, out.append('}'));
+        } else if ("P0001".equals(e.getSQLState())) {
+            sendError(exchange, 400, firstLine(message));
+        } else if (message.startsWith("Timed out waiting for a pooled connection")) {
+            rejected.incrementAndGet();
+            exchange.getResponseHeaders().set("Retry-After", "1");
+            sendError(exchange, 503, message);
+        } else {
+            System.err.println("SQL Error: " + message);
+            sendError(exchange, 500, firstLine(message));
+        }
+    }
+
+    // ----- Helpers -----
+
+    private static String firstLine(String message) {
+        int newline = message.indexOf('\n');
+        String line = newline < 0 ? message : message.substring(0, newline);
+        return line.startsWith("ERROR: ") ? line.substring(7) : line;
+    }
+
+    private static Map<String, Object> body(HttpExchange exchange) throws IOException, RequestException {
+        String text;
+        try (InputStream in = exchange.getRequestBody()) {
+            text = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+        Object value = Json.parse(text);
+        if (!(value instanceof Map)) {
+            throw new RequestException(400, "The request body must be a JSON object");
+        }
+        @SuppressWarnings("unchecked")
+        Map<String, Object> body = (Map<String, Object>) value;
+        return body;
+    }
+
+    private static Map<String, String> queryParameters(HttpExchange exchange) {
+        Map<String, String> out = new HashMap<>();
+        String query = exchange.getRequestURI().getRawQuery();
+        if (query == null) {
+            return out;
+        }
+        for (String pair : query.split("&")) {
+            int equals = pair.indexOf('=');
+            if (equals > 0) {
+                out.put(URLDecoder.decode(pair.substring(0, equals), StandardCharsets.UTF_8),
+                    URLDecoder.decode(pair.substring(equals + 1), StandardCharsets.UTF_8));
+            }
+        }
+        return out;
+    }
+
+    private static String string(Map<String, Object> body, String field) {
+        Object value = body.get(field);
+        if (!(value instanceof String)) {
+            throw new IllegalArgumentException(field + " must be a string");
+        }
+        return (String) value;
+    }
+
+    private static int integer(Map<String, Object> body, String field) {
+        Object value = body.get(field);
+        if (!(value instanceof Long) || (Long) value != ((Long) value).intValue()) {
+            throw new IllegalArgumentException(field + " must be a whole number");
+        }
+        return ((Long) value).intValue();
+    }
+
+    private static Integer optionalInt(Map<String, String> query, String name) {
+        String value = query.get(name);
+        return value == null ? null : parseInt(value, name);
+    }
+
+    private static int parseInt(String value, String name) {
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(name + " must be a whole number");
+        }
+    }
+
+    private static void sendError(HttpExchange exchange, int status, String message) throws IOException {
+        if (exchange.getResponseCode() != -1) {
+            return;
+        }
+        StringBuilder out = new StringBuilder("{\"error\":");
+        Json.quote(out, message);
+        send(exchange, status, out.append('}'));
+    }
+
+    private static void send(HttpExchange exchange, int status, StringBuilder json) throws IOException {
+        byte[] bytes = json.toString().getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+}
@@ -13,15 +13,25 @@ import java.util.Properties;
 
 import java.time.LocalDateTime;
 import java.sql.Timestamp;
-import java.util.Vector;
 import java.util.Arrays;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CompletionException;
 
 public class GigSystem {
 
     public static void main(String[] args) {
 
+        //java GigSystem serve [options] runs the tasks as an HTTP server instead, see GigServer
+        if(args.length > 0 && args[0].equals("serve")){
+            try{
+                GigServer.main(args);
+            } catch(IOException | SQLException e){
+                System.err.println("Could not start the server: " + e.getMessage());
+            }
+            return;
+        }
+
         // You should only need to fetch the connection details once
         // You might need to change this to either getSocketConnection() or getPortConnection() - see below
         Connection conn = getSocketConnection();
@@ -93,6 +103,7 @@ public class GigSystem {
         ArrayList<String[]> temp = new ArrayList<>();
         String query = "SELECT a.actname, aft.ontime, aft.finish_time FROM act_finish_time aft JOIN act a ON aft.actID = a.actID JOIN gig g ON aft.gigID = g.gigID WHERE g.gigID = ? ";
         PreparedStatement getGigInfo;
+        GigMetrics.Call call = GigMetrics.begin(1);
         try{
             conn.setAutoCommit(false);
             getGigInfo = conn.prepareStatement(query);
@@ -100,16 +111,24 @@ public class GigSystem {
             ResultSet gigRs = getGigInfo.executeQuery();
 
             conn.commit();
-            return convertResultToStrings(gigRs);
+            call.committed();
+            gig_info = convertResultToStrings(gigRs);
+            if (gig_info != null) {
+                call.rows(gig_info.length);
+            }
+            return gig_info;
         }
         catch(SQLException e){
+            call.failed(e);
             try{
                 conn.rollback();
+                call.rolledBack();
             } catch (SQLException e2){
                 e2.printStackTrace();
             }
             e.printStackTrace();
             } finally{
+                call.finish();
                 try{
                     if(conn != null){
                         conn.setAutoCommit(true);
@@ -129,6 +148,15 @@ public class GigSystem {
     If any details of the gig (or acts) violate any of the constraints described in the specification, ensure the
     database state is as it was before the method was called.*/
     public static void task2(Connection conn, String venue, String gigTitle, LocalDateTime gigStart, int adultTicketPrice, ActPerformanceDetails[] actDetails){
+        try{
+            organiseGig(conn, venue, gigTitle, gigStart, adultTicketPrice, actDetails);
+        } catch(SQLException e){
+            e.printStackTrace();
+        }
+    }
+
+    //Does the work of task2 but lets the caller see why the gig was refused, returns the new gigID
+    static int organiseGig(Connection conn, String venue, String gigTitle, LocalDateTime gigStart, int adultTicketPrice, ActPerformanceDetails[] actDetails) throws SQLException {
         int venueID = 0;
         int gigID = 0;
         String ticket_type = "A";
@@ -138,6 +166,7 @@ public class GigSystem {
         PreparedStatement set_gig;
         PreparedStatement get_gigID;
         PreparedStatement gig_ticket_IN;
+        GigMetrics.Call call = GigMetrics.begin(2);
         
         try{
             conn.setAutoCommit(false);
@@ -192,14 +221,19 @@ public class GigSystem {
             
             //Commit the transaction
             conn.commit();
+            call.committed();
+            return gigID;
         } catch(SQLException e){
+            call.failed(e);
             try{
                 conn.rollback();
+                call.rolledBack();
             } catch (SQLException e2){
                 e2.printStackTrace();
             }
-            e.printStackTrace();
+            throw e;
             } finally{
+                call.finish();
                 try{
                     if(conn != null){
                         conn.setAutoCommit(true);
@@ -219,7 +253,17 @@ public class GigSystem {
     */
    //Looks like I'm dealing with the ticket, gigticket and gig tables
 public static void task3(Connection conn, int gigid, String name, String email, String ticketType) {
+    try {
+        bookTicket(conn, gigid, name, email, ticketType);
+    } catch (SQLException e) {
+        System.err.println("SQL Error: " + e.getMessage());
+    }
+}
+
+//Does the work of task3 but lets the caller see why a booking was refused
+static void bookTicket(Connection conn, int gigid, String name, String email, String ticketType) throws SQLException {
     CallableStatement bookTicketStmt = null;
+    GigMetrics.Call call = GigMetrics.begin(3);
 
     try {
         conn.setAutoCommit(false);
@@ -234,14 +278,20 @@ public static void task3(Connection conn, int gigid, String name, String email,
         bookTicketStmt.execute();
 
         conn.commit();
+        call.committed();
     } catch (SQLException e) {
-        System.err.println("SQL Error: " + e.getMessage());
+        call.failed(e);
         try {
-            if (conn != null) conn.rollback();
+            if (conn != null) {
+                conn.rollback();
+                call.rolledBack();
+            }
         } catch (SQLException ex) {
             System.err.println("SQL Error during rollback: " + ex.getMessage());
         }
+        throw e;
     } finally {
+        call.finish();
         try {
             if (bookTicketStmt != null) bookTicketStmt.close();
             if (conn != null) conn.setAutoCommit(true);
@@ -260,50 +310,50 @@ public static String[][] task4(Connection conn, int gigID, String actName) {
     ResultSet results = null;
     List<String[]> resultList = new ArrayList<>();
     List<String> emailList = new ArrayList<>();
+    GigMetrics.Call call = GigMetrics.begin(4);
 
 
     try {
         conn.setAutoCommit(false);
 
-        //We set the cursor to be able to move back to the start, as we will be checking for both cases where just an act is cancelled or a whole gig is cancelled in one go
-        cancelActStmt = conn.prepareCall("SELECT * FROM cancel_act_in_gig((SELECT actID from act WHERE actname = ?), ?)",
-                ResultSet.TYPE_SCROLL_INSENSITIVE, ResultSet.CONCUR_READ_ONLY);
+        //Rows are either customer emails (the whole gig was cancelled) or the new line up, so both are picked up in one pass
+        //For a big gig use cancelAct() instead, which doesn't read the emails at all
+        cancelActStmt = conn.prepareCall("SELECT * FROM cancel_act_in_gig((SELECT actID from act WHERE actname = ?), ?)");
         cancelActStmt.setString(1, actName);
         cancelActStmt.setInt(2, gigID);
         results = cancelActStmt.executeQuery();
         String[][] resultOut;
 
-        boolean isCustomerEmail = false;
         while (results.next()) {
-            if (results.getString("customeremail") != null) {
-                isCustomerEmail = true;
-                emailList.add(results.getString("customeremail"));
+            String email = results.getString("customeremail");
+            if (email != null) {
+                emailList.add(email);
+            } else if (emailList.isEmpty()) {
+                String actname = results.getString("actname");
+                Time ontime = results.getTime("ontime");
+                Time finishTime = results.getTime("finish_time");
+                resultList.add(new String[]{actname, ontime != null ? ontime.toString() : null, finishTime != null ? finishTime.toString() : null});
             }
         }
 
-        // Reset the cursor of the result set
-        results.beforeFirst();
-
-        if (isCustomerEmail) {
+        if (!emailList.isEmpty()) {
             // Process and return customer emails
             resultOut = new String[][] { emailList.toArray(new String[0]) };
             System.out.println(Arrays.deepToString(resultOut));
+            conn.commit();
+            call.committed();
+            call.rows(resultOut.length);
             return resultOut;
-        } else {
-            // Process act information
-            while (results.next()) {
-                String actname = results.getString("actname");
-                Time ontime = results.getTime("ontime");
-                Time finishTime = results.getTime("finish_time");
-                resultList.add(new String[]{actname, ontime != null ? ontime.toString() : null, finishTime != null ? finishTime.toString() : null});
-            }
         }
 
         conn.commit();
+        call.committed();
     } catch (SQLException e) {
         System.err.println("SQL Error: " + e.getMessage());
+        call.failed(e);
         try {
             conn.rollback();
+            call.rolledBack();
         } catch (SQLException ex) {
             System.err.println("Error during rollback: " + ex.getMessage());
         }
@@ -318,10 +368,14 @@ public static String[][] task4(Connection conn, int gigID, String actName) {
                 resultList.add(new String[]{results.getString("customeremail")});
             }
             conn.commit();
+            call.committed();
+            call.recovered();
         } catch (SQLException ex) {
             System.err.println("SQL Error during cancel_gig: " + ex.getMessage());
+            call.failed(ex);
             try {
                 conn.rollback();
+                call.rolledBack();
             } catch (SQLException ex2) {
                 System.err.println("Error during rollback: " + ex2.getMessage());
             }
@@ -342,6 +396,8 @@ public static String[][] task4(Connection conn, int gigID, String actName) {
             }
         }
     } finally {
+        call.rows(resultList.size());
+        call.finish();
         try {
             if (conn != null) {
                 conn.setAutoCommit(true);
@@ -360,89 +416,418 @@ public static String[][] task4(Connection conn, int gigID, String actName) {
     return resultList.toArray(new String[0][]);
 }
 
+    /*
+     * task4 for gigs of any size: if the whole gig has to be cancelled, its ticket holders are queued in
+     * cancellation_outbox in the same transaction (for a CancellationOutbox to email later) instead of being read back.
+     * @return The new line up in task4's format, or null if the whole gig was cancelled
+     * @throws SQLException If there is no such gig, or neither the act nor the gig could be cancelled
+     */
+    public static String[][] cancelAct(Connection conn, int gigID, String actName) throws SQLException {
+        GigMetrics.Call call = GigMetrics.begin(4);
+        List<String[]> lineup = new ArrayList<>();
+        boolean autoCommit = conn.getAutoCommit();
+        SQLException failure = null;
+        try {
+            conn.setAutoCommit(false);
+            //cancel_act_in_gig gives no rows for a gig that doesn't exist, which would look like a cancelled gig below
+            try (PreparedStatement exists = conn.prepareStatement("SELECT 1 FROM gig WHERE gigID = ?")) {
+                exists.setInt(1, gigID);
+                try (ResultSet rs = exists.executeQuery()) {
+                    if (!rs.next()) {
+                        throw new SQLException("No gig with ID " + gigID, "P0002");
+                    }
+                }
+            }
+            try (PreparedStatement cancelAct = conn.prepareStatement(
+                    "SELECT actname, ontime, finish_time FROM cancel_act_in_gig((SELECT actID from act WHERE actname = ?), ?, true)")) {
+                cancelAct.setString(1, actName);
+                cancelAct.setInt(2, gigID);
+                try (ResultSet rs = cancelAct.executeQuery()) {
+                    while (rs.next()) {
+                        Time ontime = rs.getTime(2);
+                        Time finishTime = rs.getTime(3);
+                        lineup.add(new String[]{rs.getString(1), ontime != null ? ontime.toString() : null, finishTime != null ? finishTime.toString() : null});
+                    }
+                }
+                conn.commit();
+                call.committed();
+                //The gig exists, so only a cancelled gig comes back empty (taking an act out always leaves at least one)
+                return lineup.isEmpty() ? null : lineup.toArray(new String[0][]);
+            } catch (SQLException e) {
+                //A business rule is violated without the act, so the whole gig goes (as in task4)
+                call.failed(e);
+                conn.rollback();
+                call.rolledBack();
+            }
+            try (PreparedStatement cancelGig = conn.prepareStatement("SELECT * FROM cancel_gig(?, true)")) {
+                cancelGig.setInt(1, gigID);
+                cancelGig.executeQuery().close();
+                conn.commit();
+                call.committed();
+                call.recovered();
+                return null;
+            }
+        } catch (SQLException e) {
+            failure = e;
+            System.err.println("SQL Error: " + e.getMessage());
+            call.failed(e);
+            try {
+                conn.rollback();
+                call.rolledBack();
+            } catch (SQLException ex) {
+                System.err.println("SQL Error during rollback: " + ex.getMessage());
+            }
+            throw e;
+        } finally {
+            call.rows(lineup.size());
+            call.finish();
+            restoreAutoCommit(conn, autoCommit, failure);
+        }
+    }
+
 
 //Task 5
 public static String[][] task5(Connection conn){
-    try (PreparedStatement ticketsStmt = conn.prepareStatement("SELECT * FROM get_tickets_to_sell()")) {
-        conn.setAutoCommit(false);
-        ResultSet ticketsToBreakEven = ticketsStmt.executeQuery();
-        conn.commit();
-        return convertResultToStrings(ticketsToBreakEven);
+    List<String[]> rows = new ArrayList<>();
+    try {
+        task5(conn, DEFAULT_FETCH_SIZE, collectStrings(rows));
     } catch (SQLException e) {
-        try {
-            if (conn != null) conn.rollback();
-        } catch (SQLException ex) {
-            System.err.println("Rollback error: " + ex.getMessage());
-        }
         System.err.println("SQL error: " + e.getMessage());
-    } finally {
-        try {
-            if (conn != null) conn.setAutoCommit(true);
-        } catch (SQLException ex) {
-            System.err.println("Auto-commit error: " + ex.getMessage());
-        }
+        return new String[0][0];
     }
-    return new String[0][0];
+    return rows.toArray(new String[0][]);
 }
 
 public static String[][] task6(Connection conn) {
-    String[][] result = null;
+    List<String[]> rows = new ArrayList<>();
+    try {
+        task6(conn, DEFAULT_FETCH_SIZE, collectStrings(rows));
+    } catch (SQLException e) {
+        throw new RuntimeException("Error executing task 6: " + e.getMessage(), e);
+    }
+    return rows.toArray(new String[0][]);
+}
 
-    try (CallableStatement gigsInYear = conn.prepareCall("SELECT * FROM calculate_headline_act_ticket_sales()")) {
-        conn.setAutoCommit(false);
+    public static String[][] task7(Connection conn){
+        List<String[]> rows = new ArrayList<>();
+        try {
+            task7(conn, DEFAULT_FETCH_SIZE, collectStrings(rows));
+        } catch (SQLException e) {
+            throw new RuntimeException("Error executing task 7: " + e.getMessage(), e);
+        }
+        return rows.toArray(new String[0][]);
+    }
 
-        try (ResultSet gigsInYearResult = gigsInYear.executeQuery()) {
-            result = convertResultToStrings(gigsInYearResult);
-            conn.commit();
+    /*
+     * Task 7 for a single act, e.g. for an act's own page.
+     * Gives the same rows task7(conn) gives for that act, and nothing if it isn't a headline act.
+     */
+    public static String[][] task7(Connection conn, String actName){
+        List<String[]> rows = new ArrayList<>();
+        try {
+            task7(conn, actName, DEFAULT_FETCH_SIZE, collectStrings(rows));
         } catch (SQLException e) {
-            conn.rollback();
-            throw new RuntimeException("Error executing task 6: " + e.getMessage(), e);
-        } finally {
-            conn.setAutoCommit(true);
+            throw new RuntimeException("Error executing task 7: " + e.getMessage(), e);
         }
-    } catch (SQLException e) {
-        System.err.println("SQL Error: " + e.getMessage());
+        return rows.toArray(new String[0][]);
     }
 
-    return result;
-}
+    public static String[][] task8(Connection conn){
+        List<String[]> rows = new ArrayList<>();
+        try {
+            task8(conn, DEFAULT_FETCH_SIZE, collectStrings(rows));
+        } catch (SQLException e) {
+            throw new RuntimeException("Error executing task 8: " + e.getMessage(), e);
+        }
+        return rows.toArray(new String[0][]);
+    }
 
-    public static String[][] task7(Connection conn){
-        try(CallableStatement regCustomers = conn.prepareCall("SELECT act_name, customer_name FROM regular_customers()")){
+    /*
+     * Task 8 with filters and paging. Any of venueName, genre, maxTickets (most tickets required) and
+     * actsPerVenue (only the most expensive feasible acts at each venue) can be null to leave it out.
+     * Rows are in the same order as task8(conn), and the page is pageSize rows (null for all of them)
+     * after skipping pageOffset.
+     */
+    public static String[][] task8(Connection conn, String venueName, String genre, Integer maxTickets,
+                                   Integer actsPerVenue, Integer pageSize, int pageOffset){
+        List<String[]> rows = new ArrayList<>();
+        try {
+            task8(conn, venueName, genre, maxTickets, actsPerVenue, pageSize, pageOffset, DEFAULT_FETCH_SIZE, collectStrings(rows));
+        } catch (SQLException e) {
+            throw new RuntimeException("Error executing task 8: " + e.getMessage(), e);
+        }
+        return rows.toArray(new String[0][]);
+    }
+
+    /*
+     * Streaming versions of the reports.
+     * Rows are read through a cursor fetchSize at a time and handed to the handler one by one while the cursor
+     * is still open, so the first row can be used straight away and only fetchSize rows are ever held in memory.
+     * The handler reads the columns with the typed ResultSet getters:
+     *   task5: gig_id INTEGER, tickets_to_sell INTEGER
+     *   task6: act_name VARCHAR, year VARCHAR, tickets_sold INTEGER
+     *   task7: act_name VARCHAR, customer_name TEXT
+     *   task8: venue_name VARCHAR, act_name VARCHAR, tickets_required INTEGER
+     * Each returns the number of rows streamed.
+     * With autocommit on, each report runs in its own transaction. If the caller already turned autocommit off, the
+     * report runs inside the caller's transaction, and committing or rolling it back is left to the caller.
+     */
+    public interface RowHandler {
+        //row is positioned on the current row and must not be kept after this returns
+        void row(ResultSet row) throws SQLException;
+    }
+
+    public static final int DEFAULT_FETCH_SIZE = 1000;
+
+    public static int task5(Connection conn, int fetchSize, RowHandler handler) throws SQLException {
+        return streamQuery(conn, 5, "SELECT * FROM get_tickets_to_sell()", fetchSize, handler);
+    }
+
+    public static int task6(Connection conn, int fetchSize, RowHandler handler) throws SQLException {
+        return streamQuery(conn, 6, "SELECT * FROM calculate_headline_act_ticket_sales()", fetchSize, handler);
+    }
+
+    public static int task7(Connection conn, int fetchSize, RowHandler handler) throws SQLException {
+        return streamQuery(conn, 7, "SELECT act_name, customer_name FROM regular_customers()", fetchSize, handler);
+    }
+
+    public static int task7(Connection conn, String actName, int fetchSize, RowHandler handler) throws SQLException {
+        return streamQuery(conn, 7, "SELECT act_name, customer_name FROM regular_customers(?)", fetchSize, handler, actName);
+    }
+
+    public static int task8(Connection conn, int fetchSize, RowHandler handler) throws SQLException {
+        return streamQuery(conn, 8, "SELECT * FROM feasible_gigs()", fetchSize, handler);
+    }
+
+    public static int task8(Connection conn, String venueName, String genre, Integer maxTickets, Integer actsPerVenue,
+                            Integer pageSize, int pageOffset, int fetchSize, RowHandler handler) throws SQLException {
+        return streamQuery(conn, 8, "SELECT * FROM feasible_gigs_page(?::VARCHAR, ?::VARCHAR, ?::INTEGER, ?::INTEGER, ?::INTEGER, ?::INTEGER)",
+            fetchSize, handler, venueName, genre, maxTickets, actsPerVenue, pageSize, pageOffset);
+    }
+
+    //task is only used to file the call under the right task in GigMetrics
+    static int streamQuery(Connection conn, int task, String query, int fetchSize, RowHandler handler, Object... params) throws SQLException {
+        boolean autoCommit = conn.getAutoCommit();
+        GigMetrics.Call call = GigMetrics.begin(task);
+        int rows = 0;
+        Exception failure = null;
+        try (PreparedStatement stmt = conn.prepareStatement(query, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+            for (int i = 0; i < params.length; i++) {
+                stmt.setObject(i + 1, params[i]);
+            }
+            //The driver only fetches in chunks (rather than reading the whole result) inside a transaction
             conn.setAutoCommit(false);
+            stmt.setFetchSize(fetchSize);
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    handler.row(rs);
+                    rows++;
+                }
+            }
+            //Inside the caller's own transaction the report is just part of their work, so only end ours
+            if (autoCommit) {
+                conn.commit();
+                call.committed();
+            }
+            return rows;
+        } catch (SQLException | RuntimeException e) {
+            failure = e;
+            call.failed(e);
+            if (autoCommit) {
+                try {
+                    conn.rollback();
+                    call.rolledBack();
+                } catch (SQLException e2) {
+                    System.err.println("Rollback error: " + e2.getMessage());
+                }
+            }
+            throw e;
+        } finally {
+            call.rows(rows);
+            call.finish();
+            restoreAutoCommit(conn, autoCommit, failure);
+        }
+    }
 
-            try (ResultSet regCustomersResult = regCustomers.executeQuery()) {
-                return convertResultToStrings(regCustomersResult);
-            } catch (SQLException e) {
-                conn.rollback();
-                throw new RuntimeException("Error executing task 7: " + e.getMessage(), e);
-            } finally {
-                conn.setAutoCommit(true);
+    //Puts autocommit back once a task is done with the connection. If the task already failed, a broken connection
+    //here is added to that exception rather than thrown in its place, so the caller still sees why the task failed.
+    private static void restoreAutoCommit(Connection conn, boolean autoCommit, Exception failure) throws SQLException {
+        try {
+            conn.setAutoCommit(autoCommit);
+        } catch (SQLException e) {
+            if (failure == null) {
+                throw e;
             }
+            failure.addSuppressed(e);
+        }
+    }
+
+    //Handler that turns every row into strings, for the String[][] versions of the reports
+    private static RowHandler collectStrings(List<String[]> rows){
+        return rs -> rows.add(rowToStrings(rs, rs.getMetaData().getColumnCount()));
+    }
+
+    private static String[] rowToStrings(ResultSet rs, int columns) throws SQLException {
+        String[] thisRow = new String[columns];
+        for(int i = 0; i < columns; i++){
+            thisRow[i] = rs.getString(i+1);
         }
-        catch (SQLException e) {
+        return thisRow;
+    }
+
+    /*
+     * Pooled versions of the tasks.
+     * Each call borrows its own connection from the pool and hands it back afterwards, so these can be
+     * called from as many threads as you like (at most pool size of them will be talking to the database at once).
+     */
+    public static String[][] task1(ConnectionPool pool, int gigID){
+        return withPooledConnection(pool, conn -> task1(conn, gigID), null);
+    }
+
+    /*
+     * task1 through a LineupCache: the line up comes from memory unless the gig's act_gig or gig rows changed
+     * since it was last read.
+     */
+    public static String[][] task1(LineupCache cache, int gigID){
+        try {
+            return cache.get(gigID);
+        } catch (SQLException e) {
             System.err.println("SQL Error: " + e.getMessage());
         }
-        return new String[0][0];
+        return null;
     }
 
-    public static String[][] task8(Connection conn){
-        try(CallableStatement economicGigs = conn.prepareCall("SELECT * FROM feasible_gigs()")){
-            conn.setAutoCommit(false);
+    public static void task2(ConnectionPool pool, String venue, String gigTitle, LocalDateTime gigStart, int adultTicketPrice, ActPerformanceDetails[] actDetails){
+        withPooledConnection(pool, conn -> {
+            task2(conn, venue, gigTitle, gigStart, adultTicketPrice, actDetails);
+            return null;
+        }, null);
+    }
 
-            try (ResultSet economicGigsResult = economicGigs.executeQuery()) {
-                return convertResultToStrings(economicGigsResult);
-            } catch (SQLException e) {
-                conn.rollback();
-                throw new RuntimeException("Error executing task 8: " + e.getMessage(), e);
-            } finally {
-                conn.setAutoCommit(true);
-            }
+    public static void task3(ConnectionPool pool, int gigid, String name, String email, String ticketType){
+        withPooledConnection(pool, conn -> {
+            task3(conn, gigid, name, email, ticketType);
+            return null;
+        }, null);
+    }
+
+    /*
+     * task3 with the in-memory inventory in front of it: bookings for sold out or cancelled gigs, or for a
+     * pricetype the gig doesn't sell, are refused without a database call. Returns whether the ticket was booked.
+     */
+    public static boolean task3(ConnectionPool pool, TicketInventory inventory, int gigid, String name, String email, String ticketType){
+        TicketInventory.Checked checked = inventory.check(gigid, ticketType);
+        if (checked.reason != null) {
+            System.err.println("SQL Error: " + checked.reason);
+            return false;
         }
-        catch (SQLException e) {
+        try {
+            pool.withConnection(conn -> {
+                bookTicket(conn, gigid, name, email, ticketType);
+                return null;
+            });
+        } catch (SQLException e) {
             System.err.println("SQL Error: " + e.getMessage());
+            inventory.recordRefusal(checked, e);
+            return false;
         }
-        return new String[0][0];
+        inventory.recordSale(checked);
+        return true;
+    }
+
+    /*
+     * Batched version of task3: the booking is written together with whatever other bookings reach the
+     * batcher at the same time, in one transaction. Returns whether this particular ticket was booked.
+     */
+    public static boolean task3(BookingBatcher batcher, int gigid, String name, String email, String ticketType){
+        try {
+            batcher.submit(gigid, name, email, ticketType).join();
+            return true;
+        } catch (CompletionException e) {
+            System.err.println("SQL Error: " + e.getCause().getMessage());
+        }
+        return false;
+    }
+
+    public static String[][] task4(ConnectionPool pool, int gigID, String actName){
+        return withPooledConnection(pool, conn -> task4(conn, gigID, actName), new String[0][0]);
+    }
+
+    public static String[][] task5(ConnectionPool pool){
+        return withPooledConnection(pool, GigSystem::task5, new String[0][0]);
+    }
+
+    public static String[][] task6(ConnectionPool pool){
+        return withPooledConnection(pool, GigSystem::task6, null);
+    }
+
+    public static String[][] task7(ConnectionPool pool){
+        return withPooledConnection(pool, GigSystem::task7, new String[0][0]);
+    }
+
+    public static String[][] task7(ConnectionPool pool, String actName){
+        return withPooledConnection(pool, conn -> task7(conn, actName), new String[0][0]);
+    }
+
+    public static String[][] task8(ConnectionPool pool){
+        return withPooledConnection(pool, GigSystem::task8, new String[0][0]);
+    }
+
+    public static String[][] task8(ConnectionPool pool, String venueName, String genre, Integer maxTickets,
+                                   Integer actsPerVenue, Integer pageSize, int pageOffset){
+        return withPooledConnection(pool, conn -> task8(conn, venueName, genre, maxTickets, actsPerVenue, pageSize, pageOffset), new String[0][0]);
+    }
+
+    /*
+     * The reports through a ReportingLane: read on the lane's own read only connections, and possibly a result
+     * from up to the lane's staleness bound ago. The arrays are shared with other callers and must not be modified.
+     */
+    public static String[][] task5(ReportingLane lane){
+        return withReportingLane(lane::task5, new String[0][0]);
+    }
+
+    public static String[][] task6(ReportingLane lane){
+        return withReportingLane(lane::task6, null);
+    }
+
+    public static String[][] task7(ReportingLane lane){
+        return withReportingLane(() -> lane.task7(null), new String[0][0]);
+    }
+
+    public static String[][] task7(ReportingLane lane, String actName){
+        return withReportingLane(() -> lane.task7(actName), new String[0][0]);
+    }
+
+    public static String[][] task8(ReportingLane lane){
+        return withReportingLane(lane::task8, new String[0][0]);
+    }
+
+    public static String[][] task8(ReportingLane lane, String venueName, String genre, Integer maxTickets,
+                                   Integer actsPerVenue, Integer pageSize, int pageOffset){
+        return withReportingLane(() -> lane.task8(venueName, genre, maxTickets, actsPerVenue, pageSize, pageOffset), new String[0][0]);
+    }
+
+    private interface LaneReport {
+        ReportingLane.Report get() throws SQLException;
+    }
+
+    private static String[][] withReportingLane(LaneReport report, String[][] onError){
+        try {
+            return report.get().getRows();
+        } catch (SQLException e) {
+            System.err.println("SQL Error: " + e.getMessage());
+        }
+        return onError;
+    }
+
+    //Runs a task with a connection from the pool, returning onError if no connection could be obtained
+    private static <T> T withPooledConnection(ConnectionPool pool, ConnectionPool.ConnectionWork<T> work, T onError){
+        try {
+            return pool.withConnection(work);
+        } catch (SQLException e) {
+            System.err.println("SQL Error: " + e.getMessage());
+        }
+        return onError;
     }
 
     /**
@@ -515,25 +900,16 @@ public static String[][] task6(Connection conn) {
     }
 
     public static String[][] convertResultToStrings(ResultSet rs){
-        Vector<String[]> output = null;
         String[][] out = null;
+        long started = System.nanoTime();
         try {
             int columns = rs.getMetaData().getColumnCount();
-            output = new Vector<String[]>();
-            int rows = 0;
+            List<String[]> output = new ArrayList<>();
             while(rs.next()){
-                String[] thisRow = new String[columns];
-                for(int i = 0; i < columns; i++){
-                    thisRow[i] = rs.getString(i+1);
-                }
-                output.add(thisRow);
-                rows++;
-            }
-            // System.out.println(rows + " rows and " + columns + " columns");
-            out = new String[rows][columns];
-            for(int i = 0; i < rows; i++){
-                out[i] = output.get(i);
+                output.add(rowToStrings(rs, columns));
             }
+            out = output.toArray(new String[0][]);
+            GigMetrics.converted(started, out.length);
         } catch (Exception e) {
             e.printStackTrace();
         }
@@ -0,0 +1,298 @@
+import java.lang.management.ManagementFactory;
+import java.sql.SQLException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.ObjectName;
+
+/**
+ * Read-through cache of task1 line ups by gigID, with room for a fixed number of gigs.
+ *
+ * A line up only changes when act_gig or gig rows for that gig change, and every such change is announced on the
+ * gig_changes channel once it commits (see notify_gig_change() in schema.sql). Register the cache with a
+ * GigChangeFeed and the entry is dropped as soon as the announcement arrives, whichever node made the change.
+ * If the feed loses its connection the whole cache is cleared, since announcements may have been missed.
+ *
+ * When full, the CLOCK policy picks what to evict: a hit marks the entry, and the eviction hand skips (and
+ * unmarks) marked entries, so gigs that keep being asked for stay in while one-off lookups go first.
+ *
+ * A hit is a few array reads with no locks and no allocation, and returns the cached array itself, which
+ * callers must not modify. Misses, inserts and invalidations take a lock, but they are rare.
+ */
+public class LineupCache implements GigChangeFeed.Listener, LineupCacheMXBean {
+
+    //Immutable apart from the CLOCK mark
+    private static final class Entry {
+        final int gigID;
+        final String[][] lineup;
+        volatile boolean referenced;
+
+        Entry(int gigID, String[][] lineup) {
+            this.gigID = gigID;
+            this.lineup = lineup;
+        }
+    }
+
+    //Marks a slot whose entry was removed, so lookups keep probing past it
+    private static final Entry REMOVED = new Entry(Integer.MIN_VALUE, null);
+
+    private final ConnectionPool pool;
+    private final int maxGigs;
+    private final Object writeLock = new Object();
+    //Open addressing with linear probing. Replaced (never resized in place) when it fills up with REMOVED slots.
+    private volatile AtomicReferenceArray<Entry> table;
+    //Guarded by writeLock
+    private int live;
+    private int removed;
+    private int hand;
+
+    //Bumped by every invalidation, so a load that raced with one knows not to cache what it read
+    private final AtomicLong invalidationCount = new AtomicLong();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder invalidations = new LongAdder();
+
+    public LineupCache(ConnectionPool pool, int maxGigs) {
+        if (maxGigs <= 0) {
+            throw new IllegalArgumentException("Cache size must be at least 1");
+        }
+        this.pool = pool;
+        this.maxGigs = maxGigs;
+        this.table = new AtomicReferenceArray<>(tableSize(maxGigs));
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName("GigSystem:type=LineupCache"));
+        } catch (Exception e) {
+            //Only the first cache in a JVM is visible over JMX, the others still work
+        }
+    }
+
+    /**
+     * The line up for the gig, from the cache or else from task1 (which then fills the cache).
+     * @return The same rows task1 gives, or null if it could not be read
+     */
+    public String[][] get(int gigID) throws SQLException {
+        Entry entry = find(table, gigID);
+        if (entry != null) {
+            hits.increment();
+            if (!entry.referenced) {
+                entry.referenced = true;
+            }
+            return entry.lineup;
+        }
+        misses.increment();
+        long seen = invalidationCount.get();
+        String[][] lineup = pool.withConnection(conn -> GigSystem.task1(conn, gigID));
+        if (lineup != null) {
+            put(gigID, lineup, seen);
+        }
+        return lineup;
+    }
+
+    /**
+     * Drops the gig's line up, e.g. straight after this node changed it and before the feed has caught up.
+     */
+    public void invalidate(int gigID) {
+        synchronized (writeLock) {
+            invalidationCount.incrementAndGet();
+            AtomicReferenceArray<Entry> current = table;
+            int slot = slotOf(current, gigID);
+            if (slot >= 0) {
+                current.set(slot, REMOVED);
+                live--;
+                removed++;
+                invalidations.increment();
+            }
+        }
+    }
+
+    @Override
+    public void clear() {
+        synchronized (writeLock) {
+            invalidationCount.incrementAndGet();
+            table = new AtomicReferenceArray<>(tableSize(maxGigs));
+            invalidations.add(live);
+            live = 0;
+            removed = 0;
+            hand = 0;
+        }
+    }
+
+    @Override
+    public void gigChanged(String table, int gigID) {
+        //gig_ticket and gig_sold changes don't touch the line up
+        if (table.equals("act_gig") || table.equals("gig")) {
+            invalidate(gigID);
+        }
+    }
+
+    @Override
+    public void resync() {
+        clear();
+    }
+
+    private void put(int gigID, String[][] lineup, long seen) {
+        synchronized (writeLock) {
+            //An invalidation since we started reading might be for this gig, and what we read could be older than it
+            if (invalidationCount.get() != seen) {
+                return;
+            }
+            AtomicReferenceArray<Entry> current = table;
+            if (slotOf(current, gigID) >= 0) {
+                //Another thread loaded it first
+                return;
+            }
+            if (live >= maxGigs) {
+                evictOne(current);
+            }
+            if (live + removed + 1 > current.length() * 3 / 4) {
+                current = rebuild(current);
+            }
+            int mask = current.length() - 1;
+            int slot = hash(gigID) & mask;
+            while (current.get(slot) != null && current.get(slot) != REMOVED) {
+                slot = (slot + 1) & mask;
+            }
+            if (current.get(slot) == REMOVED) {
+                removed--;
+            }
+            current.set(slot, new Entry(gigID, lineup));
+            live++;
+        }
+    }
+
+    //CLOCK: go round the table, giving marked entries a second chance, until an unmarked one turns up
+    private void evictOne(AtomicReferenceArray<Entry> current) {
+        int length = current.length();
+        for (int step = 0; step < 2 * length; step++) {
+            int slot = hand;
+            hand = (hand + 1) & (length - 1);
+            Entry entry = current.get(slot);
+            if (entry == null || entry == REMOVED) {
+                continue;
+            }
+            if (entry.referenced) {
+                entry.referenced = false;
+                continue;
+            }
+            current.set(slot, REMOVED);
+            live--;
+            removed++;
+            evictions.increment();
+            return;
+        }
+    }
+
+    //Copies the live entries into a fresh table, dropping the REMOVED markers
+    private AtomicReferenceArray<Entry> rebuild(AtomicReferenceArray<Entry> current) {
+        AtomicReferenceArray<Entry> fresh = new AtomicReferenceArray<>(current.length());
+        int mask = fresh.length() - 1;
+        for (int i = 0; i < current.length(); i++) {
+            Entry entry = current.get(i);
+            if (entry != null && entry != REMOVED) {
+                int slot = hash(entry.gigID) & mask;
+                while (fresh.get(slot) != null) {
+                    slot = (slot + 1) & mask;
+                }
+                fresh.set(slot, entry);
+            }
+        }
+        removed = 0;
+        table = fresh;
+        return fresh;
+    }
+
+    private static Entry find(AtomicReferenceArray<Entry> table, int gigID) {
+        int mask = table.length() - 1;
+        int slot = hash(gigID) & mask;
+        for (int probes = 0; probes <= mask; probes++) {
+            Entry entry = table.get(slot);
+            if (entry == null) {
+                return null;
+            }
+            if (entry.gigID == gigID) {
+                return entry;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return null;
+    }
+
+    private static int slotOf(AtomicReferenceArray<Entry> table, int gigID) {
+        int mask = table.length() - 1;
+        int slot = hash(gigID) & mask;
+        for (int probes = 0; probes <= mask; probes++) {
+            Entry entry = table.get(slot);
+            if (entry == null) {
+                return -1;
+            }
+            if (entry.gigID == gigID) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    //gigIDs are consecutive, so spread them before masking
+    private static int hash(int gigID) {
+        int h = gigID * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    //At least twice the entries, so probe runs stay short
+    private static int tableSize(int maxGigs) {
+        return Integer.highestOneBit(Math.max(2, maxGigs) * 2 - 1) << 1;
+    }
+
+    // ----- Statistics, also over JMX as GigSystem:type=LineupCache -----
+
+    @Override
+    public int getSize() {
+        synchronized (writeLock) {
+            return live;
+        }
+    }
+
+    @Override
+    public int getMaxSize() {
+        return maxGigs;
+    }
+
+    @Override
+    public long getHits() {
+        return hits.sum();
+    }
+
+    @Override
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    @Override
+    public double getHitRate() {
+        long h = hits.sum();
+        long total = h + misses.sum();
+        return total == 0 ? 0 : h / (double) total;
+    }
+
+    @Override
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    @Override
+    public long getInvalidations() {
+        return invalidations.sum();
+    }
+
+    @Override
+    public void resetStatistics() {
+        hits.reset();
+        misses.reset();
+        evictions.reset();
+        invalidations.reset();
+    }
+}
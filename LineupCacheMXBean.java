@@ -0,0 +1,14 @@
+/**
+ * What LineupCache shows over JMX, registered as GigSystem:type=LineupCache.
+ */
+public interface LineupCacheMXBean {
+    int getSize();
+    int getMaxSize();
+    long getHits();
+    long getMisses();
+    double getHitRate();
+    long getEvictions();
+    long getInvalidations();
+    void clear();
+    void resetStatistics();
+}
@@ -0,0 +1,639 @@
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Works out the start times for a gig's line up so that it keeps every rule, then organises it through task2.
+ *
+ * Given a venue, a date, the acts (with fees and set lengths) and which of them headlines (plays last), it looks
+ * for a gig start and an order and changeovers that satisfy:
+ *   acts one after another with at most 20 minutes between them, the first at the gig start (Rules 1, 7, 8)
+ *   each act once, for no more than 90 minutes (Rules 3 and 4)
+ *   60 minutes either side of the acts' other gigs, 180 around the venue's other gigs (Rules 2, 5, 6)
+ *   rock and pop finished by 11pm and everything by 1am (Rule 11), nothing before 9am (Rule 12)
+ *
+ * Candidate start times (every 5 minutes, nearest the preferred start first) are split across a ForkJoinPool.
+ * For each start a depth-first search tries the next act and changeover, cutting a branch as soon as an act is
+ * busy, the acts left can't finish in time, or the venue can't fit even the shortest possible gig. Branches already
+ * known to fail (same acts placed, same time reached, no more room before the venue's next gig) are remembered across
+ * all the starts, and a start is given up on after NODE_BUDGET steps. Once some start has a line up, starts further from the preferred one stop searching.
+ * The answer is checked with LineupValidator before it is sent.
+ *
+ * planSeason() plans many gigs in a row, each one avoiding the ones planned before it, and then organises them
+ * all through task2 in parallel, on threads of their own (one per pooled connection) rather than the ForkJoinPool,
+ * since each of them blocks on the database.
+ */
+public class LineupScheduler {
+
+    /**
+     * An act to place: who, for how much and for how many minutes.
+     */
+    public static final class Act {
+        public final int actID;
+        public final int fee;
+        public final int duration;
+
+        public Act(int actID, int fee, int duration) {
+            this.actID = actID;
+            this.fee = fee;
+            this.duration = duration;
+        }
+    }
+
+    /**
+     * One gig to plan. headliner is the actID of the act that plays last, and must be one of acts.
+     */
+    public static final class GigRequest {
+        public final String venue;
+        public final String title;
+        public final LocalDate date;
+        public final Act[] acts;
+        public final int headliner;
+        public final int adultTicketPrice;
+        public final LocalTime preferredStart;
+
+        public GigRequest(String venue, String title, LocalDate date, Act[] acts, int headliner, int adultTicketPrice,
+                          LocalTime preferredStart) {
+            this.venue = venue;
+            this.title = title;
+            this.date = date;
+            this.acts = acts;
+            this.headliner = headliner;
+            this.adultTicketPrice = adultTicketPrice;
+            this.preferredStart = preferredStart;
+        }
+
+        public GigRequest(String venue, String title, LocalDate date, Act[] acts, int headliner, int adultTicketPrice) {
+            this(venue, title, date, acts, headliner, adultTicketPrice, LocalTime.of(19, 0));
+        }
+    }
+
+    /**
+     * What became of a request: the line up found (null if none was), the new gigID once organised (0 before,
+     * or if task2 refused it), and why not when something went wrong.
+     */
+    public static final class Result {
+        public final GigRequest request;
+        public final ActPerformanceDetails[] lineup;
+        public volatile int gigID;
+        public volatile String problem;
+
+        Result(GigRequest request, ActPerformanceDetails[] lineup, String problem) {
+            this.request = request;
+            this.lineup = lineup;
+            this.problem = problem;
+        }
+    }
+
+    private static final int STEP = 5;
+    private static final int MAX_GAP = 20;
+    private static final int MAX_SET = 90;
+    private static final int EARLIEST_START = 9 * 60;
+    private static final int ROCK_POP_END = 23 * 60;
+    private static final int LATEST_END = 25 * 60;
+    static final int NODE_BUDGET = 200_000;
+
+    private final LineupValidator validator;
+    private final ConnectionPool pool;
+    private final ForkJoinPool forkJoin;
+
+    public LineupScheduler(LineupValidator validator, ConnectionPool pool, ForkJoinPool forkJoin) {
+        this.validator = validator;
+        this.pool = pool;
+        this.forkJoin = forkJoin;
+    }
+
+    public LineupScheduler(LineupValidator validator, ConnectionPool pool) {
+        this(validator, pool, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Finds a line up for the request without organising it.
+     */
+    public Result plan(GigRequest request) throws SQLException {
+        return plan(request, new Planned());
+    }
+
+    /**
+     * Finds a line up and organises the gig through task2.
+     * @return The result, with gigID set if the gig was organised
+     */
+    public Result organise(GigRequest request) throws SQLException {
+        Result result = plan(request);
+        if (result.lineup != null) {
+            commit(result);
+            if (result.gigID != 0) {
+                validator.refresh(result.gigID);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Plans each request in turn, avoiding the gigs planned before it, then organises all the ones that could be
+     * planned through task2, as many at once as the pool allows.
+     * @return One result per request, in the same order
+     */
+    public List<Result> planSeason(List<GigRequest> requests) throws SQLException {
+        Planned planned = new Planned();
+        List<Result> results = new ArrayList<>();
+        for (GigRequest request : requests) {
+            Result result = plan(request, planned);
+            if (result.lineup != null) {
+                planned.add(validator.venueID(request.venue), result.lineup);
+            }
+            results.add(result);
+        }
+        //The plans don't clash with each other, so they can go to the database side by side. The commits spend their
+        //time waiting on JDBC, so they get their own threads, as many as the pool has connections, instead of
+        //tying up the ForkJoinPool the searches run on.
+        List<Result> toCommit = new ArrayList<>();
+        for (Result result : results) {
+            if (result.lineup != null) {
+                toCommit.add(result);
+            }
+        }
+        if (!toCommit.isEmpty()) {
+            commitAll(toCommit);
+        }
+        BitSet organised = new BitSet();
+        for (Result result : results) {
+            if (result.gigID != 0) {
+                organised.set(result.gigID);
+            }
+        }
+        if (!organised.isEmpty()) {
+            validator.schedule().refresh(organised);
+        }
+        return results;
+    }
+
+    private void commitAll(List<Result> toCommit) {
+        ExecutorService committers = Executors.newFixedThreadPool(Math.min(pool.getMaxSize(), toCommit.size()), r -> {
+            Thread thread = new Thread(r, "season-commit");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            List<Future<?>> commits = new ArrayList<>();
+            for (Result result : toCommit) {
+                commits.add(committers.submit(() -> commit(result)));
+            }
+            for (int i = 0; i < commits.size(); i++) {
+                try {
+                    commits.get(i).get();
+                } catch (ExecutionException e) {
+                    //commit() records its own failures, this is only an Error getting out
+                    toCommit.get(i).problem = String.valueOf(e.getCause());
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            for (Result result : toCommit) {
+                if (result.gigID == 0 && result.problem == null) {
+                    result.problem = "Interrupted before it was organised";
+                }
+            }
+        } finally {
+            committers.shutdownNow();
+        }
+    }
+
+    private void commit(Result result) {
+        GigRequest request = result.request;
+        try {
+            result.gigID = pool.withConnection(conn -> GigSystem.organiseGig(conn, request.venue, request.title,
+                result.lineup[0].getOnTime(), request.adultTicketPrice, result.lineup));
+        } catch (SQLException e) {
+            result.problem = e.getMessage();
+        } catch (RuntimeException e) {
+            //One act's bad input mustn't stop the rest of the season being organised
+            result.problem = String.valueOf(e);
+        }
+    }
+
+    private Result plan(GigRequest request, Planned planned) throws SQLException {
+        Integer venueID = validator.venueID(request.venue);
+        if (venueID == null) {
+            return new Result(request, null, "No venue called " + request.venue);
+        }
+        int n = request.acts.length;
+        if (n == 0 || n > 32) {
+            return new Result(request, null, "A line up needs between 1 and 32 acts");
+        }
+        //The headliner goes last in these arrays, the rest keep their order
+        int[] actID = new int[n];
+        int[] duration = new int[n];
+        boolean[] rock = new boolean[n];
+        Act[] acts = new Act[n];
+        int next = 0;
+        for (Act act : request.acts) {
+            if (act.actID == request.headliner && acts[n - 1] == null) {
+                acts[n - 1] = act;
+            } else if (next == n - 1) {
+                return new Result(request, null, "The headliner " + request.headliner + " isn't one of the acts");
+            } else {
+                acts[next++] = act;
+            }
+        }
+        for (int i = 0; i < n; i++) {
+            actID[i] = acts[i].actID;
+            duration[i] = acts[i].duration;
+            rock[i] = validator.isRockOrPop(actID[i]);
+            if (!validator.hasAct(actID[i])) {
+                return new Result(request, null, "No act with ID " + actID[i]);
+            }
+            if (duration[i] <= 0 || duration[i] > MAX_SET) {
+                return new Result(request, null, "Act " + actID[i] + " can't play for " + duration[i] + " minutes (Rule 4)");
+            }
+            for (int j = 0; j < i; j++) {
+                if (actID[j] == actID[i]) {
+                    return new Result(request, null, "Act " + actID[i] + " is in the line up twice");
+                }
+            }
+        }
+
+        Search search = new Search(validator.schedule().snapshot(), planned, venueID,
+            ScheduleIndex.minute(request.date), actID, duration, rock);
+        int[] candidates = search.candidates(request.preferredStart.toSecondOfDay() / 60);
+        if (candidates.length == 0) {
+            return new Result(request, null, "The acts can't fit between 9am and their latest finish");
+        }
+        forkJoin.invoke(new StartTask(search, candidates, 0, candidates.length));
+        if (search.bestStarts == null) {
+            return new Result(request, null, search.gaveUp.get() > 0
+                ? "No line up found (gave up on " + search.gaveUp.get() + " of " + candidates.length + " start times)"
+                : "No line up keeps every rule on that day");
+        }
+
+        Integer[] order = new Integer[n];
+        for (int i = 0; i < n; i++) {
+            order[i] = i;
+        }
+        int[] starts = search.bestStarts;
+        Arrays.sort(order, (a, b) -> Integer.compare(starts[a], starts[b]));
+        ActPerformanceDetails[] lineup = new ActPerformanceDetails[n];
+        for (int k = 0; k < n; k++) {
+            Act act = acts[order[k]];
+            lineup[k] = new ActPerformanceDetails(act.actID, act.fee, ScheduleIndex.time(starts[order[k]]), act.duration);
+        }
+        //A second opinion from the rules as the triggers see them
+        List<LineupValidator.Violation> violations = validator.validate(request.venue, lineup[0].getOnTime(), lineup);
+        if (!violations.isEmpty()) {
+            return new Result(request, null, "The line up found breaks " + violations);
+        }
+        return new Result(request, lineup, null);
+    }
+
+    /*
+     * One request's search, shared by the tasks trying its start times.
+     */
+    private static final class Search {
+        final ScheduleIndex.Snapshot snapshot;
+        final Planned planned;
+        final int venueID;
+        final int day;
+        final int[] actID;
+        final int[] duration;
+        final boolean[] rock;
+        final int n;
+        //Latest each act may finish
+        final int[] limit;
+        //Non-headliners, rock and pop first (they have to finish earliest), then longest first
+        final int[] tryOrder;
+        //Minutes of music
+        final int total;
+        //Acts placed and time reached (placed << 16 | minutes into the day) that led nowhere, with the latest the gig
+        //could end at the time. Which start led there doesn't matter beyond that, so every task shares them.
+        final ConcurrentHashMap<Long, Integer> failed = new ConcurrentHashMap<>();
+        //Rank of the best start found so far, tasks for worse starts stop
+        final AtomicInteger bestRank = new AtomicInteger(Integer.MAX_VALUE);
+        final AtomicInteger gaveUp = new AtomicInteger();
+        volatile int[] bestStarts;
+
+        Search(ScheduleIndex.Snapshot snapshot, Planned planned, int venueID, int day, int[] actID, int[] duration, boolean[] rock) {
+            this.snapshot = snapshot;
+            this.planned = planned;
+            this.venueID = venueID;
+            this.day = day;
+            this.actID = actID;
+            this.duration = duration;
+            this.rock = rock;
+            this.n = actID.length;
+            this.limit = new int[n];
+            for (int i = 0; i < n; i++) {
+                limit[i] = day + (rock[i] ? ROCK_POP_END : LATEST_END);
+            }
+            Integer[] order = new Integer[n - 1];
+            for (int i = 0; i < n - 1; i++) {
+                order[i] = i;
+            }
+            Arrays.sort(order, (a, b) -> rock[a] != rock[b] ? (rock[a] ? -1 : 1) : Integer.compare(duration[b], duration[a]));
+            tryOrder = new int[n - 1];
+            for (int i = 0; i < n - 1; i++) {
+                tryOrder[i] = order[i];
+            }
+            int sum = 0;
+            for (int d : duration) {
+                sum += d;
+            }
+            total = sum;
+        }
+
+        //Every STEP minutes from 9am to the last start that could still finish in time, nearest preferred first
+        int[] candidates(int preferredMinute) {
+            int latest = limit[n - 1] - total;
+            List<Integer> starts = new ArrayList<>();
+            for (int minute = EARLIEST_START; day + minute <= latest; minute += STEP) {
+                starts.add(minute);
+            }
+            starts.sort((a, b) -> Math.abs(a - preferredMinute) != Math.abs(b - preferredMinute)
+                ? Integer.compare(Math.abs(a - preferredMinute), Math.abs(b - preferredMinute))
+                : Integer.compare(a, b));
+            int[] out = new int[starts.size()];
+            for (int i = 0; i < out.length; i++) {
+                out[i] = day + starts.get(i);
+            }
+            return out;
+        }
+
+        boolean actFree(int i, int start) {
+            return snapshot.isActFree(actID[i], start, duration[i]) && planned.actFree(actID[i], start, duration[i]);
+        }
+
+        //Earliest start at or after from that is clear of the act's other gigs, in the database and planned
+        int nextActSlot(int i, int from) {
+            int start = from;
+            while (true) {
+                int free = snapshot.nextFreeActSlot(actID[i], start, duration[i]);
+                start = planned.nextActSlot(actID[i], free, duration[i]);
+                if (start == free) {
+                    return start;
+                }
+            }
+        }
+
+        boolean venueFree(int start, int length) {
+            return snapshot.isVenueFree(venueID, start, length) && planned.venueFree(venueID, start, length);
+        }
+
+        //Latest a gig starting then can end, for the headliner and the venue's next gig (gigStart if it can't start)
+        int latestGigEnd(int gigStart) {
+            int lo = 0;
+            int hi = limit[n - 1] - gigStart;
+            //A longer gig only clashes with more, so find the longest that doesn't
+            while (lo < hi) {
+                int length = (lo + hi + 1) >>> 1;
+                if (venueFree(gigStart, length)) {
+                    lo = length;
+                } else {
+                    hi = length - 1;
+                }
+            }
+            return gigStart + lo;
+        }
+
+        synchronized void found(int rank, int[] starts) {
+            if (rank < bestRank.get()) {
+                bestRank.set(rank);
+                bestStarts = starts.clone();
+            }
+        }
+    }
+
+    /*
+     * Tries candidates[from, to), splitting in half until there is one start each.
+     */
+    private static final class StartTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Search search;
+        private final int[] candidates;
+        private final int from;
+        private final int to;
+
+        StartTask(Search search, int[] candidates, int from, int to) {
+            this.search = search;
+            this.candidates = candidates;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (from >= search.bestRank.get()) {
+                return;
+            }
+            if (to - from > 1) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new StartTask(search, candidates, from, middle), new StartTask(search, candidates, middle, to));
+                return;
+            }
+            Placement placement = new Placement(search, from, candidates[from]);
+            int rockTotal = 0;
+            for (int i = 0; i < search.n - 1; i++) {
+                rockTotal += search.rock[i] ? search.duration[i] : 0;
+            }
+            try {
+                if (placement.place(0, candidates[from], 0, search.total - search.duration[search.n - 1], rockTotal)) {
+                    search.found(from, placement.starts);
+                }
+            } catch (GiveUp e) {
+                if (e.overBudget) {
+                    search.gaveUp.incrementAndGet();
+                }
+            }
+        }
+    }
+
+    private static final class GiveUp extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        final boolean overBudget;
+
+        GiveUp(boolean overBudget) {
+            super(null, null, false, false);
+            this.overBudget = overBudget;
+        }
+    }
+
+    /*
+     * The depth-first search for one gig start.
+     */
+    private static final class Placement {
+        private final Search search;
+        private final int rank;
+        //Latest the gig can end from this start
+        private final int cap;
+        final int[] starts;
+        private int steps;
+
+        Placement(Search search, int rank, int gigStart) {
+            this.search = search;
+            this.rank = rank;
+            this.cap = search.latestGigEnd(gigStart);
+            this.starts = new int[search.n];
+        }
+
+        /*
+         * Places the acts not in placed (a bit per non-headliner), the next no earlier than time.
+         * remaining and remainingRock are the minutes still to play, in all and by rock and pop acts.
+         */
+        boolean place(int depth, int time, int placed, int remaining, int remainingRock) {
+            if (++steps > NODE_BUDGET) {
+                throw new GiveUp(true);
+            }
+            if ((steps & 255) == 0 && rank > search.bestRank.get()) {
+                throw new GiveUp(false);
+            }
+            Search s = search;
+            int headliner = s.n - 1;
+            int shortestEnd = time + remaining + s.duration[headliner];
+            if (shortestEnd > cap || time + remainingRock > s.day + ROCK_POP_END) {
+                return false;
+            }
+            long key = ((long) placed << 16) | (time - s.day);
+            Integer failedUnder = s.failed.get(key);
+            if (failedUnder != null && failedUnder >= cap) {
+                return false;
+            }
+            //Every act still to place needs a free slot before the gig has to be over
+            int latestEnd = Math.min(cap, shortestEnd + MAX_GAP * (headliner - depth + 1));
+            boolean fits = s.nextActSlot(headliner, time + remaining) + s.duration[headliner] <= latestEnd;
+            for (int i = 0; fits && i < headliner; i++) {
+                fits = (placed & (1 << i)) != 0
+                    || s.nextActSlot(i, time) + s.duration[i] <= Math.min(s.limit[i], latestEnd - s.duration[headliner]);
+            }
+            if (!fits) {
+                s.failed.merge(key, cap, Math::max);
+                return false;
+            }
+            int maxGap = depth == 0 ? 0 : MAX_GAP;
+            if (depth == headliner) {
+                for (int gap = 0; gap <= maxGap; gap += STEP) {
+                    int start = time + gap;
+                    int end = start + s.duration[headliner];
+                    if (end > cap) {
+                        break;
+                    }
+                    if (s.actFree(headliner, start)) {
+                        starts[headliner] = start;
+                        return true;
+                    }
+                }
+            } else {
+                for (int i : s.tryOrder) {
+                    if ((placed & (1 << i)) != 0) {
+                        continue;
+                    }
+                    for (int gap = 0; gap <= maxGap; gap += STEP) {
+                        int start = time + gap;
+                        int end = start + s.duration[i];
+                        if (end > s.limit[i]) {
+                            break;
+                        }
+                        if (!s.actFree(i, start)) {
+                            continue;
+                        }
+                        starts[i] = start;
+                        if (place(depth + 1, end, placed | (1 << i), remaining - s.duration[i],
+                                remainingRock - (s.rock[i] ? s.duration[i] : 0))) {
+                            return true;
+                        }
+                    }
+                }
+            }
+            s.failed.merge(key, cap, Math::max);
+            return false;
+        }
+    }
+
+    /*
+     * Gigs planned in this season but not in the database yet. Only changed between searches.
+     */
+    private static final class Planned {
+        //start, end pairs per act and per venue
+        private final Map<Integer, int[]> acts = new HashMap<>();
+        private final Map<Integer, int[]> venues = new HashMap<>();
+
+        void add(int venueID, ActPerformanceDetails[] lineup) {
+            int gigStart = Integer.MAX_VALUE;
+            int gigEnd = Integer.MIN_VALUE;
+            for (ActPerformanceDetails act : lineup) {
+                int start = ScheduleIndex.minute(act.getOnTime());
+                int end = start + act.getDuration();
+                append(acts, act.getActID(), start, end);
+                gigStart = Math.min(gigStart, start);
+                gigEnd = Math.max(gigEnd, end);
+            }
+            append(venues, venueID, gigStart, gigEnd);
+        }
+
+        private static void append(Map<Integer, int[]> intervals, int key, int start, int end) {
+            int[] old = intervals.get(key);
+            int[] grown = old == null ? new int[2] : Arrays.copyOf(old, old.length + 2);
+            grown[grown.length - 2] = start;
+            grown[grown.length - 1] = end;
+            intervals.put(key, grown);
+        }
+
+        //Same gap as ScheduleIndex.isActFree
+        boolean actFree(int actID, int start, int duration) {
+            int[] intervals = acts.get(actID);
+            if (intervals == null) {
+                return true;
+            }
+            for (int k = 0; k < intervals.length; k += 2) {
+                if (intervals[k] < start + duration + ScheduleIndex.TRAVEL_GAP && intervals[k + 1] + ScheduleIndex.TRAVEL_GAP > start) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        //Earliest start at or after from that is free of the act's planned gigs
+        int nextActSlot(int actID, int from, int duration) {
+            int[] intervals = acts.get(actID);
+            int start = from;
+            boolean moved = intervals != null;
+            while (moved) {
+                moved = false;
+                for (int k = 0; k < intervals.length; k += 2) {
+                    if (intervals[k] < start + duration + ScheduleIndex.TRAVEL_GAP && intervals[k + 1] + ScheduleIndex.TRAVEL_GAP > start) {
+                        start = intervals[k + 1] + ScheduleIndex.TRAVEL_GAP;
+                        moved = true;
+                    }
+                }
+            }
+            return start;
+        }
+
+        //Same gap as ScheduleIndex.isVenueFree
+        boolean venueFree(int venueID, int start, int length) {
+            int[] intervals = venues.get(venueID);
+            if (intervals == null) {
+                return true;
+            }
+            for (int k = 0; k < intervals.length; k += 2) {
+                if (start <= intervals[k + 1] + ScheduleIndex.VENUE_GAP && start + length > intervals[k] - ScheduleIndex.VENUE_GAP) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,365 @@
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Checks a task2 line up against Rules 1 to 8, 11 and 12 before it is sent, and reports every problem at once.
+ *
+ * The triggers stop at the first broken rule with one RAISE EXCEPTION, so fixing a long festival line up through
+ * task2 takes one insert-and-rollback per mistake. This works through the whole line up in memory instead:
+ *   Rules 1, 3, 4      the new line up sorted by start and swept once, and grouped by act
+ *   Rules 2, 5, 6      binary searches in a ScheduleIndex for the act's other gigs and the venue's other gigs
+ *   Rules 7, 8         replayed in the order task2 inserts the rows, since those triggers only see the rows already in
+ *                      (Rule 7 runs AFTER each insert), so an out of order line up can fail where a sorted one passes
+ *   Rules 11, 12       from the act's genre and the times alone
+ * Each check copies the trigger's own condition, quirks included, so a line up that passes here will get through
+ * the triggers as long as the schedule hasn't changed since the index last saw it. The database still has the
+ * final say. Rule 6 is checked even though its trigger only runs when a gig row is updated, not on task2's insert.
+ *
+ * Venue names and act genres are loaded once and reloaded (at most once a second) when a line up mentions one
+ * we haven't seen.
+ */
+public class LineupValidator {
+
+    /**
+     * One broken rule. act is the position in the line up that breaks it, or -1 when it is about the gig itself.
+     * Rule 0 is used for things no rule covers, like an act that doesn't exist.
+     */
+    public static final class Violation {
+        public final int rule;
+        public final int act;
+        public final String message;
+
+        Violation(int rule, int act, String message) {
+            this.rule = rule;
+            this.act = act;
+            this.message = message;
+        }
+
+        @Override
+        public String toString() {
+            return (rule > 0 ? "RULE " + rule + " VIOLATED- " : "") + message + (act >= 0 ? " (act " + act + ")" : "");
+        }
+    }
+
+    private static final int PERFORMANCE_GAP = 20;
+    private static final int BREAK = 15;
+    private static final int MAX_SET = 90;
+    private static final int ROCK_POP_END = 23 * 60;
+    private static final int LATEST_END = 60;
+    private static final int EARLIEST_START = 9 * 60;
+
+    private final ScheduleIndex schedule;
+    private final ConnectionPool pool;
+    //Replaced whole by loadReferenceData(), never changed in place
+    private volatile Map<String, Integer> venueIDs = Collections.emptyMap();
+    private volatile byte[] actGenre = new byte[0];
+    private volatile long loadedAt;
+    private static final long RELOAD_INTERVAL = 1_000_000_000L;
+    private static final byte NO_ACT = 0;
+    private static final byte ROCK_OR_POP = 1;
+    private static final byte OTHER_GENRE = 2;
+
+    public LineupValidator(ScheduleIndex schedule, ConnectionPool pool) throws SQLException {
+        this.schedule = schedule;
+        this.pool = pool;
+        loadReferenceData();
+    }
+
+    /**
+     * Reads the venue names and act genres again.
+     */
+    public void loadReferenceData() throws SQLException {
+        pool.withConnection(conn -> {
+            Map<String, Integer> venues = new HashMap<>();
+            try (Statement stmt = conn.createStatement();
+                 ResultSet rs = stmt.executeQuery("SELECT venueID, venuename FROM venue")) {
+                while (rs.next()) {
+                    venues.put(rs.getString(2), rs.getInt(1));
+                }
+            }
+            byte[] genres = new byte[0];
+            try (Statement stmt = conn.createStatement();
+                 ResultSet rs = stmt.executeQuery("SELECT actID, genre FROM act ORDER BY actID DESC")) {
+                while (rs.next()) {
+                    int actID = rs.getInt(1);
+                    if (genres.length == 0) {
+                        genres = new byte[actID + 1];
+                    }
+                    String genre = rs.getString(2);
+                    genres[actID] = "pop".equals(genre) || "rock".equals(genre) ? ROCK_OR_POP : OTHER_GENRE;
+                }
+            }
+            venueIDs = venues;
+            actGenre = genres;
+            loadedAt = System.nanoTime();
+            return null;
+        });
+    }
+
+    /**
+     * The venue's ID, or null if there is no venue by that name.
+     */
+    Integer venueID(String venue) throws SQLException {
+        Integer venueID = venueIDs.get(venue);
+        if (venueID == null && System.nanoTime() - loadedAt > RELOAD_INTERVAL) {
+            loadReferenceData();
+            venueID = venueIDs.get(venue);
+        }
+        return venueID;
+    }
+
+    /**
+     * Whether the act exists, as far as the last load knows.
+     */
+    boolean hasAct(int actID) {
+        byte[] genres = actGenre;
+        return actID > 0 && actID < genres.length && genres[actID] != NO_ACT;
+    }
+
+    /**
+     * Whether Rule 11 holds the act to 11pm rather than 1am.
+     */
+    boolean isRockOrPop(int actID) {
+        byte[] genres = actGenre;
+        return actID > 0 && actID < genres.length && genres[actID] == ROCK_OR_POP;
+    }
+
+    ScheduleIndex schedule() {
+        return schedule;
+    }
+
+    /**
+     * Brings the schedule up to date with a gig this node just organised or changed, rather than waiting for the
+     * GigChangeFeed to announce it.
+     */
+    public void refresh(int gigID) throws SQLException {
+        BitSet changed = new BitSet();
+        changed.set(gigID);
+        schedule.refresh(changed);
+    }
+
+    /**
+     * Everything wrong with organising this gig through task2, in line up order, or an empty list if nothing is.
+     */
+    public List<Violation> validate(String venue, LocalDateTime gigStart, ActPerformanceDetails[] actDetails) throws SQLException {
+        Integer venueID = venueIDs.get(venue);
+        //At most one reload a second, so a stream of requests naming a venue that doesn't exist can't keep us busy
+        if ((venueID == null || !knowsActs(actDetails)) && System.nanoTime() - loadedAt > RELOAD_INTERVAL) {
+            loadReferenceData();
+            venueID = venueIDs.get(venue);
+        }
+        List<Violation> violations = new ArrayList<>();
+        int n = actDetails.length;
+        if (n > 0xFFFF) {
+            throw new IllegalArgumentException("A line up can have at most " + 0xFFFF + " acts");
+        }
+        int gig = ScheduleIndex.minute(gigStart);
+        int[] actID = new int[n];
+        int[] fee = new int[n];
+        int[] start = new int[n];
+        int[] end = new int[n];
+        for (int i = 0; i < n; i++) {
+            actID[i] = actDetails[i].getActID();
+            fee[i] = actDetails[i].getFee();
+            start[i] = ScheduleIndex.minute(actDetails[i].getOnTime());
+            end[i] = start[i] + actDetails[i].getDuration();
+        }
+        byte[] genres = actGenre;
+
+        //RULE 12: no gig before 9am
+        if (Math.floorMod(gig, ScheduleIndex.MINUTES_PER_DAY) < EARLIEST_START) {
+            violations.add(new Violation(12, -1, "A gig cannot start before 9am"));
+        }
+        if (venueID == null) {
+            violations.add(new Violation(0, -1, "No venue called " + venue));
+        }
+        if (n == 0) {
+            violations.add(new Violation(0, -1, "The line up is empty"));
+            return violations;
+        }
+
+        //Positions in start order (the position rides in the low bits, so ties keep line up order)
+        int[] byStart = sortedBy(start, n, null);
+        //Positions grouped by act, in start order within each act
+        int[] rank = new int[n];
+        for (int r = 0; r < n; r++) {
+            rank[byStart[r]] = r;
+        }
+        int[] byAct = sortedBy(actID, n, rank);
+
+        ScheduleIndex.Snapshot snapshot = schedule.snapshot();
+        int[] nearby = new int[3 * 16];
+        int gigEnd = Integer.MIN_VALUE;
+        int firstStart = Integer.MAX_VALUE;
+        for (int i = 0; i < n; i++) {
+            int duration = end[i] - start[i];
+            gigEnd = Math.max(gigEnd, end[i]);
+            if (actID[i] <= 0 || actID[i] >= genres.length || genres[actID[i]] == NO_ACT) {
+                violations.add(new Violation(0, i, "No act with ID " + actID[i]));
+                continue;
+            }
+
+            //RULE 8: a row with no earlier act already in must start with the gig
+            if (start[i] <= firstStart && start[i] != gig) {
+                violations.add(new Violation(8, i, "The first act in a gig must have the same start time as the gig itself."));
+            }
+            firstStart = Math.min(firstStart, start[i]);
+
+            //RULE 7: gaps either side among the rows inserted so far
+            int previousEnd = Integer.MIN_VALUE;
+            int nextStart = Integer.MAX_VALUE;
+            for (int j = 0; j < i; j++) {
+                if (start[j] < start[i]) {
+                    previousEnd = Math.max(previousEnd, end[j]);
+                } else if (start[j] > start[i]) {
+                    nextStart = Math.min(nextStart, start[j]);
+                }
+            }
+            if (previousEnd != Integer.MIN_VALUE && start[i] - previousEnd > PERFORMANCE_GAP) {
+                violations.add(new Violation(7, i, "More than 20 minutes interval before the act"));
+            }
+            if (nextStart != Integer.MAX_VALUE && nextStart - end[i] > PERFORMANCE_GAP) {
+                violations.add(new Violation(7, i, "More than 20 minutes interval after the act"));
+            }
+
+            //RULES 2 and 5 against the act's other gigs. Rule 2's trigger compares with the new act's duration
+            //at both ends, so look back that far as well as the travel gap.
+            int count = snapshot.actPerformances(actID[i], start[i] - Math.max(duration, ScheduleIndex.TRAVEL_GAP),
+                end[i] + ScheduleIndex.TRAVEL_GAP, nearby);
+            boolean rule2 = false;
+            boolean rule5 = false;
+            for (int k = 0; k < count; k++) {
+                int otherStart = nearby[3 * k];
+                int otherEnd = nearby[3 * k + 1];
+                rule2 |= otherStart < end[i] && start[i] < otherStart + duration;
+                rule5 |= (start[i] > otherStart && start[i] - ScheduleIndex.TRAVEL_GAP < otherEnd)
+                    || (start[i] < otherStart && otherStart - ScheduleIndex.TRAVEL_GAP < end[i]);
+            }
+            if (count == nearby.length / 3 && !rule5) {
+                //Ran out of room, which means there are plenty of clashes
+                rule5 = !snapshot.isActFree(actID[i], start[i], duration);
+            }
+            if (rule2) {
+                violations.add(new Violation(2, i, "An act can only perform at one gig at a time"));
+            }
+            if (rule5) {
+                violations.add(new Violation(5, i, "An act requires 60 minutes to travel to the new gig venue."));
+            }
+
+            //RULE 11: rock and pop finish by 11pm (by the clock, as the trigger compares times of day), the rest by 1am
+            int endOfDay = Math.floorMod(end[i], ScheduleIndex.MINUTES_PER_DAY);
+            if (genres[actID[i]] == ROCK_OR_POP) {
+                if (endOfDay > ROCK_POP_END) {
+                    violations.add(new Violation(11, i, "Rock and Pop acts must end by 11pm"));
+                }
+            } else if (Math.floorDiv(end[i], ScheduleIndex.MINUTES_PER_DAY) > Math.floorDiv(gig, ScheduleIndex.MINUTES_PER_DAY)
+                       && endOfDay > LATEST_END) {
+                violations.add(new Violation(11, i, "All gigs which are not rock and pop must end by 1am."));
+            }
+        }
+
+        //RULE 1: sweeping in start order, a row clashes with an earlier one of another act that hasn't ended yet.
+        //Keeping the latest end and the latest end by any other act is enough to know.
+        int latestEnd = Integer.MIN_VALUE;
+        int latestAct = 0;
+        int latestOtherEnd = Integer.MIN_VALUE;
+        boolean[] overlaps = new boolean[n];
+        for (int r = 0; r < n; r++) {
+            int i = byStart[r];
+            int clashEnd = actID[i] == latestAct ? latestOtherEnd : latestEnd;
+            if (start[i] < clashEnd && start[i] < end[i]) {
+                overlaps[i] = true;
+            }
+            if (end[i] > latestEnd) {
+                if (actID[i] != latestAct) {
+                    latestOtherEnd = latestEnd;
+                }
+                latestEnd = end[i];
+                latestAct = actID[i];
+            } else if (actID[i] != latestAct) {
+                latestOtherEnd = Math.max(latestOtherEnd, end[i]);
+            }
+        }
+
+        //RULES 3 and 4: each act's rows together. An act is in a line up a handful of times at most, so compare
+        //each pair, blaming the row inserted second as the trigger would.
+        boolean[] secondFee = new boolean[n];
+        boolean[] noBreak = new boolean[n];
+        for (int first = 0; first < n; ) {
+            int last = first;
+            while (last < n && actID[byAct[last]] == actID[byAct[first]]) {
+                last++;
+            }
+            for (int r = first; r < last; r++) {
+                int i = byAct[r];
+                noBreak[i] |= end[i] - start[i] > MAX_SET;
+                for (int q = first; q < r; q++) {
+                    int j = byAct[q];
+                    int later = Math.max(i, j);
+                    if (fee[i] != fee[j]) {
+                        secondFee[later] = true;
+                    }
+                    //j starts no later than i here
+                    if (start[i] > start[j] && start[i] - BREAK <= end[j]) {
+                        noBreak[later] = true;
+                    }
+                }
+            }
+            first = last;
+        }
+        for (int i = 0; i < n; i++) {
+            if (overlaps[i]) {
+                violations.add(new Violation(1, i, "Overlapping act"));
+            }
+            if (secondFee[i]) {
+                violations.add(new Violation(3, i, "An act can only have one fee in a single gig"));
+            }
+            if (noBreak[i]) {
+                violations.add(new Violation(4, i, "An act cannot perform for more than 90 minutes without a 15 minute break."));
+            }
+        }
+
+        //RULE 6: the whole gig against the others at the venue
+        if (venueID != null && !snapshot.isVenueFree(venueID, gig, Math.max(0, gigEnd - gig))) {
+            violations.add(new Violation(6, -1, "Overlapping gig times detected at the same venue- they must be at least 180 minutes apart too."));
+        }
+
+        violations.sort((a, b) -> a.act != b.act ? Integer.compare(a.act, b.act) : Integer.compare(a.rule, b.rule));
+        return violations;
+    }
+
+    private boolean knowsActs(ActPerformanceDetails[] actDetails) {
+        byte[] genres = actGenre;
+        for (ActPerformanceDetails details : actDetails) {
+            int actID = details.getActID();
+            if (actID <= 0 || actID >= genres.length || genres[actID] == NO_ACT) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    //Positions 0..n-1 ordered by key, then by tieBreak (or position if null), packed into longs to sort primitives
+    private static int[] sortedBy(int[] key, int n, int[] tieBreak) {
+        long[] packed = new long[n];
+        for (int i = 0; i < n; i++) {
+            long second = tieBreak == null ? i : tieBreak[i];
+            packed[i] = ((long) key[i] << 32) | (second << 16) | i;
+        }
+        Arrays.sort(packed);
+        int[] order = new int[n];
+        for (int i = 0; i < n; i++) {
+            order[i] = (int) (packed[i] & 0xFFFF);
+        }
+        return order;
+    }
+}
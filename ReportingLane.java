@@ -0,0 +1,329 @@
+import java.lang.management.ManagementFactory;
+import java.sql.Connection;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+import javax.management.ObjectName;
+
+/**
+ * Runs the reports (task5 to task8) apart from the bookings, and remembers their results for a while.
+ *
+ * The lane has its own small pool, so however many reports are asked for at once, only that many report queries
+ * use the database at the same time, and they never hold up a booking waiting for a connection. Its connections are
+ * read only and REPEATABLE READ, so each report reads one snapshot and can't write anything by mistake. The factory
+ * can point somewhere else entirely, such as a streaming replica or a copy of the database that is refreshed
+ * regularly: the reports only need the schema.sql functions and tables, and nothing in them writes.
+ *
+ * A report is read completely into memory and the transaction ends before anyone gets the rows, so a slow client
+ * doesn't keep a snapshot open on the database. The result is then handed to everyone asking for the same report
+ * (with the same parameters) until it is maxStaleMillis old, counted from when its query started. Asking for a
+ * report that is already being read waits for that query instead of starting another. So a dashboard polling every
+ * few seconds costs at most one query per report per maxStaleMillis, however many people have it open.
+ * With maxStaleMillis 0 nothing is kept and every call runs its own query.
+ *
+ * Results are shared, so callers must not modify them. At most maxReports results are kept, the oldest goes first.
+ */
+public class ReportingLane implements AutoCloseable, ReportingLaneMXBean {
+
+    /**
+     * One report's rows, as strings like the String[][] tasks give, with what the columns were called.
+     */
+    public static final class Report {
+        private final String[] columns;
+        private final boolean[] numeric;
+        private final String[][] rows;
+        private final long startedMillis;
+
+        Report(String[] columns, boolean[] numeric, String[][] rows, long startedMillis) {
+            this.columns = columns;
+            this.numeric = numeric;
+            this.rows = rows;
+            this.startedMillis = startedMillis;
+        }
+
+        //Empty if there were no rows
+        public String[] getColumns() {
+            return columns;
+        }
+
+        //Whether the column is a whole number rather than text
+        public boolean isNumeric(int column) {
+            return numeric[column];
+        }
+
+        public String[][] getRows() {
+            return rows;
+        }
+
+        //How long ago the query for these rows started
+        public long getAgeMillis() {
+            return System.currentTimeMillis() - startedMillis;
+        }
+    }
+
+    //A report being read or already read
+    private static final class Entry {
+        final long startedNanos = System.nanoTime();
+        final CompletableFuture<Report> report = new CompletableFuture<>();
+    }
+
+    public static final int DEFAULT_MAX_REPORTS = 64;
+
+    private final ConnectionPool pool;
+    private final long maxStaleNanos;
+    private final int maxReports;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder shared = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * @param factory Opens a connection for reports, to the main database or a copy of it
+     * @param poolSize The most reports that run on the database at once
+     * @param maxStaleMillis How old a result may be and still be handed out (0 to always run the query)
+     * @param maxReports The most results kept at once
+     */
+    public ReportingLane(Supplier<Connection> factory, int poolSize, long maxStaleMillis, int maxReports) {
+        if (maxStaleMillis < 0 || maxReports <= 0) {
+            throw new IllegalArgumentException("Staleness can't be negative and at least one report must be kept");
+        }
+        this.pool = new ConnectionPool(() -> readOnly(factory.get()), poolSize);
+        this.maxStaleNanos = TimeUnit.MILLISECONDS.toNanos(maxStaleMillis);
+        this.maxReports = maxReports;
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName("GigSystem:type=ReportingLane"));
+        } catch (Exception e) {
+            //Only the first lane in a JVM is visible over JMX, the others still work
+        }
+    }
+
+    public ReportingLane(Supplier<Connection> factory, int poolSize, long maxStaleMillis) {
+        this(factory, poolSize, maxStaleMillis, DEFAULT_MAX_REPORTS);
+    }
+
+    //Every transaction on the connection is then read only and REPEATABLE READ (or null if it couldn't be set up)
+    private static Connection readOnly(Connection conn) {
+        if (conn == null) {
+            return null;
+        }
+        try {
+            conn.setReadOnly(true);
+            conn.setTransactionIsolation(Connection.TRANSACTION_REPEATABLE_READ);
+            try (Statement stmt = conn.createStatement()) {
+                stmt.execute("SET application_name = 'gigsystem reports'");
+            }
+            return conn;
+        } catch (SQLException e) {
+            System.err.println("SQL Error: " + e.getMessage());
+            try {
+                conn.close();
+            } catch (SQLException e2) {
+                //Not being used anyway
+            }
+            return null;
+        }
+    }
+
+    public Report task5() throws SQLException {
+        return get("task5", (conn, handler) -> GigSystem.task5(conn, GigSystem.DEFAULT_FETCH_SIZE, handler));
+    }
+
+    public Report task6() throws SQLException {
+        return get("task6", (conn, handler) -> GigSystem.task6(conn, GigSystem.DEFAULT_FETCH_SIZE, handler));
+    }
+
+    /**
+     * @param actName Only this act's regular customers, or null for every act
+     */
+    public Report task7(String actName) throws SQLException {
+        if (actName == null) {
+            return get("task7", (conn, handler) -> GigSystem.task7(conn, GigSystem.DEFAULT_FETCH_SIZE, handler));
+        }
+        return get("task7\u0000" + actName, (conn, handler) -> GigSystem.task7(conn, actName, GigSystem.DEFAULT_FETCH_SIZE, handler));
+    }
+
+    public Report task8() throws SQLException {
+        return get("task8", (conn, handler) -> GigSystem.task8(conn, GigSystem.DEFAULT_FETCH_SIZE, handler));
+    }
+
+    /**
+     * task8 with the filters and paging of GigSystem.task8(conn, venueName, ...), each combination kept separately
+     */
+    public Report task8(String venueName, String genre, Integer maxTickets, Integer actsPerVenue, Integer pageSize,
+                        int pageOffset) throws SQLException {
+        String key = "task8\u0000" + venueName + "\u0000" + genre + "\u0000" + maxTickets + "\u0000" + actsPerVenue
+            + "\u0000" + pageSize + "\u0000" + pageOffset;
+        return get(key, (conn, handler) -> GigSystem.task8(conn, venueName, genre, maxTickets, actsPerVenue, pageSize,
+            pageOffset, GigSystem.DEFAULT_FETCH_SIZE, handler));
+    }
+
+    //One of the streaming GigSystem reports
+    private interface Query {
+        int run(Connection conn, GigSystem.RowHandler handler) throws SQLException;
+    }
+
+    private Report get(String key, Query query) throws SQLException {
+        while (true) {
+            Entry entry = entries.get(key);
+            if (entry != null && System.nanoTime() - entry.startedNanos <= maxStaleNanos) {
+                if (entry.report.isDone()) {
+                    hits.increment();
+                } else {
+                    shared.increment();
+                }
+                return await(entry);
+            }
+            //Old or missing: whoever swaps in a new entry first runs the query, anyone else arriving meanwhile waits for it
+            Entry mine = new Entry();
+            boolean won = entry == null ? entries.putIfAbsent(key, mine) == null : entries.replace(key, entry, mine);
+            if (!won) {
+                continue;
+            }
+            misses.increment();
+            if (entry == null) {
+                makeRoom();
+            }
+            try {
+                Report report = read(query);
+                mine.report.complete(report);
+                if (maxStaleNanos == 0) {
+                    entries.remove(key, mine);
+                }
+                return report;
+            } catch (SQLException | RuntimeException e) {
+                //Nothing is kept, so the next call tries again
+                entries.remove(key, mine);
+                mine.report.completeExceptionally(e);
+                throw e;
+            }
+        }
+    }
+
+    private static Report await(Entry entry) throws SQLException {
+        try {
+            return entry.report.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof SQLException) {
+                throw new SQLException(e.getCause().getMessage(), ((SQLException) e.getCause()).getSQLState(), e.getCause());
+            }
+            throw e;
+        }
+    }
+
+    //Reads the whole report on a lane connection, so the transaction is over before anyone sees a row
+    private Report read(Query query) throws SQLException {
+        long started = System.currentTimeMillis();
+        List<String[]> rows = new ArrayList<>();
+        String[][] columns = new String[1][];
+        boolean[][] numeric = new boolean[1][];
+        pool.withConnection(conn -> query.run(conn, rs -> {
+            if (columns[0] == null) {
+                ResultSetMetaData meta = rs.getMetaData();
+                columns[0] = new String[meta.getColumnCount()];
+                numeric[0] = new boolean[columns[0].length];
+                for (int i = 0; i < columns[0].length; i++) {
+                    int type = meta.getColumnType(i + 1);
+                    columns[0][i] = meta.getColumnLabel(i + 1);
+                    numeric[0][i] = type == Types.INTEGER || type == Types.BIGINT || type == Types.SMALLINT;
+                }
+            }
+            String[] row = new String[columns[0].length];
+            for (int i = 0; i < row.length; i++) {
+                row[i] = rs.getString(i + 1);
+            }
+            rows.add(row);
+        }));
+        return new Report(columns[0] == null ? new String[0] : columns[0], numeric[0] == null ? new boolean[0] : numeric[0],
+            rows.toArray(new String[0][]), started);
+    }
+
+    //Drops results that are too old to hand out, then the oldest ones until there is room for another
+    private void makeRoom() {
+        long now = System.nanoTime();
+        entries.values().removeIf(entry -> entry.report.isDone() && now - entry.startedNanos > maxStaleNanos);
+        while (entries.size() > maxReports) {
+            Entry oldest = null;
+            String oldestKey = null;
+            for (Map.Entry<String, Entry> e : entries.entrySet()) {
+                if (e.getValue().report.isDone() && (oldest == null || e.getValue().startedNanos < oldest.startedNanos)) {
+                    oldest = e.getValue();
+                    oldestKey = e.getKey();
+                }
+            }
+            if (oldest == null) {
+                //Everything is still being read
+                return;
+            }
+            entries.remove(oldestKey, oldest);
+        }
+    }
+
+    @Override
+    public void close() {
+        pool.close();
+    }
+
+    // ----- Statistics, also over JMX as GigSystem:type=ReportingLane -----
+
+    @Override
+    public int getCachedReports() {
+        return entries.size();
+    }
+
+    @Override
+    public long getMaxStaleMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(maxStaleNanos);
+    }
+
+    @Override
+    public long getHits() {
+        return hits.sum();
+    }
+
+    @Override
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    //Calls that waited for the same report being read by someone else
+    @Override
+    public long getShared() {
+        return shared.sum();
+    }
+
+    @Override
+    public double getHitRate() {
+        long served = hits.sum() + shared.sum();
+        long total = served + misses.sum();
+        return total == 0 ? 0 : served / (double) total;
+    }
+
+    @Override
+    public int getOpenConnections() {
+        return pool.getOpenConnections();
+    }
+
+    @Override
+    public void clear() {
+        entries.clear();
+    }
+
+    @Override
+    public void resetStatistics() {
+        hits.reset();
+        shared.reset();
+        misses.reset();
+    }
+}
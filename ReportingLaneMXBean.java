@@ -0,0 +1,14 @@
+/**
+ * What ReportingLane shows over JMX, registered as GigSystem:type=ReportingLane.
+ */
+public interface ReportingLaneMXBean {
+    int getCachedReports();
+    long getMaxStaleMillis();
+    long getHits();
+    long getMisses();
+    double getHitRate();
+    long getShared();
+    int getOpenConnections();
+    void clear();
+    void resetStatistics();
+}
@@ -0,0 +1,710 @@
+import java.sql.Array;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-memory copy of the schedule (act_gig and gig) for answering "when is act X free?" and "which venues have
+ * an open slot on day D?" without trying a task2 and rolling it back.
+ *
+ * Everything is kept in int arrays, column by column, in two views:
+ *   per act:   every performance (start, end, gigID), sorted by start
+ *   per venue: every gig that is going ahead (first act start, last act end, gigID), sorted by start
+ * Each view is grouped by actID / venueID with an offsets array, so finding an act's performances is two array
+ * reads and the rest is a binary search. Times are minutes since 1970-01-01 (see minute()).
+ *
+ * The checks mirror the triggers in schema.sql:
+ *   an act needs TRAVEL_GAP minutes between the end of one performance and the start of another at a different
+ *   gig (Rules 2 and 5, which count every act_gig row, even for cancelled gigs)
+ *   a venue needs more than VENUE_GAP minutes after a gig ends before the next one starts, and at least
+ *   VENUE_GAP minutes before the next one (Rule 6, cancelled gigs don't count). The range mode in
+ *   schema_ranges.sql also allows exactly VENUE_GAP after, so a slot free here is free there too.
+ * The other rules (line up gaps, closing times, ...) are not checked, so task2 still has the final say.
+ *
+ * Snapshots never change once built, so queries take no locks and allocate nothing. Register the index with a
+ * GigChangeFeed and it reloads only the gigs that changed and merges them in, re-sorting only the acts and venues
+ * they touch, a short moment after the change commits. A new venue is only seen once a gig is planned there
+ * (venues don't announce changes), or after reload().
+ */
+public class ScheduleIndex implements GigChangeFeed.Listener, AutoCloseable {
+
+    public static final int TRAVEL_GAP = 60;
+    public static final int VENUE_GAP = 180;
+    public static final int MINUTES_PER_DAY = 24 * 60;
+
+    private static final String ROWS_QUERY =
+        "SELECT g.gigID, g.venueID, g.gigstatus = 'Cancelled', ag.actID, " +
+        "FLOOR(EXTRACT(EPOCH FROM ag.ontime) / 60)::INTEGER, ag.duration " +
+        "FROM gig g LEFT JOIN act_gig ag ON ag.gigID = g.gigID ";
+
+    private final ConnectionPool pool;
+    private volatile Snapshot current = Snapshot.EMPTY;
+    //Held by reload() and refresh() from their read until the new snapshot is in, so a merge is never built from
+    //an older read than the snapshot it replaces. Queries don't take it.
+    private final Object updateLock = new Object();
+
+    //Gigs announced as changed but not merged in yet
+    private final ConcurrentLinkedQueue<Integer> pending = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean refreshScheduled = new AtomicBoolean();
+    private final ScheduledExecutorService refresher;
+    private final long refreshDelayMillis;
+
+    private final AtomicLong refreshes = new AtomicLong();
+    private final AtomicLong refreshedGigs = new AtomicLong();
+    private volatile long lastRefreshMicros;
+
+    /**
+     * @param refreshDelayMillis How long to wait after an announcement before merging, so a burst of changes
+     * (e.g. task2 inserting a whole line up) is merged at once
+     */
+    public ScheduleIndex(ConnectionPool pool, long refreshDelayMillis) {
+        this.pool = pool;
+        this.refreshDelayMillis = refreshDelayMillis;
+        this.refresher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "schedule-index");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public ScheduleIndex(ConnectionPool pool) {
+        this(pool, 20);
+    }
+
+    /**
+     * Loads the whole schedule, replacing whatever was there.
+     */
+    public void reload() throws SQLException {
+        synchronized (updateLock) {
+            reloadLocked();
+        }
+    }
+
+    private void reloadLocked() throws SQLException {
+        long started = System.nanoTime();
+        pending.clear();
+        Snapshot fresh = pool.withConnection(conn -> {
+            boolean[] venues;
+            try (Statement stmt = conn.createStatement();
+                 ResultSet rs = stmt.executeQuery("SELECT venueID FROM venue ORDER BY venueID DESC")) {
+                venues = new boolean[0];
+                while (rs.next()) {
+                    int venueID = rs.getInt(1);
+                    if (venues.length == 0) {
+                        venues = new boolean[venueID + 1];
+                    }
+                    venues[venueID] = true;
+                }
+            }
+            try (Statement stmt = conn.createStatement()) {
+                stmt.setFetchSize(10000);
+                boolean autoCommit = conn.getAutoCommit();
+                //Fetching in chunks needs a transaction
+                conn.setAutoCommit(false);
+                try (ResultSet rs = stmt.executeQuery(ROWS_QUERY + "ORDER BY g.gigID")) {
+                    return Snapshot.EMPTY.merge(null, Rows.read(rs), venues);
+                } finally {
+                    conn.commit();
+                    conn.setAutoCommit(autoCommit);
+                }
+            }
+        });
+        current = fresh;
+        refreshes.incrementAndGet();
+        lastRefreshMicros = (System.nanoTime() - started) / 1000;
+    }
+
+    /**
+     * Merges in every gig announced since the last refresh now, instead of waiting for the background refresh.
+     * Call it after changing the schedule from this node to see the change straight away.
+     */
+    public void refreshNow() throws SQLException {
+        BitSet changed = new BitSet();
+        Integer gigID;
+        while ((gigID = pending.poll()) != null) {
+            changed.set(gigID);
+        }
+        if (!changed.isEmpty()) {
+            refresh(changed);
+        }
+    }
+
+    /**
+     * Reloads the given gigs from the database and merges them in.
+     */
+    public void refresh(BitSet gigIDs) throws SQLException {
+        synchronized (updateLock) {
+            refreshLocked(gigIDs);
+        }
+    }
+
+    private void refreshLocked(BitSet gigIDs) throws SQLException {
+        long started = System.nanoTime();
+        Object[] ids = gigIDs.stream().boxed().toArray();
+        Rows rows = pool.withConnection(conn -> {
+            try (PreparedStatement stmt = conn.prepareStatement(ROWS_QUERY + "WHERE g.gigID = ANY(?) ORDER BY g.gigID")) {
+                Array array = conn.createArrayOf("integer", ids);
+                stmt.setArray(1, array);
+                try (ResultSet rs = stmt.executeQuery()) {
+                    return Rows.read(rs);
+                }
+            }
+        });
+        current = current.merge(gigIDs, rows, null);
+        refreshes.incrementAndGet();
+        refreshedGigs.addAndGet(ids.length);
+        lastRefreshMicros = (System.nanoTime() - started) / 1000;
+    }
+
+    @Override
+    public void gigChanged(String table, int gigID) {
+        //Prices and sales don't move anything in the schedule
+        if (!table.equals("act_gig") && !table.equals("gig")) {
+            return;
+        }
+        pending.add(gigID);
+        if (refreshScheduled.compareAndSet(false, true)) {
+            refresher.schedule(this::backgroundRefresh, refreshDelayMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @Override
+    public void resync() {
+        refresher.execute(() -> {
+            try {
+                reload();
+            } catch (SQLException e) {
+                System.err.println("SQL Error reloading the schedule index: " + e.getMessage());
+            }
+        });
+    }
+
+    private void backgroundRefresh() {
+        refreshScheduled.set(false);
+        try {
+            refreshNow();
+        } catch (SQLException e) {
+            System.err.println("SQL Error refreshing the schedule index: " + e.getMessage());
+            //Try again with a full reload, the changes can't be lost
+            resync();
+        }
+    }
+
+    @Override
+    public void close() {
+        refresher.shutdownNow();
+    }
+
+    public Snapshot snapshot() {
+        return current;
+    }
+
+    public long getRefreshes() {
+        return refreshes.get();
+    }
+
+    public long getRefreshedGigs() {
+        return refreshedGigs.get();
+    }
+
+    public long getLastRefreshMicros() {
+        return lastRefreshMicros;
+    }
+
+    // ----- Queries on the current snapshot, see Snapshot for each -----
+
+    public boolean isActFree(int actID, int start, int duration) {
+        return current.isActFree(actID, start, duration);
+    }
+
+    public int nextFreeActSlot(int actID, int from, int duration) {
+        return current.nextFreeActSlot(actID, from, duration);
+    }
+
+    public boolean isVenueFree(int venueID, int start, int duration) {
+        return current.isVenueFree(venueID, start, duration);
+    }
+
+    public int nextFreeVenueSlot(int venueID, int from, int duration) {
+        return current.nextFreeVenueSlot(venueID, from, duration);
+    }
+
+    public int venuesWithOpenSlot(int dayStart, int duration, int[] out) {
+        return current.venuesWithOpenSlot(dayStart, duration, out);
+    }
+
+    public static int minute(LocalDateTime time) {
+        return (int) Math.floorDiv(time.toEpochSecond(ZoneOffset.UTC), 60L);
+    }
+
+    public static int minute(LocalDate day) {
+        return minute(day.atStartOfDay());
+    }
+
+    public static LocalDateTime time(int minute) {
+        return LocalDateTime.ofEpochSecond(minute * 60L, 0, ZoneOffset.UTC);
+    }
+
+    /**
+     * One version of the schedule. All times are minutes from minute(), durations are minutes.
+     */
+    public static final class Snapshot {
+        static final Snapshot EMPTY = new Snapshot(View.EMPTY, View.EMPTY, new int[0], new boolean[0]);
+
+        final View acts;
+        final View venues;
+        //Venue each gig is listed under in the venue view, 0 if it isn't (cancelled, no acts yet, or unknown)
+        final int[] gigVenue;
+        final boolean[] venueExists;
+
+        private Snapshot(View acts, View venues, int[] gigVenue, boolean[] venueExists) {
+            this.acts = acts;
+            this.venues = venues;
+            this.gigVenue = gigVenue;
+            this.venueExists = venueExists;
+        }
+
+        /**
+         * Whether the act could play from start for duration minutes at a new gig without breaking Rules 2 or 5.
+         */
+        public boolean isActFree(int actID, int start, int duration) {
+            if (actID < 0 || actID > acts.maxKey()) {
+                return true;
+            }
+            int lo = acts.offset[actID];
+            int end = start + duration;
+            //Performances starting TRAVEL_GAP or more after we finish can't clash, nor can any after them
+            int i = acts.firstStartAtOrAfter(lo, acts.offset[actID + 1], end + TRAVEL_GAP) - 1;
+            //Performances never overlap, so ends rise with starts and only the last few before that can clash
+            return i < lo || acts.end[i] + TRAVEL_GAP <= start;
+        }
+
+        /**
+         * The earliest start at or after from when the act could play for duration minutes at a new gig.
+         */
+        public int nextFreeActSlot(int actID, int from, int duration) {
+            if (actID < 0 || actID > acts.maxKey()) {
+                return from;
+            }
+            int hi = acts.offset[actID + 1];
+            int candidate = from;
+            for (int i = acts.firstEndAfter(acts.offset[actID], hi, from - TRAVEL_GAP); i < hi; i++) {
+                if (candidate + duration + TRAVEL_GAP <= acts.start[i]) {
+                    return candidate;
+                }
+                candidate = Math.max(candidate, acts.end[i] + TRAVEL_GAP);
+            }
+            return candidate;
+        }
+
+        /**
+         * Copies the act's performances that overlap [from, until) into out as start, end, gigID triples.
+         * @return How many performances were copied (at most out.length / 3)
+         */
+        public int actPerformances(int actID, int from, int until, int[] out) {
+            if (actID < 0 || actID > acts.maxKey()) {
+                return 0;
+            }
+            return acts.copyRange(actID, from, until, out);
+        }
+
+        /**
+         * Whether a gig running from start for duration minutes would keep the Rule 6 gap at the venue.
+         */
+        public boolean isVenueFree(int venueID, int start, int duration) {
+            if (venueID < 0 || venueID > venues.maxKey()) {
+                return true;
+            }
+            int lo = venues.offset[venueID];
+            int end = start + duration;
+            int i = venues.firstStartAtOrAfter(lo, venues.offset[venueID + 1], end + VENUE_GAP) - 1;
+            //Rule 6 refuses a gig starting exactly VENUE_GAP after the last one ends
+            return i < lo || venues.end[i] + VENUE_GAP < start;
+        }
+
+        /**
+         * The earliest start at or after from when a gig of duration minutes could go on at the venue.
+         */
+        public int nextFreeVenueSlot(int venueID, int from, int duration) {
+            if (venueID < 0 || venueID > venues.maxKey()) {
+                return from;
+            }
+            int hi = venues.offset[venueID + 1];
+            int candidate = from;
+            for (int i = venues.firstEndAfter(venues.offset[venueID], hi, from - VENUE_GAP - 1); i < hi; i++) {
+                if (candidate + duration + VENUE_GAP <= venues.start[i]) {
+                    return candidate;
+                }
+                candidate = Math.max(candidate, venues.end[i] + VENUE_GAP + 1);
+            }
+            return candidate;
+        }
+
+        /**
+         * Copies the venue's gigs that overlap [from, until) into out as start, end, gigID triples.
+         * @return How many gigs were copied (at most out.length / 3)
+         */
+        public int venueGigs(int venueID, int from, int until, int[] out) {
+            if (venueID < 0 || venueID > venues.maxKey()) {
+                return 0;
+            }
+            return venues.copyRange(venueID, from, until, out);
+        }
+
+        /**
+         * Writes the IDs of venues where a gig of duration minutes could start on the day beginning at dayStart
+         * into out, in venueID order.
+         * @return How many venues were written (at most out.length)
+         */
+        public int venuesWithOpenSlot(int dayStart, int duration, int[] out) {
+            int found = 0;
+            for (int venueID = 1; venueID < venueExists.length && found < out.length; venueID++) {
+                if (venueExists[venueID] && nextFreeVenueSlot(venueID, dayStart, duration) < dayStart + MINUTES_PER_DAY) {
+                    out[found++] = venueID;
+                }
+            }
+            return found;
+        }
+
+        public int venueCount() {
+            int count = 0;
+            for (boolean exists : venueExists) {
+                count += exists ? 1 : 0;
+            }
+            return count;
+        }
+
+        public int performances() {
+            return acts.start.length;
+        }
+
+        public int gigs() {
+            return venues.start.length;
+        }
+
+        /*
+         * A new snapshot with the rows of the changed gigs replaced by the ones just read. changed is null for a
+         * full load into an empty snapshot, in which case venues lists the venues that exist.
+         */
+        Snapshot merge(BitSet changed, Rows rows, boolean[] venues) {
+            //Each gig's interval at its venue, if it counts for Rule 6
+            int[] gigVenueKey = new int[rows.gigCount];
+            int[] gigStart = new int[rows.gigCount];
+            int[] gigEnd = new int[rows.gigCount];
+            int[] gigID = new int[rows.gigCount];
+            int listed = 0;
+            int maxGig = gigVenue.length - 1;
+            for (int g = 0; g < rows.gigCount; g++) {
+                maxGig = Math.max(maxGig, rows.gigID[rows.gigFirst[g]]);
+            }
+            int[] newGigVenue = Arrays.copyOf(gigVenue, maxGig + 1);
+            boolean[] newVenueExists = venues != null ? venues : venueExists;
+            for (int g = 0; g < rows.gigCount; g++) {
+                int first = rows.gigFirst[g];
+                int last = g + 1 < rows.gigCount ? rows.gigFirst[g + 1] : rows.count;
+                int id = rows.gigID[first];
+                int venue = rows.venueID[first];
+                newGigVenue[id] = 0;
+                if (venue >= newVenueExists.length || !newVenueExists[venue]) {
+                    newVenueExists = Arrays.copyOf(newVenueExists, Math.max(newVenueExists.length, venue + 1));
+                    newVenueExists[venue] = true;
+                }
+                if (rows.cancelled[first] || rows.actID[first] == 0) {
+                    continue;
+                }
+                int start = Integer.MAX_VALUE;
+                int end = Integer.MIN_VALUE;
+                for (int r = first; r < last; r++) {
+                    start = Math.min(start, rows.start[r]);
+                    end = Math.max(end, rows.end[r]);
+                }
+                gigVenueKey[listed] = venue;
+                gigStart[listed] = start;
+                gigEnd[listed] = end;
+                gigID[listed] = id;
+                newGigVenue[id] = venue;
+                listed++;
+            }
+            //Gigs that no longer exist have no rows, but still have to leave the venue view
+            if (changed != null) {
+                for (int id = changed.nextSetBit(0); id >= 0 && id < gigVenue.length; id = changed.nextSetBit(id + 1)) {
+                    if (newGigVenue[id] == gigVenue[id] && !rows.has(id)) {
+                        newGigVenue[id] = 0;
+                    }
+                }
+            }
+
+            //Act view: every row with an act
+            int performances = 0;
+            for (int r = 0; r < rows.count; r++) {
+                performances += rows.actID[r] != 0 ? 1 : 0;
+            }
+            int[] perfAct = new int[performances];
+            int[] perfStart = new int[performances];
+            int[] perfEnd = new int[performances];
+            int[] perfGig = new int[performances];
+            int p = 0;
+            for (int r = 0; r < rows.count; r++) {
+                if (rows.actID[r] != 0) {
+                    perfAct[p] = rows.actID[r];
+                    perfStart[p] = rows.start[r];
+                    perfEnd[p] = rows.end[r];
+                    perfGig[p] = rows.gigID[r];
+                    p++;
+                }
+            }
+            View newActs = acts.merge(changed, performances, perfAct, perfStart, perfEnd, perfGig);
+            View newVenues = this.venues.merge(changed, listed, gigVenueKey, gigStart, gigEnd, gigID);
+            return new Snapshot(newActs, newVenues, newGigVenue, newVenueExists);
+        }
+    }
+
+    /*
+     * Intervals grouped by a key (actID or venueID): those for key k are at [offset[k], offset[k + 1]), sorted by
+     * start. id is the gigID each interval belongs to.
+     */
+    static final class View {
+        static final View EMPTY = new View(new int[1], new int[0], new int[0], new int[0]);
+
+        final int[] offset;
+        final int[] start;
+        final int[] end;
+        final int[] id;
+
+        View(int[] offset, int[] start, int[] end, int[] id) {
+            this.offset = offset;
+            this.start = start;
+            this.end = end;
+            this.id = id;
+        }
+
+        int maxKey() {
+            return offset.length - 2;
+        }
+
+        int firstStartAtOrAfter(int lo, int hi, int time) {
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (start[mid] < time) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            return lo;
+        }
+
+        //Intervals under one key never overlap, so their ends are sorted too
+        int firstEndAfter(int lo, int hi, int time) {
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (end[mid] <= time) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            return lo;
+        }
+
+        int copyRange(int key, int from, int until, int[] out) {
+            int hi = offset[key + 1];
+            int copied = 0;
+            for (int i = firstEndAfter(offset[key], hi, from); i < hi && start[i] < until && copied * 3 + 2 < out.length; i++) {
+                out[copied * 3] = start[i];
+                out[copied * 3 + 1] = end[i];
+                out[copied * 3 + 2] = id[i];
+                copied++;
+            }
+            return copied;
+        }
+
+        /*
+         * A new view without the intervals of the removed gigs and with the added ones. Keys with nothing removed
+         * or added are copied across as they are, the rest are rebuilt and sorted.
+         */
+        View merge(BitSet removed, int added, int[] addKey, int[] addStart, int[] addEnd, int[] addID) {
+            int oldMaxKey = maxKey();
+            int maxKey = oldMaxKey;
+            for (int j = 0; j < added; j++) {
+                maxKey = Math.max(maxKey, addKey[j]);
+            }
+            int[] count = new int[maxKey + 1];
+            boolean[] touched = new boolean[maxKey + 1];
+            for (int k = 0; k <= oldMaxKey; k++) {
+                count[k] = offset[k + 1] - offset[k];
+                if (removed != null) {
+                    for (int i = offset[k]; i < offset[k + 1]; i++) {
+                        if (removed.get(id[i])) {
+                            count[k]--;
+                            touched[k] = true;
+                        }
+                    }
+                }
+            }
+            //Group the additions by key (a counting sort) so each key finds its own
+            int[] addOffset = new int[maxKey + 2];
+            for (int j = 0; j < added; j++) {
+                count[addKey[j]]++;
+                touched[addKey[j]] = true;
+                addOffset[addKey[j] + 1]++;
+            }
+            for (int k = 0; k <= maxKey; k++) {
+                addOffset[k + 1] += addOffset[k];
+            }
+            int[] addOrder = new int[added];
+            int[] fill = Arrays.copyOf(addOffset, maxKey + 1);
+            for (int j = 0; j < added; j++) {
+                addOrder[fill[addKey[j]]++] = j;
+            }
+
+            int[] newOffset = new int[maxKey + 2];
+            for (int k = 0; k <= maxKey; k++) {
+                newOffset[k + 1] = newOffset[k] + count[k];
+            }
+            int total = newOffset[maxKey + 1];
+            int[] newStart = new int[total];
+            int[] newEnd = new int[total];
+            int[] newID = new int[total];
+            long[] scratch = new long[0];
+            for (int k = 0; k <= maxKey; k++) {
+                int to = newOffset[k];
+                if (!touched[k]) {
+                    int n = count[k];
+                    if (n > 0) {
+                        System.arraycopy(start, offset[k], newStart, to, n);
+                        System.arraycopy(end, offset[k], newEnd, to, n);
+                        System.arraycopy(id, offset[k], newID, to, n);
+                    }
+                    continue;
+                }
+                if (k <= oldMaxKey) {
+                    for (int i = offset[k]; i < offset[k + 1]; i++) {
+                        if (removed == null || !removed.get(id[i])) {
+                            newStart[to] = start[i];
+                            newEnd[to] = end[i];
+                            newID[to] = id[i];
+                            to++;
+                        }
+                    }
+                }
+                for (int a = addOffset[k]; a < addOffset[k + 1]; a++) {
+                    int j = addOrder[a];
+                    newStart[to] = addStart[j];
+                    newEnd[to] = addEnd[j];
+                    newID[to] = addID[j];
+                    to++;
+                }
+                if (count[k] > scratch.length) {
+                    scratch = new long[Math.max(count[k], scratch.length * 2)];
+                }
+                sortByStart(newStart, newEnd, newID, newOffset[k], newOffset[k + 1], scratch);
+            }
+            return new View(newOffset, newStart, newEnd, newID);
+        }
+
+        //Sorts [from, to) of the three columns by start, packing start and position into one long to sort primitives
+        private static void sortByStart(int[] start, int[] end, int[] id, int from, int to, long[] scratch) {
+            int n = to - from;
+            if (n < 2) {
+                return;
+            }
+            boolean sorted = true;
+            for (int i = 0; i < n; i++) {
+                scratch[i] = ((long) start[from + i] << 32) | i;
+                sorted &= i == 0 || start[from + i - 1] <= start[from + i];
+            }
+            if (sorted) {
+                return;
+            }
+            Arrays.sort(scratch, 0, n);
+            int[] oldEnd = Arrays.copyOfRange(end, from, to);
+            int[] oldID = Arrays.copyOfRange(id, from, to);
+            for (int i = 0; i < n; i++) {
+                int source = (int) scratch[i];
+                start[from + i] = (int) (scratch[i] >> 32);
+                end[from + i] = oldEnd[source];
+                id[from + i] = oldID[source];
+            }
+        }
+    }
+
+    /*
+     * Rows of ROWS_QUERY, in gigID order: one per act_gig row, or one with actID 0 for a gig without any.
+     * gigFirst[g] is the first row of the g-th gig.
+     */
+    static final class Rows {
+        int count;
+        int[] gigID = new int[1024];
+        int[] venueID = new int[1024];
+        boolean[] cancelled = new boolean[1024];
+        int[] actID = new int[1024];
+        int[] start = new int[1024];
+        int[] end = new int[1024];
+        int gigCount;
+        int[] gigFirst = new int[1024];
+
+        static Rows read(ResultSet rs) throws SQLException {
+            Rows rows = new Rows();
+            while (rs.next()) {
+                rows.add(rs.getInt(1), rs.getInt(2), rs.getBoolean(3), rs.getInt(4), rs.getInt(5), rs.getInt(6));
+            }
+            return rows;
+        }
+
+        void add(int gig, int venue, boolean isCancelled, int act, int startMinute, int duration) {
+            if (count == gigID.length) {
+                int size = count * 2;
+                gigID = Arrays.copyOf(gigID, size);
+                venueID = Arrays.copyOf(venueID, size);
+                cancelled = Arrays.copyOf(cancelled, size);
+                actID = Arrays.copyOf(actID, size);
+                start = Arrays.copyOf(start, size);
+                end = Arrays.copyOf(end, size);
+            }
+            if (count == 0 || gigID[count - 1] != gig) {
+                if (gigCount == gigFirst.length) {
+                    gigFirst = Arrays.copyOf(gigFirst, gigCount * 2);
+                }
+                gigFirst[gigCount++] = count;
+            }
+            gigID[count] = gig;
+            venueID[count] = venue;
+            cancelled[count] = isCancelled;
+            actID[count] = act;
+            start[count] = startMinute;
+            end[count] = startMinute + duration;
+            count++;
+        }
+
+        boolean has(int gig) {
+            int lo = 0;
+            int hi = gigCount;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                int id = gigID[gigFirst[mid]];
+                if (id == gig) {
+                    return true;
+                } else if (id < gig) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            return false;
+        }
+    }
+}
@@ -0,0 +1,308 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Comparator;
+import java.util.Properties;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyManager;
+
+/**
+ * Moves finished seasons (calendar years) out of the live tables into compressed files, and back again:
+ *
+ *   java -cp ... SeasonArchive --season=2024 [--dir=archive] [--url=jdbc:...]
+ *   java -cp ... SeasonArchive --season=2024 --restore [--dir=archive] [--url=jdbc:...]
+ *   java -cp ... SeasonArchive --list [--url=jdbc:...]
+ *
+ * Archiving writes <dir>/season-<year>/ with one gzip file per table, holding the season's gigs, their prices,
+ * line ups and tickets, and the customers who bought those tickets. They are in PostgreSQL's COPY text format
+ * (so they can be read back, or loaded somewhere else, with a plain COPY) and sorted by gig, which puts similar
+ * rows next to each other and helps the compression. manifest.properties lists each file's columns and row count.
+ *
+ * It all happens in one transaction: begin_season_archive() locks the season, the rows are copied out, the files
+ * are flushed to disk, and archive_season() removes the rows (see schema.sql). If anything fails before the
+ * commit, the files are deleted again and nothing is removed. Bookings for other seasons carry on meanwhile.
+ * The reports keep counting an archived season from the running totals and archived_season.
+ *
+ * Restoring loads the files back with triggers off (session_replication_role, which needs a superuser, as for
+ * ScheduleGenerator) and calls restore_season() to rebuild the per gig rows. The files are left where they are.
+ */
+public class SeasonArchive {
+
+    //In the order they are loaded back, so every row's foreign keys are already there
+    static final String[] TABLES = {"gig", "gig_ticket", "act_gig", "customer", "ticket"};
+
+    public static void main(String[] args) {
+        Integer season = null;
+        Path dir = Paths.get("archive");
+        boolean restore = false;
+        boolean list = false;
+        String url = null;
+        for (String arg : args) {
+            String value = arg.substring(arg.indexOf('=') + 1);
+            if (arg.startsWith("--season=")) {
+                season = Integer.parseInt(value);
+            } else if (arg.startsWith("--dir=")) {
+                dir = Paths.get(value);
+            } else if (arg.equals("--restore")) {
+                restore = true;
+            } else if (arg.equals("--list")) {
+                list = true;
+            } else if (arg.startsWith("--url=")) {
+                url = value;
+            } else {
+                System.err.println("Unknown option " + arg);
+                return;
+            }
+        }
+        if (season == null && !list) {
+            System.err.println("Which season? Use --season=<year>, or --list");
+            return;
+        }
+
+        try (Connection conn = url != null ? DriverManager.getConnection(url) : GigSystem.getPortConnection()) {
+            if (list) {
+                list(conn);
+            } else if (restore) {
+                long rows = restore(conn, season, dir);
+                System.out.println("Season " + season + " restored, " + rows + " rows loaded");
+            } else {
+                Properties manifest = archive(conn, season, dir);
+                System.out.println("Season " + season + " archived to " + manifest.getProperty("location"));
+                for (String table : TABLES) {
+                    System.out.format("  %-12s %12s rows %12s bytes%n", table, manifest.getProperty(table + ".rows"),
+                        manifest.getProperty(table + ".bytes"));
+                }
+            }
+        } catch (SQLException e) {
+            System.err.println("SQL Error: " + e.getMessage());
+        } catch (IOException e) {
+            System.err.println("Archive Error: " + e);
+        }
+    }
+
+    /**
+     * Copies a finished season out to dir/season-<year> and removes it from the database.
+     * @return The manifest that was written with the files
+     */
+    public static Properties archive(Connection conn, int season, Path dir) throws SQLException, IOException {
+        Path target = dir.resolve("season-" + season);
+        Path partial = dir.resolve("season-" + season + ".partial");
+        if (Files.exists(target)) {
+            throw new IOException(target + " already exists");
+        }
+        CopyManager copy = conn.unwrap(PGConnection.class).getCopyAPI();
+        boolean committing = false;
+        conn.setAutoCommit(false);
+        try {
+            int gigs = callForInt(conn, "SELECT begin_season_archive(?)", season);
+
+            deleteAll(partial);
+            Files.createDirectories(partial);
+            Properties manifest = new Properties();
+            manifest.setProperty("season", Integer.toString(season));
+            manifest.setProperty("location", target.toAbsolutePath().toString());
+            for (String table : TABLES) {
+                String columns = columns(conn, table);
+                Path file = partial.resolve(table + ".copy.gz");
+                long rows;
+                try (FileOutputStream fileOut = new FileOutputStream(file.toFile())) {
+                    GZIPOutputStream gzip = new GZIPOutputStream(new BufferedOutputStream(fileOut, 1 << 16), 1 << 16);
+                    rows = copy.copyOut("COPY (SELECT " + columns + " FROM " + table + " WHERE " + seasonRows(table, season) +
+                        " ORDER BY " + order(table) + ") TO STDOUT", gzip);
+                    gzip.finish();
+                    gzip.flush();
+                    fileOut.getFD().sync();
+                }
+                manifest.setProperty(table + ".columns", columns);
+                manifest.setProperty(table + ".rows", Long.toString(rows));
+                manifest.setProperty(table + ".bytes", Long.toString(Files.size(file)));
+            }
+            if (Long.parseLong(manifest.getProperty("gig.rows")) != gigs) {
+                throw new SQLException("Copied " + manifest.getProperty("gig.rows") + " gigs out of " + gigs);
+            }
+            try (Writer out = Files.newBufferedWriter(partial.resolve("manifest.properties"), StandardCharsets.UTF_8)) {
+                manifest.store(out, "Season " + season + " archived by SeasonArchive");
+            }
+            Files.move(partial, target, StandardCopyOption.ATOMIC_MOVE);
+
+            try (PreparedStatement stmt = conn.prepareStatement("SELECT archive_season(?, ?)")) {
+                stmt.setInt(1, season);
+                stmt.setString(2, manifest.getProperty("location"));
+                try (ResultSet rs = stmt.executeQuery()) {
+                    rs.next();
+                    if (rs.getInt(1) != gigs) {
+                        throw new SQLException("Removed " + rs.getInt(1) + " gigs but copied " + gigs);
+                    }
+                }
+            }
+            committing = true;
+            conn.commit();
+            return manifest;
+        } catch (SQLException | IOException | RuntimeException e) {
+            if (committing) {
+                //Can't tell whether the commit happened, so the files have to stay
+                System.err.println("The commit failed, check archived_season before removing " + target);
+                throw e;
+            }
+            try {
+                conn.rollback();
+            } catch (SQLException e2) {
+                System.err.println("SQL Error during rollback: " + e2.getMessage());
+            }
+            deleteAll(partial);
+            deleteAll(target);
+            throw e;
+        } finally {
+            conn.setAutoCommit(true);
+        }
+    }
+
+    /**
+     * Loads an archived season back from dir/season-<year>. Needs a superuser.
+     * @return The number of rows loaded
+     */
+    public static long restore(Connection conn, int season, Path dir) throws SQLException, IOException {
+        Path source = dir.resolve("season-" + season);
+        Properties manifest = new Properties();
+        try (Reader in = Files.newBufferedReader(source.resolve("manifest.properties"), StandardCharsets.UTF_8)) {
+            manifest.load(in);
+        }
+        if (!Integer.toString(season).equals(manifest.getProperty("season"))) {
+            throw new IOException(source + " holds season " + manifest.getProperty("season"));
+        }
+
+        CopyManager copy = conn.unwrap(PGConnection.class).getCopyAPI();
+        long loaded = 0;
+        conn.setAutoCommit(false);
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute("SET LOCAL session_replication_role = replica");
+            for (String table : TABLES) {
+                String columns = manifest.getProperty(table + ".columns");
+                long rows;
+                try (InputStream in = new GZIPInputStream(new BufferedInputStream(
+                        Files.newInputStream(source.resolve(table + ".copy.gz")), 1 << 16), 1 << 16)) {
+                    if (table.equals("customer")) {
+                        //Customers are never removed, so most of them will still be there
+                        stmt.execute("CREATE TEMP TABLE restored_customer (LIKE customer) ON COMMIT DROP");
+                        rows = copy.copyIn("COPY restored_customer(" + columns + ") FROM STDIN", in);
+                        stmt.execute("INSERT INTO customer(" + columns + ") SELECT " + columns + " FROM restored_customer " +
+                            "ON CONFLICT DO NOTHING");
+                    } else {
+                        rows = copy.copyIn("COPY " + table + "(" + columns + ") FROM STDIN", in);
+                    }
+                }
+                if (rows != Long.parseLong(manifest.getProperty(table + ".rows"))) {
+                    throw new IOException(table + " has " + rows + " rows, the manifest says " + manifest.getProperty(table + ".rows"));
+                }
+                loaded += rows;
+            }
+            callForInt(conn, "SELECT restore_season(?)", season);
+            stmt.execute("SET LOCAL session_replication_role = DEFAULT");
+            conn.commit();
+            return loaded;
+        } catch (SQLException | IOException | RuntimeException e) {
+            try {
+                conn.rollback();
+            } catch (SQLException e2) {
+                System.err.println("SQL Error during rollback: " + e2.getMessage());
+            }
+            throw e;
+        } finally {
+            conn.setAutoCommit(true);
+        }
+    }
+
+    public static void list(Connection conn) throws SQLException {
+        try (Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT season, archived, gigs, tickets, location FROM archived_season ORDER BY season")) {
+            System.out.println("season  archived                   gigs      tickets  location");
+            while (rs.next()) {
+                System.out.format("%-7d %-22s %8d %12d  %s%n", rs.getInt(1), rs.getTimestamp(2).toLocalDateTime().withNano(0),
+                    rs.getInt(3), rs.getLong(4), rs.getString(5));
+            }
+        }
+    }
+
+    //The season's rows of each table. season is an int, so it is safe to put in the SQL (COPY can't take parameters).
+    private static String seasonRows(String table, int season) {
+        String gigs = "gigdatetime >= make_timestamp(" + season + ", 1, 1, 0, 0, 0) " +
+            "AND gigdatetime < make_timestamp(" + (season + 1) + ", 1, 1, 0, 0, 0)";
+        switch (table) {
+            case "gig":
+                return gigs;
+            case "customer":
+                return "customerID IN (SELECT customerID FROM ticket WHERE gigID IN (SELECT gigID FROM gig WHERE " + gigs + "))";
+            default:
+                return "gigID IN (SELECT gigID FROM gig WHERE " + gigs + ")";
+        }
+    }
+
+    private static String order(String table) {
+        switch (table) {
+            case "gig":
+                return "gigID";
+            case "gig_ticket":
+                return "gigID, pricetype";
+            case "act_gig":
+                return "gigID, ontime";
+            case "customer":
+                return "customerID";
+            default:
+                return "gigID, ticketID";
+        }
+    }
+
+    //Generated columns (range mode's windows) can't be loaded with COPY, they are worked out again on the way back in
+    private static String columns(Connection conn, String table) throws SQLException {
+        try (PreparedStatement stmt = conn.prepareStatement(
+                "SELECT string_agg(column_name, ', ' ORDER BY ordinal_position) FROM information_schema.columns " +
+                "WHERE table_schema = current_schema() AND table_name = ? AND is_generated = 'NEVER'")) {
+            stmt.setString(1, table);
+            try (ResultSet rs = stmt.executeQuery()) {
+                rs.next();
+                return rs.getString(1);
+            }
+        }
+    }
+
+    private static int callForInt(Connection conn, String sql, int season) throws SQLException {
+        try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+            stmt.setInt(1, season);
+            try (ResultSet rs = stmt.executeQuery()) {
+                rs.next();
+                return rs.getInt(1);
+            }
+        }
+    }
+
+    private static void deleteAll(Path path) throws IOException {
+        if (!Files.exists(path)) {
+            return;
+        }
+        try (Stream<Path> walk = Files.walk(path)) {
+            for (Path p : (Iterable<Path>) walk.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(p);
+            }
+        }
+    }
+}
@@ -0,0 +1,267 @@
+import java.sql.Array;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * In-memory view of what every gig still has to sell: seats left, whether it is cancelled and which
+ * pricetypes gig_ticket offers. task3 asks it first so bookings that can only fail (sold out, cancelled
+ * gig, unknown pricetype) are turned away without going near the database.
+ *
+ * The database is still the authority. This view is mostly too optimistic (a sale made by another node
+ * is not seen until the next reload), in which case the booking goes to the database and book_ticket
+ * refuses it as before. Register it with a GigChangeFeed to pick up gig creation, cancellation and
+ * price changes from every node, and seats coming back when a ticket is deleted or moved (gig_sold).
+ * The two ways it can be too pessimistic are kept short: a gig it saw sold out is reloaded as soon as the
+ * feed reports a seat coming back, and a gigID that didn't exist is only remembered for UNKNOWN_GIG_MILLIS.
+ */
+public class TicketInventory implements GigChangeFeed.Listener {
+
+    //What we know about one gig. remaining is decremented by our own sales between reloads.
+    private static final class GigStock {
+        final AtomicInteger remaining;
+        final boolean cancelled;
+        final String[] priceTypes;
+
+        GigStock(int remaining, boolean cancelled, String[] priceTypes) {
+            this.remaining = new AtomicInteger(remaining);
+            this.cancelled = cancelled;
+            this.priceTypes = priceTypes;
+        }
+
+        boolean sells(String priceType) {
+            for (String type : priceTypes) {
+                if (type.equals(priceType)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    private static final String LOAD_QUERY =
+        "SELECT g.gigID, g.gigstatus, s.capacity - s.sold AS remaining, " +
+        "ARRAY(SELECT gt.pricetype FROM gig_ticket gt WHERE gt.gigID = g.gigID) AS pricetypes " +
+        "FROM gig g JOIN gig_sold s ON s.gigID = g.gigID";
+
+    //Same messages book_ticket and the triggers give for these cases
+    public static final String INVALID_TICKET = "Invalid gigID or ticket type";
+    public static final String CANCELLED = "Gig is cancelled";
+    public static final String SOLD_OUT = "RULE 9 VIOLATED - Tickets sold exceeds venue capacity.";
+
+    //How long a gigID that wasn't in the database is refused without asking again (unless the feed reports it first)
+    public static final long UNKNOWN_GIG_MILLIS = 1000;
+    //Forgotten all at once past this many, so made up gigIDs can't fill the memory
+    private static final int MAX_UNKNOWN_GIGS = 10000;
+
+    private final ConnectionPool pool;
+    private final ConcurrentHashMap<Integer, GigStock> gigs = new ConcurrentHashMap<>();
+    //gigID to when it was found not to exist (System.nanoTime)
+    private final ConcurrentHashMap<Integer, Long> unknownGigs = new ConcurrentHashMap<>();
+
+    public TicketInventory(ConnectionPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Replaces the whole view with what is in the database now.
+     */
+    public void loadAll() throws SQLException {
+        pool.withConnection(conn -> {
+            ConcurrentHashMap<Integer, GigStock> fresh = new ConcurrentHashMap<>();
+            try (PreparedStatement load = conn.prepareStatement(LOAD_QUERY);
+                 ResultSet rs = load.executeQuery()) {
+                while (rs.next()) {
+                    fresh.put(rs.getInt(1), readStock(rs));
+                }
+            }
+            gigs.keySet().retainAll(fresh.keySet());
+            gigs.putAll(fresh);
+            unknownGigs.clear();
+            return null;
+        });
+    }
+
+    /**
+     * Reloads a single gig, dropping it from the view if it no longer exists.
+     */
+    public void reload(int gigID) throws SQLException {
+        pool.withConnection(conn -> {
+            reload(conn, gigID);
+            return null;
+        });
+    }
+
+    private GigStock reload(Connection conn, int gigID) throws SQLException {
+        try (PreparedStatement load = conn.prepareStatement(LOAD_QUERY + " WHERE g.gigID = ?")) {
+            load.setInt(1, gigID);
+            try (ResultSet rs = load.executeQuery()) {
+                if (rs.next()) {
+                    GigStock stock = readStock(rs);
+                    gigs.put(gigID, stock);
+                    unknownGigs.remove(gigID);
+                    return stock;
+                }
+            }
+        }
+        gigs.remove(gigID);
+        if (unknownGigs.size() >= MAX_UNKNOWN_GIGS) {
+            unknownGigs.clear();
+        }
+        unknownGigs.put(gigID, System.nanoTime());
+        return null;
+    }
+
+    private static GigStock readStock(ResultSet rs) throws SQLException {
+        Array types = rs.getArray(4);
+        String[] priceTypes = types == null ? new String[0] : (String[]) types.getArray();
+        return new GigStock(rs.getInt(3), "Cancelled".equals(rs.getString(2)), priceTypes);
+    }
+
+    /**
+     * @return Seats left for the gig as far as this node knows, or -1 if the gig is not known
+     */
+    public int remaining(int gigID) {
+        GigStock stock = gigs.get(gigID);
+        return stock == null ? -1 : Math.max(0, stock.remaining.get());
+    }
+
+    public boolean isAvailable(int gigID, String priceType) {
+        GigStock stock = gigs.get(gigID);
+        return stock != null && check(stock, priceType) == null;
+    }
+
+    /**
+     * A booking checked against the view: why it would be refused (null if it should be tried against the
+     * database) and the stock it was checked against, which recordSale and recordRefusal adjust afterwards.
+     */
+    public static final class Checked {
+        public final String reason;
+        private final int gigID;
+        private final GigStock stock;
+
+        private Checked(int gigID, GigStock stock, String reason) {
+            this.gigID = gigID;
+            this.stock = stock;
+            this.reason = reason;
+        }
+    }
+
+    /**
+     * Checks a booking against the view. A gig we have not seen yet (e.g. just created by another node)
+     * is loaded first so it is never refused just because it is new.
+     */
+    public Checked check(int gigID, String priceType) {
+        GigStock stock = gigs.get(gigID);
+        if (stock == null) {
+            Long missing = unknownGigs.get(gigID);
+            if (missing != null && System.nanoTime() - missing < TimeUnit.MILLISECONDS.toNanos(UNKNOWN_GIG_MILLIS)) {
+                return new Checked(gigID, null, INVALID_TICKET);
+            }
+            try {
+                stock = pool.withConnection(conn -> reload(conn, gigID));
+            } catch (SQLException e) {
+                //Let the database decide
+                return new Checked(gigID, null, null);
+            }
+            if (stock == null) {
+                return new Checked(gigID, null, INVALID_TICKET);
+            }
+        }
+        return new Checked(gigID, stock, check(stock, priceType));
+    }
+
+    /**
+     * @return Why the booking would be refused, or null if it should be tried against the database
+     */
+    public String rejectReason(int gigID, String priceType) {
+        return check(gigID, priceType).reason;
+    }
+
+    private static String check(GigStock stock, String priceType) {
+        if (!stock.sells(priceType)) {
+            return INVALID_TICKET;
+        }
+        if (stock.cancelled) {
+            return CANCELLED;
+        }
+        if (stock.remaining.get() <= 0) {
+            return SOLD_OUT;
+        }
+        return null;
+    }
+
+    //Whether the stock a booking was checked against is still the one in the view. If the gig was reloaded in
+    //the meantime, the new stock was read from the database and may already count this booking, so it is left alone.
+    private boolean stillCurrent(Checked checked) {
+        return checked.stock != null && gigs.get(checked.gigID) == checked.stock;
+    }
+
+    /**
+     * Called after a booking committed.
+     */
+    public void recordSale(Checked checked) {
+        if (stillCurrent(checked)) {
+            checked.stock.remaining.decrementAndGet();
+        }
+    }
+
+    /**
+     * Called when the database refused a booking, so later bookings can be turned away here.
+     */
+    public void recordRefusal(Checked checked, SQLException e) {
+        String message = e.getMessage();
+        if (message == null) {
+            return;
+        }
+        if (message.contains("RULE 9 VIOLATED")) {
+            if (stillCurrent(checked)) {
+                checked.stock.remaining.set(0);
+            }
+        } else if ((message.contains(CANCELLED) || message.contains(INVALID_TICKET)) && !replaced(checked)) {
+            //Our view of this gig is out of date
+            try {
+                reload(checked.gigID);
+            } catch (SQLException e2) {
+                gigs.remove(checked.gigID);
+            }
+        }
+    }
+
+    //Whether the gig was reloaded since the booking was checked, so the view is already newer than the refusal
+    private boolean replaced(Checked checked) {
+        GigStock now = gigs.get(checked.gigID);
+        return now != null && now != checked.stock;
+    }
+
+    @Override
+    public void gigChanged(String table, int gigID) {
+        //Line up changes don't affect what can be sold
+        if (table.equals("act_gig")) {
+            return;
+        }
+        try {
+            reload(gigID);
+        } catch (SQLException e) {
+            //Forget the gig rather than keep a view we know is stale, it is reloaded on its next booking
+            gigs.remove(gigID);
+            unknownGigs.remove(gigID);
+        }
+    }
+
+    @Override
+    public void resync() {
+        try {
+            loadAll();
+        } catch (SQLException e) {
+            System.err.println("Could not reload ticket inventory: " + e.getMessage());
+            gigs.clear();
+            unknownGigs.clear();
+        }
+    }
+}
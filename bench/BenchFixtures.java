@@ -0,0 +1,72 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Small bits of setup shared by the benchmark programs in this folder.
+ */
+public class BenchFixtures {
+
+    /**
+     * Creates a new venue of the given capacity with one act and one gig there, selling adult tickets at 20.
+     * Names are made unique so this can be called repeatedly against the same database.
+     * @return The gigID of the new gig
+     */
+    public static int createGig(Connection conn, int capacity) throws SQLException {
+        return createGig(conn, capacity, 1);
+    }
+
+    /**
+     * Same as createGig(conn, capacity) but with a line up of the given number of new acts (at most 6),
+     * each playing 30 minutes with 10 minute changeovers from 19:00.
+     */
+    public static int createGig(Connection conn, int capacity, int acts) throws SQLException {
+        String suffix = Long.toString(System.nanoTime());
+        try (PreparedStatement venue = conn.prepareStatement("INSERT INTO venue(venuename, hirecost, capacity) VALUES (?, 1000, ?)");
+             PreparedStatement act = conn.prepareStatement("INSERT INTO act(actname, genre, standardfee) VALUES (?, 'jazz', 500)")) {
+            venue.setString(1, "Bench Venue " + suffix);
+            venue.setInt(2, capacity);
+            venue.executeUpdate();
+            for (int i = 0; i < acts; i++) {
+                act.setString(1, "Bench Act " + suffix + " #" + i);
+                act.executeUpdate();
+            }
+        }
+        int gigID;
+        try (PreparedStatement gig = conn.prepareStatement(
+                "INSERT INTO gig(venueID, gigtitle, gigdatetime, gigstatus) " +
+                "VALUES ((SELECT venueID FROM venue WHERE venuename = ?), ?, '2030-06-01 19:00', 'GoingAhead') RETURNING gigID")) {
+            gig.setString(1, "Bench Venue " + suffix);
+            gig.setString(2, "Bench Gig " + suffix);
+            try (ResultSet rs = gig.executeQuery()) {
+                rs.next();
+                gigID = rs.getInt(1);
+            }
+        }
+        try (PreparedStatement lineup = conn.prepareStatement(
+                "INSERT INTO act_gig(actID, gigID, actgigfee, ontime, duration) " +
+                "VALUES ((SELECT actID FROM act WHERE actname = ?), ?, 500, timestamp '2030-06-01 19:00' + ? * interval '1 minute', 30)");
+             PreparedStatement price = conn.prepareStatement("INSERT INTO gig_ticket(gigID, pricetype, price) VALUES (?, 'A', 20)")) {
+            for (int i = 0; i < acts; i++) {
+                lineup.setString(1, "Bench Act " + suffix + " #" + i);
+                lineup.setInt(2, gigID);
+                lineup.setInt(3, i * 40);
+                lineup.executeUpdate();
+            }
+            price.setInt(1, gigID);
+            price.executeUpdate();
+        }
+        return gigID;
+    }
+
+    public static int countTickets(Connection conn, int gigID) throws SQLException {
+        try (PreparedStatement count = conn.prepareStatement("SELECT COUNT(*) FROM ticket WHERE gigID = ?")) {
+            count.setInt(1, gigID);
+            try (ResultSet rs = count.executeQuery()) {
+                rs.next();
+                return rs.getInt(1);
+            }
+        }
+    }
+}
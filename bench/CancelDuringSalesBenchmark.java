@@ -0,0 +1,111 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Checks that task4 cancellations in one set of gigs don't hold up task3 bookings for other gigs.
+ * Bookers run twice for the same length of time, once on their own and once while another thread keeps
+ * cancelling acts in separate gigs, and the booking latencies of the two runs are printed side by side.
+ *
+ *   java -cp .:postgresql.jar CancelDuringSalesBenchmark [bookerThreads] [secondsPerRun]
+ */
+public class CancelDuringSalesBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int bookers = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+
+        try (ConnectionPool pool = new ConnectionPool(GigSystem::getPortConnection, bookers + 1)) {
+            int[] bookingGigs = new int[bookers];
+            for (int i = 0; i < bookers; i++) {
+                bookingGigs[i] = pool.withConnection(conn -> BenchFixtures.createGig(conn, 1000000));
+            }
+
+            long[] alone = run(pool, bookingGigs, seconds, false);
+            long[] withCancels = run(pool, bookingGigs, seconds, true);
+
+            System.out.println("                      bookings     p50 ms     p99 ms     max ms");
+            print("bookings alone", alone);
+            print("during cancellations", withCancels);
+        }
+    }
+
+    //Returns the booking latencies of one run in nanoseconds, sorted
+    private static long[] run(ConnectionPool pool, int[] bookingGigs, int seconds, boolean cancelling) throws InterruptedException {
+        AtomicBoolean stop = new AtomicBoolean(false);
+        AtomicInteger cancels = new AtomicInteger();
+        List<long[]> perThread = new ArrayList<>();
+        int[] counts = new int[bookingGigs.length];
+        ExecutorService threads = Executors.newFixedThreadPool(bookingGigs.length + 1);
+
+        for (int t = 0; t < bookingGigs.length; t++) {
+            int thread = t;
+            long[] latencies = new long[1 << 22];
+            perThread.add(latencies);
+            threads.execute(() -> {
+                int gigID = bookingGigs[thread];
+                int n = 0;
+                while (!stop.get() && n < latencies.length) {
+                    String name = "booker-" + gigID + "-" + cancelling + "-" + n;
+                    long start = System.nanoTime();
+                    GigSystem.task3(pool, gigID, name, name + "@example.com", "A");
+                    latencies[n++] = System.nanoTime() - start;
+                }
+                counts[thread] = n;
+            });
+        }
+
+        if (cancelling) {
+            threads.execute(() -> {
+                while (!stop.get()) {
+                    try {
+                        //A fresh five act gig each time: cancel the three middle acts, leaving opener and headliner
+                        int gigID = pool.withConnection(conn -> BenchFixtures.createGig(conn, 100, 5));
+                        String[][] lineup = GigSystem.task1(pool, gigID);
+                        for (int i = 1; i <= 3 && !stop.get(); i++) {
+                            GigSystem.task4(pool, gigID, lineup[i][0]);
+                            cancels.incrementAndGet();
+                        }
+                    } catch (Exception e) {
+                        System.err.println("Cancelling failed: " + e.getMessage());
+                    }
+                }
+            });
+        }
+
+        Thread.sleep(seconds * 1000L);
+        stop.set(true);
+        threads.shutdown();
+        threads.awaitTermination(1, TimeUnit.MINUTES);
+
+        if (cancelling) {
+            System.out.println(cancels.get() + " acts cancelled during the run");
+        }
+        int total = 0;
+        for (int count : counts) {
+            total += count;
+        }
+        long[] all = new long[total];
+        int at = 0;
+        for (int t = 0; t < perThread.size(); t++) {
+            System.arraycopy(perThread.get(t), 0, all, at, counts[t]);
+            at += counts[t];
+        }
+        Arrays.sort(all);
+        return all;
+    }
+
+    private static void print(String label, long[] sorted) {
+        if (sorted.length == 0) {
+            System.out.format("%-20s %10d%n", label, 0);
+            return;
+        }
+        System.out.format("%-20s %10d %10.2f %10.2f %10.2f%n", label, sorted.length,
+            sorted[sorted.length / 2] / 1e6, sorted[(int) (sorted.length * 0.99)] / 1e6, sorted[sorted.length - 1] / 1e6);
+    }
+}
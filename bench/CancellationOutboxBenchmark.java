@@ -0,0 +1,175 @@
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.function.Supplier;
+
+/**
+ * Cancels two identical big gigs by their headliner, one with task4 (every ticket holder's email read back inside
+ * the cancelling transaction) and one with GigSystem.cancelAct (queued in cancellation_outbox), then sends the queued
+ * emails with a CancellationOutbox to a local SmtpStandIn:
+ *
+ *   java -cp target/benchmarks.jar CancellationOutboxBenchmark [--tickets=20000] [--repeat=0.2] [--batch=500]
+ *       [--fail=0.05] [--url=jdbc:...]
+ *
+ * --repeat is the share of tickets bought by someone who already has one for the gig, so each email should still only
+ * be sent once. --fail is the share of SMTP messages the stand-in refuses, to make the outbox retry.
+ *
+ * Prints the time and memory each cancellation took, then how long the outbox took to send everything, how many
+ * batches it retried, and checks that every ticket holder got exactly one email. The two gigs are deleted again at
+ * the end with their customers (their bench venues and acts are left, as BenchFixtures always does).
+ */
+public class CancellationOutboxBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int tickets = 20000;
+        double repeat = 0.2;
+        int batch = CancellationOutbox.DEFAULT_BATCH_SIZE;
+        double fail = 0.05;
+        String url = null;
+        for (String arg : args) {
+            String value = arg.substring(arg.indexOf('=') + 1);
+            if (arg.startsWith("--tickets=")) {
+                tickets = Integer.parseInt(value);
+            } else if (arg.startsWith("--repeat=")) {
+                repeat = Double.parseDouble(value);
+            } else if (arg.startsWith("--batch=")) {
+                batch = Integer.parseInt(value);
+            } else if (arg.startsWith("--fail=")) {
+                fail = Double.parseDouble(value);
+            } else if (arg.startsWith("--url=")) {
+                url = value;
+            } else {
+                System.err.println("Unknown option " + arg);
+                return;
+            }
+        }
+        String jdbcUrl = url;
+        Supplier<Connection> factory = jdbcUrl == null ? GigSystem::getPortConnection : () -> {
+            try {
+                return DriverManager.getConnection(jdbcUrl);
+            } catch (SQLException e) {
+                System.err.println("SQL Error: " + e.getMessage());
+                return null;
+            }
+        };
+
+        int sold = tickets;
+        int holders = Math.max(1, (int) (tickets * (1 - repeat)));
+        try (ConnectionPool pool = new ConnectionPool(factory, 2);
+             SmtpStandIn standIn = new SmtpStandIn(0, fail)) {
+            int classicGig = pool.withConnection(conn -> createGig(conn, sold, holders));
+            int outboxGig = pool.withConnection(conn -> createGig(conn, sold, holders));
+            try {
+                String classicHeadliner = pool.withConnection(conn -> headliner(conn, classicGig));
+                String outboxHeadliner = pool.withConnection(conn -> headliner(conn, outboxGig));
+
+                com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+                long allocated = threads.getCurrentThreadAllocatedBytes();
+                long start = System.nanoTime();
+                //task4 prints the emails too, which isn't what's being measured
+                PrintStream stdout = System.out;
+                String[][] emails;
+                System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+                try {
+                    emails = pool.withConnection(conn -> GigSystem.task4(conn, classicGig, classicHeadliner));
+                } finally {
+                    System.setOut(stdout);
+                }
+                long classicNanos = System.nanoTime() - start;
+                long classicBytes = threads.getCurrentThreadAllocatedBytes() - allocated;
+
+                allocated = threads.getCurrentThreadAllocatedBytes();
+                start = System.nanoTime();
+                String[][] lineup = pool.withConnection(conn -> GigSystem.cancelAct(conn, outboxGig, outboxHeadliner));
+                long outboxNanos = System.nanoTime() - start;
+                long outboxBytes = threads.getCurrentThreadAllocatedBytes() - allocated;
+
+                System.out.format("%d tickets held by %d people, cancelled by the headliner:%n", tickets, holders);
+                System.out.format("task4:     %8.1f ms, %8.1f KB allocated, %d emails returned%n",
+                    classicNanos / 1e6, classicBytes / 1024.0, emails.length == 0 ? 0 : emails[0].length);
+                System.out.format("cancelAct: %8.1f ms, %8.1f KB allocated, gig cancelled: %b%n",
+                    outboxNanos / 1e6, outboxBytes / 1024.0, lineup == null);
+
+                CancellationOutbox outbox = new CancellationOutbox(pool,
+                    new CancellationOutbox.SmtpSender("127.0.0.1", standIn.getPort(), "tickets@gigsystem.example"), batch, 20);
+                start = System.nanoTime();
+                String status = "Pending";
+                while (status.equals("Pending")) {
+                    outbox.dispatch();
+                    status = pool.withConnection(conn -> outboxStatus(conn, outboxGig));
+                    if (status.equals("Pending")) {
+                        //Waiting out the backoff after a refused batch
+                        Thread.sleep(100);
+                    }
+                }
+                long sendNanos = System.nanoTime() - start;
+                outbox.close();
+
+                String domain = "@gig" + outboxGig + ".example";
+                long received = standIn.getDelivered().stream().filter(email -> email.endsWith(domain)).count();
+                System.out.format("Outbox:    %8.1f ms to send (%s), %d batches of %d, %d refused and retried%n",
+                    sendNanos / 1e6, status, outbox.getBatchesSent(), batch, outbox.getBatchesFailed());
+                System.out.format("           %d of %d ticket holders emailed, %d twice%n", received, holders, standIn.getDuplicates());
+            } finally {
+                pool.withConnection(conn -> deleteGig(conn, classicGig) + deleteGig(conn, outboxGig));
+            }
+        }
+    }
+
+    //A bench gig of two acts with tickets sold to holders new customers, each buying for the gig once or more
+    private static int createGig(Connection conn, int tickets, int holders) throws SQLException {
+        int gigID = BenchFixtures.createGig(conn, tickets, 2);
+        try (PreparedStatement fill = conn.prepareStatement(
+                "WITH fans AS (" +
+                "  INSERT INTO customer(customername, customeremail) " +
+                "  SELECT 'Fan ' || f || ' of ' || ?, 'fan' || f || '@gig' || ? || '.example' FROM generate_series(0, ? - 1) f " +
+                "  RETURNING customerID) " +
+                "INSERT INTO ticket(gigID, pricetype, cost, customerID) " +
+                "SELECT ?, 'A', 20, fan.customerID " +
+                "FROM (SELECT customerID, ROW_NUMBER() OVER (ORDER BY customerID) - 1 AS n FROM fans) fan " +
+                "JOIN generate_series(0, ? - 1) i ON i % ? = fan.n")) {
+            fill.setInt(1, gigID);
+            fill.setInt(2, gigID);
+            fill.setInt(3, holders);
+            fill.setInt(4, gigID);
+            fill.setInt(5, tickets);
+            fill.setInt(6, holders);
+            fill.executeUpdate();
+        }
+        return gigID;
+    }
+
+    private static String headliner(Connection conn, int gigID) {
+        String[][] lineup = GigSystem.task1(conn, gigID);
+        return lineup[lineup.length - 1][0];
+    }
+
+    private static String outboxStatus(Connection conn, int gigID) throws SQLException {
+        try (PreparedStatement stmt = conn.prepareStatement("SELECT status FROM cancellation_outbox WHERE gigID = ?")) {
+            stmt.setInt(1, gigID);
+            try (ResultSet rs = stmt.executeQuery()) {
+                return rs.next() ? rs.getString(1) : "Missing";
+            }
+        }
+    }
+
+    private static int deleteGig(Connection conn, int gigID) throws SQLException {
+        int deleted = 0;
+        for (String table : new String[] {"cancellation_outbox", "ticket", "gig_headliner", "gig_sold", "gig_ticket", "act_gig", "gig"}) {
+            try (PreparedStatement delete = conn.prepareStatement("DELETE FROM " + table + " WHERE gigID = ?")) {
+                delete.setInt(1, gigID);
+                deleted += delete.executeUpdate();
+            }
+        }
+        try (PreparedStatement delete = conn.prepareStatement("DELETE FROM customer WHERE customeremail LIKE ?")) {
+            delete.setString(1, "%@gig" + gigID + ".example");
+            deleted += delete.executeUpdate();
+        }
+        return deleted;
+    }
+}
@@ -0,0 +1,53 @@
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Has many threads race for the last few seats of a gig through task3 and checks that
+ * exactly the venue capacity gets sold, never more.
+ *
+ *   java -cp .:postgresql.jar LastSeatsStress [capacity] [threads] [rounds]
+ */
+public class LastSeatsStress {
+
+    public static void main(String[] args) throws Exception {
+        int capacity = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : 64;
+        int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 20;
+
+        int failures = 0;
+        try (ConnectionPool pool = new ConnectionPool(GigSystem::getPortConnection, threads)) {
+            for (int round = 0; round < rounds; round++) {
+                int gigID = pool.withConnection(conn -> BenchFixtures.createGig(conn, capacity));
+
+                //Every thread waits on the same latch so the bookings arrive together
+                CountDownLatch start = new CountDownLatch(1);
+                ExecutorService buyers = Executors.newFixedThreadPool(threads);
+                for (int t = 0; t < threads; t++) {
+                    String name = "buyer-" + gigID + "-" + t;
+                    buyers.execute(() -> {
+                        try {
+                            start.await();
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                        GigSystem.task3(pool, gigID, name, name + "@example.com", "A");
+                    });
+                }
+                start.countDown();
+                buyers.shutdown();
+                buyers.awaitTermination(5, TimeUnit.MINUTES);
+
+                int sold = pool.withConnection(conn -> BenchFixtures.countTickets(conn, gigID));
+                String verdict = sold == Math.min(capacity, threads) ? "ok" : "WRONG";
+                if (sold != Math.min(capacity, threads)) {
+                    failures++;
+                }
+                System.out.format("round %d: gig %d capacity %d, %d buyers, %d sold - %s%n", round, gigID, capacity, threads, sold, verdict);
+            }
+        }
+        System.out.println(failures == 0 ? "Capacity held in every round" : failures + " round(s) sold the wrong number of seats");
+        System.exit(failures == 0 ? 0 : 1);
+    }
+}
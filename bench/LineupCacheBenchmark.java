@@ -0,0 +1,135 @@
+import java.lang.management.ManagementFactory;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Supplier;
+
+/**
+ * Measures LineupCache against task1 straight from the database, on a database filled by ScheduleGenerator:
+ *
+ *   java -cp target/benchmarks.jar LineupCacheBenchmark [--size=10000] [--lookups=200000] [--url=jdbc:...]
+ *
+ * 1. The cost of a hit (time and bytes allocated per hit, which should be 0) next to an uncached task1.
+ * 2. The hit rate when gigs are asked for with a skew (a few popular gigs, a long tail) and the cache holds
+ *    fewer gigs than there are.
+ * 3. That an act_gig change made on another connection drops the line up once it commits.
+ */
+public class LineupCacheBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int size = 10000;
+        int lookups = 200000;
+        String url = null;
+        for (String arg : args) {
+            String value = arg.substring(arg.indexOf('=') + 1);
+            if (arg.startsWith("--size=")) {
+                size = Integer.parseInt(value);
+            } else if (arg.startsWith("--lookups=")) {
+                lookups = Integer.parseInt(value);
+            } else if (arg.startsWith("--url=")) {
+                url = value;
+            } else {
+                System.err.println("Unknown option " + arg);
+                return;
+            }
+        }
+        String jdbcUrl = url;
+        Supplier<Connection> factory = jdbcUrl == null ? GigSystem::getPortConnection : () -> {
+            try {
+                return DriverManager.getConnection(jdbcUrl);
+            } catch (SQLException e) {
+                System.err.println("SQL Error: " + e.getMessage());
+                return null;
+            }
+        };
+
+        try (ConnectionPool pool = new ConnectionPool(factory, 4);
+             GigChangeFeed feed = new GigChangeFeed(factory)) {
+            int gigs = pool.withConnection(conn -> {
+                try (PreparedStatement count = conn.prepareStatement("SELECT MAX(gigID) FROM gig");
+                     ResultSet rs = count.executeQuery()) {
+                    rs.next();
+                    return rs.getInt(1);
+                }
+            });
+            LineupCache cache = new LineupCache(pool, size);
+            feed.addListener(cache);
+            feed.start();
+            feed.awaitListening(10000);
+
+            hitCost(pool, cache, Math.min(gigs, size), lookups);
+            hitRate(cache, gigs, lookups);
+            invalidation(pool, cache, factory);
+        }
+    }
+
+    private static void hitCost(ConnectionPool pool, LineupCache cache, int gigs, int lookups) throws SQLException {
+        Connection conn = pool.borrow();
+        try {
+            int uncached = Math.min(lookups, 2000);
+            long start = System.nanoTime();
+            for (int i = 0; i < uncached; i++) {
+                GigSystem.task1(conn, 1 + i % gigs);
+            }
+            double taskMicros = (System.nanoTime() - start) / 1000.0 / uncached;
+
+            for (int gigID = 1; gigID <= gigs; gigID++) {
+                cache.get(gigID);
+            }
+            //Warm up the hit path before measuring it
+            long checksum = 0;
+            for (int i = 0; i < lookups; i++) {
+                checksum += cache.get(1 + i % gigs).length;
+            }
+            com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+            long allocatedBefore = threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+            start = System.nanoTime();
+            for (int i = 0; i < lookups; i++) {
+                checksum += cache.get(1 + i % gigs).length;
+            }
+            long nanos = System.nanoTime() - start;
+            long allocated = threads.getThreadAllocatedBytes(Thread.currentThread().getId()) - allocatedBefore;
+            System.out.format("task1 from the database: %.1f us per call%n", taskMicros);
+            System.out.format("cache hit: %.1f ns, %.2f bytes allocated per hit (checksum %d)%n",
+                nanos / (double) lookups, allocated / (double) lookups, checksum);
+        } finally {
+            pool.release(conn);
+        }
+    }
+
+    //Gig popularity falls off like 1/rank, so a cache of a fraction of the gigs should still catch most lookups
+    private static void hitRate(LineupCache cache, int gigs, int lookups) throws SQLException {
+        cache.clear();
+        cache.resetStatistics();
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        double logGigs = Math.log(gigs);
+        for (int i = 0; i < lookups; i++) {
+            int rank = (int) Math.exp(random.nextDouble() * logGigs);
+            cache.get(Math.max(1, Math.min(gigs, rank)));
+        }
+        System.out.format("skewed lookups over %d gigs with room for %d: hit rate %.1f%%, %d evictions%n",
+            gigs, cache.getMaxSize(), 100 * cache.getHitRate(), cache.getEvictions());
+    }
+
+    private static void invalidation(ConnectionPool pool, LineupCache cache, Supplier<Connection> factory) throws Exception {
+        int gigID = pool.withConnection(conn -> BenchFixtures.createGig(conn, 100, 3));
+        //Let the feed deliver the announcements for creating it
+        Thread.sleep(200);
+        String[][] before = cache.get(gigID);
+        long invalidationsBefore = cache.getInvalidations();
+        try (Connection other = factory.get()) {
+            other.createStatement().executeUpdate("UPDATE act_gig SET duration = duration WHERE gigID = " + gigID);
+        }
+        long start = System.nanoTime();
+        while (cache.getInvalidations() == invalidationsBefore && System.nanoTime() - start < 5_000_000_000L) {
+            Thread.sleep(1);
+        }
+        boolean dropped = cache.getInvalidations() > invalidationsBefore;
+        String[][] after = cache.get(gigID);
+        System.out.format("act_gig change on another connection: %s after %.1f ms, line up %s cached object%n",
+            dropped ? "dropped" : "NOT dropped", (System.nanoTime() - start) / 1e6, after == before ? "is still the" : "replaced the");
+    }
+}
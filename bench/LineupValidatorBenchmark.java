@@ -0,0 +1,328 @@
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.function.Supplier;
+
+/**
+ * Compares checking large line ups with LineupValidator against sending them straight to task2 and its triggers,
+ * on a database filled by ScheduleGenerator:
+ *
+ *   java -cp target/benchmarks.jar LineupValidatorBenchmark [--lineups=200] [--acts=15] [--url=jdbc:...]
+ *
+ * Half the line ups are clean. The rest have one to four mistakes put in on purpose (overlaps, long sets, gaps,
+ * two fees, an act already booked elsewhere, too early, too late, first act late). Each line up is validated, and
+ * then organised through task2 for real. Gigs that get through are deleted again at the end.
+ *
+ * Prints the time per line up both ways, how many mistakes each finds per attempt, and whether they agreed:
+ * a line up the validator passes should get through task2, and when task2 refuses one the rule it names should be
+ * among those the validator reported. Rule 6 is the exception, as its trigger doesn't run on task2's insert.
+ */
+public class LineupValidatorBenchmark {
+
+    private static final String[] MISTAKES = {"overlap", "long set", "gap", "two fees", "booked elsewhere",
+        "too early", "too late", "first act late"};
+
+    public static void main(String[] args) throws Exception {
+        int lineups = 200;
+        int acts = 15;
+        String url = null;
+        for (String arg : args) {
+            String value = arg.substring(arg.indexOf('=') + 1);
+            if (arg.startsWith("--lineups=")) {
+                lineups = Integer.parseInt(value);
+            } else if (arg.startsWith("--acts=")) {
+                acts = Integer.parseInt(value);
+            } else if (arg.startsWith("--url=")) {
+                url = value;
+            } else {
+                System.err.println("Unknown option " + arg);
+                return;
+            }
+        }
+        String jdbcUrl = url;
+        Supplier<Connection> factory = jdbcUrl == null ? GigSystem::getPortConnection : () -> {
+            try {
+                return DriverManager.getConnection(jdbcUrl);
+            } catch (SQLException e) {
+                System.err.println("SQL Error: " + e.getMessage());
+                return null;
+            }
+        };
+
+        try (ConnectionPool pool = new ConnectionPool(factory, 2);
+             ScheduleIndex schedule = new ScheduleIndex(pool)) {
+            schedule.reload();
+            LineupValidator validator = new LineupValidator(schedule, pool);
+            Generator generator = new Generator(pool, schedule.snapshot(), acts);
+            List<Lineup> planned = new ArrayList<>();
+            for (int i = 0; i < lineups; i++) {
+                planned.add(generator.next(i % 2 == 0 ? 0 : 1 + generator.random.nextInt(4)));
+            }
+
+            //Validate every line up a few times over so the JIT has compiled it, and time the last round
+            List<List<LineupValidator.Violation>> found = new ArrayList<>();
+            long validateNanos = 0;
+            for (int round = 0; round < 5; round++) {
+                found.clear();
+                long start = System.nanoTime();
+                for (Lineup lineup : planned) {
+                    found.add(validator.validate(lineup.venue, lineup.start, lineup.acts));
+                }
+                validateNanos = System.nanoTime() - start;
+            }
+
+            List<Integer> created = new ArrayList<>();
+            int agree = 0;
+            int validatorStricterOnRule6 = 0;
+            int violationsFound = 0;
+            int refusedByTriggers = 0;
+            TreeMap<Integer, Integer> byRule = new TreeMap<>();
+            long triggerNanos = 0;
+            try {
+                for (int i = 0; i < planned.size(); i++) {
+                    Lineup lineup = planned.get(i);
+                    List<LineupValidator.Violation> violations = found.get(i);
+                    violationsFound += violations.size();
+                    for (LineupValidator.Violation violation : violations) {
+                        byRule.merge(violation.rule, 1, Integer::sum);
+                    }
+                    String refusal = null;
+                    String title = "Validator Check " + i;
+                    long start = System.nanoTime();
+                    try {
+                        int gigID = pool.withConnection(conn ->
+                            GigSystem.organiseGig(conn, lineup.venue, title, lineup.start, 20, lineup.acts));
+                        created.add(gigID);
+                    } catch (SQLException e) {
+                        refusal = e.getMessage();
+                        refusedByTriggers++;
+                    }
+                    triggerNanos += System.nanoTime() - start;
+
+                    int refusedRule = refusal == null ? -1 : GigMetrics.ruleNumber(refusal);
+                    boolean validatorNamesIt = false;
+                    boolean onlyRule6 = !violations.isEmpty();
+                    for (LineupValidator.Violation violation : violations) {
+                        validatorNamesIt |= violation.rule == refusedRule;
+                        onlyRule6 &= violation.rule == 6;
+                    }
+                    if (refusal == null && violations.isEmpty() || refusal != null && validatorNamesIt) {
+                        agree++;
+                    } else if (refusal == null && onlyRule6) {
+                        validatorStricterOnRule6++;
+                    } else {
+                        System.out.format("  MISMATCH line up %d (%s): validator %s, task2 %s%n", i, lineup.mistakes,
+                            violations.isEmpty() ? "passed it" : violations, refusal == null ? "accepted it" : refusal.split("\n")[0]);
+                    }
+                }
+            } finally {
+                deleteGigs(pool, created);
+            }
+
+            int n = planned.size();
+            System.out.format("%d line ups of %d acts, %d with mistakes put in%n", n, acts, n / 2);
+            System.out.format("LineupValidator: %8.1f us per line up, %d violations found (%.1f per line up with mistakes)%n",
+                validateNanos / 1000.0 / n, violationsFound, violationsFound / Math.max(1.0, n / 2));
+            System.out.format("task2 triggers:  %8.1f us per attempt, %d refused (one rule named per attempt)%n",
+                triggerNanos / 1000.0 / n, refusedByTriggers);
+            System.out.format("Finding every violation one attempt at a time would take at least %.1f ms of task2 calls, "
+                + "the validator found them all in %.1f ms%n",
+                violationsFound * triggerNanos / 1e6 / n, validateNanos / 1e6);
+            System.out.println("Violations by rule: " + byRule);
+            System.out.format("Agreed on %d of %d, validator stricter on Rule 6 only (not checked on insert) for %d%n",
+                agree, n, validatorStricterOnRule6);
+        }
+    }
+
+    private static void deleteGigs(ConnectionPool pool, List<Integer> gigIDs) throws SQLException {
+        if (gigIDs.isEmpty()) {
+            return;
+        }
+        pool.withConnection(conn -> {
+            Object[] ids = gigIDs.toArray();
+            for (String table : new String[] {"gig_headliner", "gig_sold", "gig_ticket", "act_gig", "gig"}) {
+                try (PreparedStatement delete = conn.prepareStatement("DELETE FROM " + table + " WHERE gigID = ANY(?)")) {
+                    delete.setArray(1, conn.createArrayOf("integer", ids));
+                    delete.executeUpdate();
+                }
+            }
+            return null;
+        });
+    }
+
+    private static final class Lineup {
+        final String venue;
+        final LocalDateTime start;
+        final ActPerformanceDetails[] acts;
+        final List<String> mistakes;
+
+        Lineup(String venue, LocalDateTime start, ActPerformanceDetails[] acts, List<String> mistakes) {
+            this.venue = venue;
+            this.start = start;
+            this.acts = acts;
+            this.mistakes = mistakes;
+        }
+    }
+
+    /*
+     * Builds clean line ups at free venues with free acts from noon (30 minute sets, 10 minute changeovers), then
+     * breaks them on request. The generated schedule is all in one year, so days are drawn from that year.
+     */
+    private static final class Generator {
+        final Random random = new Random(17);
+        final ScheduleIndex.Snapshot snapshot;
+        final int acts;
+        final String[] venueNames;
+        final boolean[] rockOrPop;
+        //actIDs have gaps where inserts were rolled back
+        final boolean[] actExists;
+        final int firstDay;
+        final int days;
+
+        Generator(ConnectionPool pool, ScheduleIndex.Snapshot snapshot, int acts) throws SQLException {
+            this.snapshot = snapshot;
+            this.acts = acts;
+            List<String> names = new ArrayList<>();
+            List<Boolean> genres = new ArrayList<>();
+            int[] span = new int[2];
+            pool.withConnection(conn -> {
+                try (Statement stmt = conn.createStatement()) {
+                    try (ResultSet rs = stmt.executeQuery("SELECT venueID, venuename FROM venue ORDER BY venueID")) {
+                        while (rs.next()) {
+                            while (names.size() < rs.getInt(1)) {
+                                names.add(null);
+                            }
+                            names.add(rs.getString(2));
+                        }
+                    }
+                    try (ResultSet rs = stmt.executeQuery("SELECT actID, genre IN ('rock', 'pop') FROM act ORDER BY actID")) {
+                        while (rs.next()) {
+                            while (genres.size() < rs.getInt(1)) {
+                                genres.add(null);
+                            }
+                            genres.add(rs.getBoolean(2));
+                        }
+                    }
+                    try (ResultSet rs = stmt.executeQuery(
+                            "SELECT MIN(gigdatetime)::DATE, (MAX(gigdatetime)::DATE - MIN(gigdatetime)::DATE) FROM gig " +
+                            "WHERE gigdatetime < (SELECT MIN(gigdatetime) + interval '1 year' FROM gig)")) {
+                        rs.next();
+                        span[0] = ScheduleIndex.minute(rs.getDate(1).toLocalDate());
+                        span[1] = Math.max(1, rs.getInt(2));
+                    }
+                }
+                return null;
+            });
+            venueNames = names.toArray(new String[0]);
+            rockOrPop = new boolean[genres.size()];
+            actExists = new boolean[genres.size()];
+            for (int i = 0; i < rockOrPop.length; i++) {
+                rockOrPop[i] = Boolean.TRUE.equals(genres.get(i));
+                actExists[i] = genres.get(i) != null;
+            }
+            firstDay = span[0];
+            days = span[1];
+        }
+
+        Lineup next(int mistakes) {
+            int length = acts * 40 - 10;
+            int venueID;
+            int start;
+            do {
+                venueID = 1 + random.nextInt(venueNames.length - 1);
+                start = firstDay + random.nextInt(days) * ScheduleIndex.MINUTES_PER_DAY + 12 * 60;
+            } while (venueNames[venueID] == null || !snapshot.isVenueFree(venueID, start, length));
+
+            int[] actIDs = new int[acts];
+            int[] onTimes = new int[acts];
+            int[] durations = new int[acts];
+            for (int i = 0; i < acts; i++) {
+                onTimes[i] = start + i * 40;
+                durations[i] = 30;
+                actIDs[i] = freeAct(onTimes[i], durations[i], actIDs, i, false);
+            }
+            List<String> made = new ArrayList<>();
+            for (int m = 0; m < mistakes; m++) {
+                String mistake = MISTAKES[random.nextInt(MISTAKES.length)];
+                //Leave the first act alone for the ones that move an act, so each mistake stays one mistake
+                int i = 1 + random.nextInt(acts - 1);
+                switch (mistake) {
+                    case "overlap":
+                        onTimes[i] -= 15;
+                        break;
+                    case "long set":
+                        durations[i] = 95;
+                        break;
+                    case "gap":
+                        onTimes[i] += 25;
+                        break;
+                    case "two fees":
+                        actIDs[i] = actIDs[i - 1];
+                        break;
+                    case "booked elsewhere":
+                        actIDs[i] = busyAct(onTimes[i], durations[i]);
+                        break;
+                    case "too early":
+                        start -= 4 * 60;
+                        for (int k = 0; k < acts; k++) {
+                            onTimes[k] -= 4 * 60;
+                        }
+                        break;
+                    case "too late":
+                        //A rock or pop act to close, with everything moved so it finishes at 23:10
+                        int shift = start - 12 * 60 + 23 * 60 + 10 - (onTimes[acts - 1] + durations[acts - 1]);
+                        start += shift;
+                        for (int k = 0; k < acts; k++) {
+                            onTimes[k] += shift;
+                        }
+                        actIDs[acts - 1] = freeAct(onTimes[acts - 1], durations[acts - 1], actIDs, acts - 1, true);
+                        break;
+                    default:
+                        onTimes[0] += 5;
+                        break;
+                }
+                made.add(mistake);
+            }
+            ActPerformanceDetails[] details = new ActPerformanceDetails[acts];
+            for (int i = 0; i < acts; i++) {
+                //Two fees comes from the same act being paid differently at two points in the line up
+                int fee = 100 + (made.contains("two fees") && i > 0 && actIDs[i] == actIDs[i - 1] ? 50 : 0);
+                details[i] = new ActPerformanceDetails(actIDs[i], fee, ScheduleIndex.time(onTimes[i]), durations[i]);
+            }
+            return new Lineup(venueNames[venueID], ScheduleIndex.time(start), details, made);
+        }
+
+        //Not already in the line up, and free for a while either side so moving it doesn't clash.
+        //Not rock or pop unless asked, so a late finish is only a mistake when we make it one.
+        private int freeAct(int start, int duration, int[] chosen, int count, boolean rock) {
+            while (true) {
+                int actID = 1 + random.nextInt(rockOrPop.length - 1);
+                boolean repeat = false;
+                for (int i = 0; i < count; i++) {
+                    repeat |= chosen[i] == actID;
+                }
+                if (!repeat && actExists[actID] && rockOrPop[actID] == rock && snapshot.isActFree(actID, start - 240, duration + 480)) {
+                    return actID;
+                }
+            }
+        }
+
+        private int busyAct(int start, int duration) {
+            for (int tries = 0; tries < 100000; tries++) {
+                int actID = 1 + random.nextInt(rockOrPop.length - 1);
+                if (actExists[actID] && !rockOrPop[actID] && !snapshot.isActFree(actID, start, duration)) {
+                    return actID;
+                }
+            }
+            return 1;
+        }
+    }
+}
@@ -0,0 +1,344 @@
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
+
+import org.HdrHistogram.Histogram;
+
+/**
+ * Replays on-sale traffic: many threads calling a mix of GigSystem tasks, either as fast as they can
+ * or at a fixed total rate, and reports latency percentiles and error rates per task.
+ * Meant for a database filled by ScheduleGenerator (it books as the same "Customer n" names).
+ *
+ *   java -cp target/benchmarks.jar LoadDriver [--threads=32] [--rate=0] [--seconds=60] [--warmup=10]
+ *        [--mix=task1:50,task3:40,task4:1,task5:2,task6:2,task7:2,task8:3] [--customers=1000000]
+ *        [--report-pool=0] [--report-staleness=5000] [--report-url=jdbc:...] [--url=jdbc:...]
+ *
+ * --rate=0 runs closed loop: each thread starts its next call as soon as the last one returns.
+ * With a rate, the calls are spread evenly over the threads and latency is measured from when each call was due,
+ * not from when it actually started. So if the system falls behind, the queueing shows up in the percentiles
+ * instead of being hidden by the driver slowing down.
+ *
+ * Booking refusals the rules are meant to produce (sold out, cancelled gig) are counted apart from errors.
+ * task1 doesn't throw, so for it an empty answer counts as an error. task4 goes through GigSystem.cancelAct, as the
+ * server's does, so a cancelled gig's ticket holders are queued in cancellation_outbox rather than read back.
+ *
+ * With --report-pool above 0, task5 to task8 go through a ReportingLane of that many read only connections, handing
+ * results out again until they are --report-staleness ms old, as GigServer does. Otherwise they share the pool with
+ * everything else. The lane's hits and misses are printed at the end.
+ */
+public class LoadDriver {
+
+    private static final String[] TASKS = {"task1", "task3", "task4", "task5", "task6", "task7", "task8"};
+
+    private int threads = 32;
+    private double rate = 0;
+    private int seconds = 60;
+    private int warmup = 10;
+    private int customers = 1000000;
+    private int reportPool = 0;
+    private long reportStaleness = 5000;
+    private ReportingLane reports;
+    private final int[] weights = new int[TASKS.length];
+
+    private int firstGig;
+    private int lastGig;
+
+    public static void main(String[] args) throws Exception {
+        LoadDriver driver = new LoadDriver();
+        String url = null;
+        String reportUrl = null;
+        driver.parseMix("task1:50,task3:40,task4:1,task5:2,task6:2,task7:2,task8:3");
+        for (String arg : args) {
+            String value = arg.substring(arg.indexOf('=') + 1);
+            if (arg.startsWith("--threads=")) {
+                driver.threads = Integer.parseInt(value);
+            } else if (arg.startsWith("--rate=")) {
+                driver.rate = Double.parseDouble(value);
+            } else if (arg.startsWith("--seconds=")) {
+                driver.seconds = Integer.parseInt(value);
+            } else if (arg.startsWith("--warmup=")) {
+                driver.warmup = Integer.parseInt(value);
+            } else if (arg.startsWith("--mix=")) {
+                driver.parseMix(value);
+            } else if (arg.startsWith("--customers=")) {
+                driver.customers = Integer.parseInt(value);
+            } else if (arg.startsWith("--report-pool=")) {
+                driver.reportPool = Integer.parseInt(value);
+            } else if (arg.startsWith("--report-staleness=")) {
+                driver.reportStaleness = Long.parseLong(value);
+            } else if (arg.startsWith("--report-url=")) {
+                reportUrl = value;
+            } else if (arg.startsWith("--url=")) {
+                url = value;
+            } else {
+                System.err.println("Unknown option " + arg);
+                return;
+            }
+        }
+
+        String jdbcUrl = url;
+        Supplier<Connection> factory = jdbcUrl == null ? GigSystem::getPortConnection : () -> {
+            try {
+                return DriverManager.getConnection(jdbcUrl);
+            } catch (SQLException e) {
+                System.err.println("SQL Error: " + e.getMessage());
+                return null;
+            }
+        };
+        String reportJdbcUrl = reportUrl;
+        Supplier<Connection> reportFactory = reportJdbcUrl == null ? factory : () -> {
+            try {
+                return DriverManager.getConnection(reportJdbcUrl);
+            } catch (SQLException e) {
+                System.err.println("SQL Error: " + e.getMessage());
+                return null;
+            }
+        };
+        try (ConnectionPool pool = new ConnectionPool(factory, driver.threads)) {
+            if (driver.reportPool > 0) {
+                driver.reports = new ReportingLane(reportFactory, driver.reportPool, driver.reportStaleness);
+            }
+            try {
+                driver.run(pool);
+            } finally {
+                if (driver.reports != null) {
+                    driver.reports.close();
+                }
+            }
+        }
+    }
+
+    private void parseMix(String mix) {
+        Arrays.fill(weights, 0);
+        for (String part : mix.split(",")) {
+            String[] nameWeight = part.split(":");
+            int task = List.of(TASKS).indexOf(nameWeight[0].trim());
+            if (task < 0) {
+                throw new IllegalArgumentException("Unknown task " + nameWeight[0]);
+            }
+            weights[task] = Integer.parseInt(nameWeight[1].trim());
+        }
+    }
+
+    //What one thread saw for one task
+    private static class Outcome {
+        final Histogram micros = new Histogram(TimeUnit.MINUTES.toMicros(10), 3);
+        long ok;
+        long refused;
+        long errors;
+
+        void add(Outcome other) {
+            micros.add(other.micros);
+            ok += other.ok;
+            refused += other.refused;
+            errors += other.errors;
+        }
+    }
+
+    private enum Result { OK, REFUSED, ERROR }
+
+    public void run(ConnectionPool pool) throws Exception {
+        pool.withConnection(conn -> {
+            try (Statement stmt = conn.createStatement(); ResultSet rs = stmt.executeQuery("SELECT MIN(gigID), MAX(gigID) FROM gig")) {
+                rs.next();
+                firstGig = rs.getInt(1);
+                lastGig = rs.getInt(2);
+            }
+            return null;
+        });
+        if (lastGig == 0) {
+            throw new SQLException("No gigs to work with, run ScheduleGenerator first");
+        }
+
+        int totalWeight = 0;
+        for (int weight : weights) {
+            totalWeight += weight;
+        }
+        int[] cumulative = new int[TASKS.length];
+        for (int t = 0, sum = 0; t < TASKS.length; t++) {
+            sum += weights[t];
+            cumulative[t] = sum;
+        }
+
+        long start = System.nanoTime();
+        long measureFrom = start + TimeUnit.SECONDS.toNanos(warmup);
+        long end = measureFrom + TimeUnit.SECONDS.toNanos(seconds);
+        long interval = rate > 0 ? (long) (threads * 1e9 / rate) : 0;
+
+        List<Outcome[]> perThread = new ArrayList<>();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        for (int i = 0; i < threads; i++) {
+            Outcome[] outcomes = new Outcome[TASKS.length];
+            for (int t = 0; t < TASKS.length; t++) {
+                outcomes[t] = new Outcome();
+            }
+            perThread.add(outcomes);
+            //Stagger the threads so a fixed rate isn't delivered in bursts
+            long offset = interval * i / threads;
+            int totalWeightFinal = totalWeight;
+            executor.execute(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                long due = start + offset;
+                while (true) {
+                    long wait;
+                    while (interval > 0 && (wait = due - System.nanoTime()) > 0) {
+                        LockSupport.parkNanos(wait);
+                    }
+                    long began = interval > 0 ? due : System.nanoTime();
+                    if (began >= end) {
+                        return;
+                    }
+                    int pick = random.nextInt(totalWeightFinal);
+                    int task = 0;
+                    while (cumulative[task] <= pick) {
+                        task++;
+                    }
+                    Result result = call(pool, task, random);
+                    long finished = System.nanoTime();
+                    if (began >= measureFrom) {
+                        Outcome outcome = outcomes[task];
+                        outcome.micros.recordValue(Math.min(outcome.micros.getHighestTrackableValue(), (finished - began) / 1000));
+                        if (result == Result.OK) {
+                            outcome.ok++;
+                        } else if (result == Result.REFUSED) {
+                            outcome.refused++;
+                        } else {
+                            outcome.errors++;
+                        }
+                    }
+                    due += interval;
+                }
+            });
+        }
+        executor.shutdown();
+        executor.awaitTermination(warmup + seconds + 600, TimeUnit.SECONDS);
+
+        System.out.format("%d threads, %s, %d s measured after %d s warm up%n", threads,
+            rate > 0 ? "target " + rate + " calls/s" : "closed loop", seconds, warmup);
+        System.out.println("task          calls    calls/s     p50 ms     p99 ms    p999 ms     max ms  refused %   errors %");
+        Outcome all = new Outcome();
+        for (int t = 0; t < TASKS.length; t++) {
+            Outcome total = new Outcome();
+            for (Outcome[] outcomes : perThread) {
+                total.add(outcomes[t]);
+            }
+            all.add(total);
+            if (weights[t] > 0) {
+                print(TASKS[t], total);
+            }
+        }
+        print("all", all);
+        if (reports != null) {
+            System.out.format("Reporting lane: %d sessions, results up to %d ms old, %d queries, %d hits, %d shared, hit rate %.3f%n",
+                reportPool, reportStaleness, reports.getMisses(), reports.getHits(), reports.getShared(), reports.getHitRate());
+        }
+    }
+
+    private void print(String name, Outcome outcome) {
+        long calls = outcome.ok + outcome.refused + outcome.errors;
+        if (calls == 0) {
+            System.out.format("%-8s %10d%n", name, 0);
+            return;
+        }
+        Histogram h = outcome.micros;
+        System.out.format("%-8s %10d %10.1f %10.2f %10.2f %10.2f %10.2f %10.2f %10.2f%n", name, calls, calls / (double) seconds,
+            h.getValueAtPercentile(50) / 1000.0, h.getValueAtPercentile(99) / 1000.0, h.getValueAtPercentile(99.9) / 1000.0,
+            h.getMaxValue() / 1000.0, 100.0 * outcome.refused / calls, 100.0 * outcome.errors / calls);
+    }
+
+    private Result call(ConnectionPool pool, int task, ThreadLocalRandom random) {
+        int gigID = firstGig + random.nextInt(lastGig - firstGig + 1);
+        try {
+            if (reports != null && task >= 3) {
+                return laneReport(task);
+            }
+            return pool.withConnection(conn -> {
+                switch (TASKS[task]) {
+                    case "task1":
+                        return GigSystem.task1(conn, gigID) != null ? Result.OK : Result.ERROR;
+                    case "task3":
+                        return book(conn, gigID, random);
+                    case "task4":
+                        return cancelAct(conn, gigID, random);
+                    default:
+                        return report(conn, task);
+                }
+            });
+        } catch (SQLException | RuntimeException e) {
+            return Result.ERROR;
+        }
+    }
+
+    private Result book(Connection conn, int gigID, ThreadLocalRandom random) {
+        int customer = 1 + random.nextInt(customers);
+        try {
+            GigSystem.bookTicket(conn, gigID, "Customer " + customer, "customer" + customer + "@example.com", "A");
+            return Result.OK;
+        } catch (SQLException e) {
+            String message = String.valueOf(e.getMessage());
+            return message.contains("RULE 9") || message.contains("cancelled") ? Result.REFUSED : Result.ERROR;
+        }
+    }
+
+    private Result cancelAct(Connection conn, int gigID, ThreadLocalRandom random) {
+        String[][] lineup = GigSystem.task1(conn, gigID);
+        if (lineup == null || lineup.length == 0) {
+            //Already cancelled down to nothing
+            return Result.REFUSED;
+        }
+        try {
+            GigSystem.cancelAct(conn, gigID, lineup[random.nextInt(lineup.length)][0]);
+            return Result.OK;
+        } catch (SQLException e) {
+            return Result.ERROR;
+        }
+    }
+
+    private Result laneReport(int task) throws SQLException {
+        switch (TASKS[task]) {
+            case "task5":
+                reports.task5();
+                break;
+            case "task6":
+                reports.task6();
+                break;
+            case "task7":
+                reports.task7(null);
+                break;
+            default:
+                reports.task8();
+                break;
+        }
+        return Result.OK;
+    }
+
+    private Result report(Connection conn, int task) throws SQLException {
+        GigSystem.RowHandler ignore = row -> { };
+        switch (TASKS[task]) {
+            case "task5":
+                GigSystem.task5(conn, GigSystem.DEFAULT_FETCH_SIZE, ignore);
+                break;
+            case "task6":
+                GigSystem.task6(conn, GigSystem.DEFAULT_FETCH_SIZE, ignore);
+                break;
+            case "task7":
+                GigSystem.task7(conn, GigSystem.DEFAULT_FETCH_SIZE, ignore);
+                break;
+            default:
+                GigSystem.task8(conn, GigSystem.DEFAULT_FETCH_SIZE, ignore);
+                break;
+        }
+        return Result.OK;
+    }
+}
@@ -0,0 +1,64 @@
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures what GigMetrics adds to every task call: the same begin/rows/committed/finish sequence the task methods
+ * run, from many threads at once and with no database, so the time per call is all recording overhead.
+ *
+ *   java -cp target/benchmarks.jar MetricsOverheadBenchmark [callsPerThread] [threadCounts...]
+ *   java -XX:StartFlightRecording=filename=overhead.jfr -cp target/benchmarks.jar MetricsOverheadBenchmark
+ *
+ * The second line shows the cost with JFR recording every call as an event. ns/call is CPU time per call, i.e. the
+ * elapsed time spread over the threads that can actually run at once.
+ * A task call is at least one database round trip (100s of microseconds), so anything well under a microsecond here
+ * is lost in the noise.
+ */
+public class MetricsOverheadBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int calls = args.length > 0 ? Integer.parseInt(args[0]) : 5000000;
+        int[] threadCounts = {1, 4, 16, 64};
+        if (args.length > 1) {
+            threadCounts = new int[args.length - 1];
+            for (int i = 1; i < args.length; i++) {
+                threadCounts[i - 1] = Integer.parseInt(args[i]);
+            }
+        }
+
+        //Warm up so the JIT has compiled the recording path before anything is timed
+        run(4, calls / 10);
+
+        System.out.println("threads, calls, seconds, calls/sec, ns/call");
+        for (int threads : threadCounts) {
+            GigMetrics.get().reset();
+            long start = System.nanoTime();
+            run(threads, calls);
+            long nanos = System.nanoTime() - start;
+            long total = (long) threads * calls;
+            System.out.format("%d, %d, %.2f, %.0f, %.1f%n", threads, total, nanos / 1e9, total / (nanos / 1e9),
+                nanos * (double) Math.min(threads, Runtime.getRuntime().availableProcessors()) / total);
+        }
+        System.out.println("task1 calls recorded: " + GigMetrics.get().getCalls().get("task1"));
+    }
+
+    private static void run(int threads, int calls) throws InterruptedException {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            executor.execute(() -> {
+                for (int i = 0; i < calls; i++) {
+                    GigMetrics.Call call = GigMetrics.begin(1 + (i & 7));
+                    call.committed();
+                    call.rows(i & 15);
+                    call.finish();
+                }
+                done.countDown();
+            });
+        }
+        done.await();
+        executor.shutdown();
+        executor.awaitTermination(1, TimeUnit.MINUTES);
+    }
+}
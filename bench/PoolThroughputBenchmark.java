@@ -0,0 +1,76 @@
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Measures task3 booking throughput through a ConnectionPool for a range of pool sizes.
+ * Run against a local Postgres that has schema.sql loaded (it uses GigSystem.getPortConnection()):
+ *
+ *   java -cp .:postgresql.jar PoolThroughputBenchmark [bookingsPerRun] [poolSizes...]
+ *
+ * Every run books into freshly created gigs so capacity never limits the numbers. Each pool size is measured twice:
+ * with every booking for one gig, where they all queue for that gig's gig_sold row lock whatever the pool size,
+ * and with each worker thread booking its own gig, where they only share the pool and the database.
+ * The gap between the two columns is how much of the throughput the hot gig costs.
+ */
+public class PoolThroughputBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int bookings = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        int[] poolSizes = {1, 2, 4, 8, 16, 32};
+        if (args.length > 1) {
+            poolSizes = new int[args.length - 1];
+            for (int i = 1; i < args.length; i++) {
+                poolSizes[i - 1] = Integer.parseInt(args[i]);
+            }
+        }
+
+        System.out.println("pool size, bookings, one gig seconds, one gig bookings/sec, gig per thread seconds, gig per thread bookings/sec");
+        for (int size : poolSizes) {
+            try (ConnectionPool pool = new ConnectionPool(GigSystem::getPortConnection, size)) {
+                int oneGig = pool.withConnection(conn -> BenchFixtures.createGig(conn, bookings * 2));
+                int[] sameGig = new int[size];
+                Arrays.fill(sameGig, oneGig);
+                int[] ownGig = new int[size];
+                for (int t = 0; t < size; t++) {
+                    ownGig[t] = pool.withConnection(conn -> BenchFixtures.createGig(conn, bookings * 2));
+                }
+                //Warm up every connection before timing
+                runBookings(pool, sameGig, size * 10, "warmup");
+
+                double oneGigSeconds = runBookings(pool, sameGig, bookings, "one");
+                double ownGigSeconds = runBookings(pool, ownGig, bookings, "own");
+                System.out.format("%d, %d, %.2f, %.0f, %.2f, %.0f%n", size, bookings, oneGigSeconds, bookings / oneGigSeconds,
+                    ownGigSeconds, bookings / ownGigSeconds);
+            }
+        }
+    }
+
+    //One worker per gig in gigIDs (they can repeat), sharing out the bookings between them. Returns the seconds taken.
+    private static double runBookings(ConnectionPool pool, int[] gigIDs, int bookings, String prefix) throws InterruptedException {
+        int threads = gigIDs.length;
+        long start = System.nanoTime();
+        ExecutorService workers = Executors.newFixedThreadPool(threads);
+        AtomicInteger next = new AtomicInteger();
+        CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            int gigID = gigIDs[t];
+            workers.execute(() -> {
+                int i;
+                while ((i = next.getAndIncrement()) < bookings) {
+                    String name = prefix + "-customer-" + gigID + "-" + i;
+                    GigSystem.task3(pool, gigID, name, name + "@example.com", "A");
+                }
+                done.countDown();
+            });
+        }
+        done.await();
+        double seconds = (System.nanoTime() - start) / 1e9;
+        workers.shutdown();
+        workers.awaitTermination(1, TimeUnit.MINUTES);
+        return seconds;
+    }
+}
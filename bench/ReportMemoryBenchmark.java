@@ -0,0 +1,112 @@
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compares peak heap use of the String[][] and streaming versions of task7 (regular customers).
+ *
+ *   java -Xmx8g -cp .:postgresql.jar ReportMemoryBenchmark [tickets] [--load]
+ *
+ * With --load it first fills an empty schema.sql database with the given number of tickets (10M by default):
+ * 100 acts each headlining one gig a year for 10 years, and every customer seeing the same act in every
+ * year, so the report returns one row per customer (tickets / 10 rows). Loading switches triggers off with
+ * session_replication_role, which needs a superuser.
+ */
+public class ReportMemoryBenchmark {
+
+    private static final int ACTS = 100;
+    private static final int YEARS = 10;
+
+    public static void main(String[] args) throws Exception {
+        long tickets = args.length > 0 ? Long.parseLong(args[0]) : 10000000L;
+        boolean load = args.length > 1 && args[1].equals("--load");
+
+        Connection conn = GigSystem.getPortConnection();
+        if (load) {
+            load(conn, tickets);
+        }
+
+        long[] materialised = measure(() -> {
+            String[][] rows = GigSystem.task7(conn);
+            return rows.length;
+        });
+        long[] streamed = measure(() -> {
+            AtomicLong count = new AtomicLong();
+            GigSystem.task7(conn, GigSystem.DEFAULT_FETCH_SIZE, row -> {
+                //Use the row the way a caller would, without keeping it
+                if (row.getString(1) != null && row.getString(2) != null) {
+                    count.incrementAndGet();
+                }
+            });
+            return count.get();
+        });
+
+        System.out.println("                rows   peak heap MB   seconds");
+        System.out.format("String[][] %9d %14.1f %9.2f%n", materialised[0], materialised[1] / 1048576.0, materialised[2] / 1e9);
+        System.out.format("streaming  %9d %14.1f %9.2f%n", streamed[0], streamed[1] / 1048576.0, streamed[2] / 1e9);
+        conn.close();
+    }
+
+    private interface Report {
+        long run() throws SQLException;
+    }
+
+    //Returns {rows, peak heap growth in bytes, nanoseconds}
+    private static long[] measure(Report report) throws Exception {
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        System.gc();
+        long baseline = memory.getHeapMemoryUsage().getUsed();
+        AtomicLong peak = new AtomicLong(baseline);
+        AtomicBoolean done = new AtomicBoolean(false);
+        Thread sampler = new Thread(() -> {
+            while (!done.get()) {
+                peak.accumulateAndGet(memory.getHeapMemoryUsage().getUsed(), Math::max);
+                try {
+                    Thread.sleep(2);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        });
+        sampler.start();
+        long start = System.nanoTime();
+        long rows = report.run();
+        long elapsed = System.nanoTime() - start;
+        done.set(true);
+        sampler.join();
+        return new long[] {rows, peak.get() - baseline, elapsed};
+    }
+
+    private static void load(Connection conn, long tickets) throws SQLException {
+        long customers = Math.max(1, tickets / YEARS);
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute("SET session_replication_role = replica");
+            stmt.execute("INSERT INTO venue(venuename, hirecost, capacity) " +
+                "SELECT 'Memory Venue ' || a, 1000, 100000000 FROM generate_series(1, " + ACTS + ") a");
+            stmt.execute("INSERT INTO act(actname, genre, standardfee) " +
+                "SELECT 'Memory Act ' || a, 'jazz', 500 FROM generate_series(1, " + ACTS + ") a");
+            //gigID = year * ACTS + act on an empty database
+            stmt.execute("INSERT INTO gig(venueID, gigtitle, gigdatetime, gigstatus) " +
+                "SELECT a, 'Memory Gig ' || y || '/' || a, make_timestamp(2015 + y, 6, 1, 19, 0, 0), 'GoingAhead' " +
+                "FROM generate_series(0, " + (YEARS - 1) + ") y, generate_series(1, " + ACTS + ") a ORDER BY y, a");
+            stmt.execute("INSERT INTO act_gig(actID, gigID, actgigfee, ontime, duration) " +
+                "SELECT venueID, gigID, 500, gigdatetime, 60 FROM gig");
+            stmt.execute("INSERT INTO gig_ticket(gigID, pricetype, price) SELECT gigID, 'A', 20 FROM gig");
+            //customerID = i + 1 on an empty database
+            stmt.execute("INSERT INTO customer(customername, customeremail) " +
+                "SELECT 'Customer ' || i, 'customer' || i || '@example.com' FROM generate_series(0, " + (customers - 1) + ") i ORDER BY i");
+            stmt.execute("INSERT INTO ticket(gigID, pricetype, cost, customerID) " +
+                "SELECT (i / " + customers + ") % " + YEARS + " * " + ACTS + " + (i % " + customers + ") % " + ACTS + " + 1, 'A', 20, " +
+                "1 + i % " + customers + " " +
+                "FROM generate_series(0, " + (tickets - 1) + ") i");
+            stmt.execute("SET session_replication_role = DEFAULT");
+            stmt.execute("SELECT refresh_sales_aggregates()");
+            stmt.execute("ANALYZE");
+        }
+    }
+}
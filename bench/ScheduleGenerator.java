@@ -0,0 +1,409 @@
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.LocalDate;
+import java.util.BitSet;
+import java.util.SplittableRandom;
+
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyIn;
+import org.postgresql.copy.CopyManager;
+
+/**
+ * Fills an empty schema.sql database with a festival-sized history that follows Rules 1-12, using COPY.
+ *
+ *   java -cp target/classes:postgresql.jar ScheduleGenerator [--venues=1000] [--acts=20000] [--days=365]
+ *        [--tickets=10000000] [--busy=60] [--cancelled=2] [--start=2025-01-01] [--seed=42] [--url=jdbc:...] [--check]
+ *
+ * Every venue has two slots a day, 10:00 and 18:00, and holds a gig in each with probability busy percent.
+ * A gig is one to four acts of 30 to 55 minutes with 10 to 20 minute changeovers, so it is over by 14:40 or
+ * 22:40 at the latest. That keeps Rule 6 (more than 180 minutes between gigs at a venue), Rule 11 (rock and pop end by 23:00)
+ * and Rule 12 (nothing before 9am). Within a slot every act plays at most once across all venues, and the slots
+ * are over 3 hours apart, so Rules 2, 3, 4 and 5 hold too. When a slot runs out of acts, the remaining venues stay
+ * empty for that slot.
+ *
+ * Tickets fill each gig up to a random share of its capacity (Rule 9), chosen so the total comes to roughly the
+ * number asked for. Some gigs also sell child tickets at half price. Customers are "Customer n" with one email
+ * each (one customer row per eight tickets), and low numbers buy far more often, so Task 7 has regulars to find. The given percentage of gigs is
+ * cancelled, with their tickets' cost already set to 0 the way cancel_gig leaves them.
+ *
+ * All rows are loaded in one transaction with triggers off (session_replication_role, which needs a superuser).
+ * Afterwards the running totals are rebuilt with refresh_sales_aggregates(). --check runs set-based queries that
+ * count rule violations in the loaded data, which should all be 0. The same seed always gives the same data.
+ */
+public class ScheduleGenerator {
+
+    private static final String[] GENRES = {"rock", "pop", "jazz", "folk", "indie", "classical", "electronic", "metal"};
+    private static final int[] SLOT_HOURS = {10, 18};
+    private static final int MAX_ACTS_PER_GIG = 4;
+
+    private int venues = 1000;
+    private int acts = 20000;
+    private int days = 365;
+    private long tickets = 10000000L;
+    private int busyPercent = 60;
+    private int cancelledPercent = 2;
+    private LocalDate start = LocalDate.of(2025, 1, 1);
+    private long seed = 42;
+
+    private int[] venueCapacity;
+    private int[] actFee;
+
+    //Per gig (index gigID - 1), filled while the gigs are written
+    private int gigs;
+    private int[] gigCapacity;
+    private int[] gigPrice;
+    private BitSet gigHasChild;
+    private BitSet gigCancelled;
+    private long customers;
+
+    public static void main(String[] args) throws SQLException {
+        ScheduleGenerator generator = new ScheduleGenerator();
+        String url = null;
+        boolean check = false;
+        for (String arg : args) {
+            String value = arg.substring(arg.indexOf('=') + 1);
+            if (arg.startsWith("--venues=")) {
+                generator.venues = Integer.parseInt(value);
+            } else if (arg.startsWith("--acts=")) {
+                generator.acts = Integer.parseInt(value);
+            } else if (arg.startsWith("--days=")) {
+                generator.days = Integer.parseInt(value);
+            } else if (arg.startsWith("--tickets=")) {
+                generator.tickets = Long.parseLong(value);
+            } else if (arg.startsWith("--busy=")) {
+                generator.busyPercent = Integer.parseInt(value);
+            } else if (arg.startsWith("--cancelled=")) {
+                generator.cancelledPercent = Integer.parseInt(value);
+            } else if (arg.startsWith("--start=")) {
+                generator.start = LocalDate.parse(value);
+            } else if (arg.startsWith("--seed=")) {
+                generator.seed = Long.parseLong(value);
+            } else if (arg.startsWith("--url=")) {
+                url = value;
+            } else if (arg.equals("--check")) {
+                check = true;
+            } else {
+                System.err.println("Unknown option " + arg);
+                return;
+            }
+        }
+
+        try (Connection conn = url != null ? DriverManager.getConnection(url) : GigSystem.getPortConnection()) {
+            generator.generate(conn);
+            if (check) {
+                check(conn);
+            }
+        }
+    }
+
+    public void generate(Connection conn) throws SQLException {
+        try (Statement stmt = conn.createStatement(); ResultSet rs = stmt.executeQuery("SELECT EXISTS (SELECT 1 FROM venue) OR EXISTS (SELECT 1 FROM act)")) {
+            rs.next();
+            if (rs.getBoolean(1)) {
+                throw new SQLException("The generator needs an empty database, load schema.sql first");
+            }
+        }
+
+        long started = System.nanoTime();
+        CopyManager copy = conn.unwrap(PGConnection.class).getCopyAPI();
+        conn.setAutoCommit(false);
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute("SET LOCAL session_replication_role = replica");
+
+            report("venues", writeVenues(copy), started);
+            report("acts", writeActs(copy), started);
+            report("gigs", writeSchedule(copy, 0), started);
+            report("performances", writeSchedule(copy, 1), started);
+            report("gig prices", writeSchedule(copy, 2), started);
+            report("customers", writeCustomers(copy), started);
+            report("tickets", writeTickets(copy), started);
+
+            //IDs were given explicitly, move the sequences past them
+            stmt.execute("SELECT setval(pg_get_serial_sequence('venue', 'venueid'), " + Math.max(1, venues) + ")");
+            stmt.execute("SELECT setval(pg_get_serial_sequence('act', 'actid'), " + Math.max(1, acts) + ")");
+            stmt.execute("SELECT setval(pg_get_serial_sequence('gig', 'gigid'), (SELECT COALESCE(MAX(gigID), 1) FROM gig))");
+            stmt.execute("SELECT setval(pg_get_serial_sequence('customer', 'customerid'), " + customers + ")");
+            stmt.execute("SELECT setval(pg_get_serial_sequence('ticket', 'ticketid'), (SELECT COALESCE(MAX(ticketID), 1) FROM ticket))");
+
+            //gigend only exists in range mode (schema_ranges.sql), and its trigger is off during the load
+            stmt.execute("DO $$ BEGIN " +
+                "IF EXISTS (SELECT 1 FROM information_schema.columns WHERE table_name = 'gig' AND column_name = 'gigend') THEN " +
+                "EXECUTE 'UPDATE gig SET gigend = e.gigend FROM (SELECT gigID, MAX(ontime + duration * interval ''1 minute'') AS gigend " +
+                "FROM act_gig GROUP BY gigID) e WHERE gig.gigID = e.gigID'; " +
+                "END IF; END $$");
+
+            //Still with triggers off, which also skips the foreign key checks on rows built from rows already checked
+            stmt.execute("SELECT refresh_sales_aggregates()");
+            stmt.execute("SET LOCAL session_replication_role = DEFAULT");
+            conn.commit();
+            report("running totals", 0, started);
+        } catch (SQLException | RuntimeException e) {
+            conn.rollback();
+            throw e;
+        } finally {
+            conn.setAutoCommit(true);
+        }
+
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute("ANALYZE");
+        }
+        report("analyze", 0, started);
+    }
+
+    private long writeVenues(CopyManager copy) throws SQLException {
+        SplittableRandom random = new SplittableRandom(seed);
+        venueCapacity = new int[venues];
+        CopyWriter out = new CopyWriter(copy, "COPY venue(venueID, venuename, hirecost, capacity) FROM STDIN");
+        for (int v = 0; v < venues; v++) {
+            //Mostly small rooms, a few arenas
+            venueCapacity[v] = logUniform(random, 50, 20000);
+            out.field(v + 1).field("Venue " + (v + 1)).field(logUniform(random, 200, 20000)).field(venueCapacity[v]).endRow();
+        }
+        return out.finish();
+    }
+
+    private long writeActs(CopyManager copy) throws SQLException {
+        SplittableRandom random = new SplittableRandom(seed + 1);
+        actFee = new int[acts];
+        CopyWriter out = new CopyWriter(copy, "COPY act(actID, actname, genre, standardfee) FROM STDIN");
+        for (int a = 0; a < acts; a++) {
+            actFee[a] = logUniform(random, 100, 50000);
+            out.field(a + 1).field("Act " + (a + 1)).field(GENRES[random.nextInt(GENRES.length)]).field(actFee[a]).endRow();
+        }
+        return out.finish();
+    }
+
+    /*
+     * The schedule is made three times from the same seed, once for each table it goes into
+     * (COPY can only fill one table at a time on a connection): 0 = gig, 1 = act_gig, 2 = gig_ticket.
+     */
+    private long writeSchedule(CopyManager copy, int table) throws SQLException {
+        SplittableRandom random = new SplittableRandom(seed + 2);
+        CopyWriter out = new CopyWriter(copy, table == 0 ? "COPY gig(gigID, venueID, gigtitle, gigdatetime, gigstatus) FROM STDIN"
+            : table == 1 ? "COPY act_gig(actID, gigID, actgigfee, ontime, duration) FROM STDIN"
+            : "COPY gig_ticket(gigID, pricetype, price) FROM STDIN");
+        if (table == 0) {
+            int most = (int) Math.min(Integer.MAX_VALUE - 8, (long) days * SLOT_HOURS.length * venues);
+            gigCapacity = new int[most];
+            gigPrice = new int[most];
+            gigHasChild = new BitSet();
+            gigCancelled = new BitSet();
+        }
+
+        int gigID = 0;
+        for (int d = 0; d < days; d++) {
+            String date = start.plusDays(d).toString();
+            for (int hour : SLOT_HOURS) {
+                //Acts for this slot are taken in a shuffled order that never repeats within the slot
+                long stride = coprimeStride(random, acts);
+                long next = random.nextInt(acts);
+                int used = 0;
+                for (int v = 0; v < venues; v++) {
+                    boolean busy = random.nextInt(100) < busyPercent;
+                    int lineup = 1 + random.nextInt(MAX_ACTS_PER_GIG);
+                    boolean cancelled = random.nextInt(100) < cancelledPercent;
+                    int price = 15 + random.nextInt(66);
+                    boolean child = random.nextInt(100) < 30;
+                    if (!busy || used + lineup > acts) {
+                        continue;
+                    }
+                    gigID++;
+
+                    if (table == 0) {
+                        gigCapacity[gigID - 1] = venueCapacity[v];
+                        gigPrice[gigID - 1] = price;
+                        gigHasChild.set(gigID - 1, child);
+                        gigCancelled.set(gigID - 1, cancelled);
+                        out.field(gigID).field(v + 1).field("Gig " + gigID + " at Venue " + (v + 1))
+                            .field(date + " " + hour + ":00").field(cancelled ? "Cancelled" : "GoingAhead").endRow();
+                    } else if (table == 2) {
+                        out.field(gigID).field("A").field(price).endRow();
+                        if (child) {
+                            out.field(gigID).field("C").field(price / 2).endRow();
+                        }
+                    }
+
+                    int minute = hour * 60;
+                    for (int i = 0; i < lineup; i++) {
+                        int act = (int) ((next + (long) used * stride) % acts);
+                        used++;
+                        int duration = 30 + 5 * random.nextInt(6);
+                        int changeover = 10 + 5 * random.nextInt(3);
+                        if (table == 1) {
+                            out.field(act + 1).field(gigID).field(actFee[act])
+                                .field(date + " " + (minute / 60) + (minute % 60 < 10 ? ":0" : ":") + (minute % 60)).field(duration).endRow();
+                        }
+                        minute += duration + changeover;
+                    }
+                }
+            }
+        }
+        gigs = gigID;
+        return out.finish();
+    }
+
+    private long writeCustomers(CopyManager copy) throws SQLException {
+        customers = Math.max(1, tickets / 8);
+        CopyWriter out = new CopyWriter(copy, "COPY customer(customerID, customername, customeremail) FROM STDIN");
+        for (long c = 1; c <= customers; c++) {
+            out.field(c).field("Customer " + c).field("customer" + c + "@example.com").endRow();
+        }
+        return out.finish();
+    }
+
+    private long writeTickets(CopyManager copy) throws SQLException {
+        SplittableRandom random = new SplittableRandom(seed + 3);
+        long seats = 0;
+        for (int g = 0; g < gigs; g++) {
+            seats += gigCapacity[g];
+        }
+        //Average share of each gig's capacity that gets sold
+        double fill = seats == 0 ? 0 : Math.min(1.0, (double) tickets / seats);
+
+        CopyWriter out = new CopyWriter(copy, "COPY ticket(ticketID, gigID, pricetype, cost, customerID) FROM STDIN");
+        long ticketID = 0;
+        for (int g = 0; g < gigs; g++) {
+            int sold = (int) Math.min(gigCapacity[g], Math.round(gigCapacity[g] * fill * (0.5 + random.nextDouble())));
+            boolean cancelled = gigCancelled.get(g);
+            for (int t = 0; t < sold; t++) {
+                boolean child = gigHasChild.get(g) && random.nextInt(100) < 20;
+                int cost = cancelled ? 0 : child ? gigPrice[g] / 2 : gigPrice[g];
+                double u = random.nextDouble();
+                long customer = (long) (customers * u * u) + 1;
+                out.field(++ticketID).field(g + 1).field(child ? "C" : "A").field(cost).field(customer).endRow();
+            }
+        }
+        return out.finish();
+    }
+
+    //A step that visits every number below n once before repeating
+    private static long coprimeStride(SplittableRandom random, int n) {
+        if (n <= 2) {
+            return 1;
+        }
+        while (true) {
+            long stride = 1 + random.nextInt(n - 1);
+            if (gcd(stride, n) == 1) {
+                return stride;
+            }
+        }
+    }
+
+    private static long gcd(long a, long b) {
+        return b == 0 ? a : gcd(b, a % b);
+    }
+
+    private static int logUniform(SplittableRandom random, int min, int max) {
+        return (int) Math.round(Math.exp(Math.log(min) + random.nextDouble() * (Math.log(max) - Math.log(min))));
+    }
+
+    private static void report(String what, long rows, long started) {
+        System.out.format("%-16s %12d rows   %8.1f s%n", what, rows, (System.nanoTime() - started) / 1e9);
+    }
+
+    /**
+     * Counts rows breaking each rule with set-based queries (the triggers only see rows as they are inserted).
+     */
+    public static void check(Connection conn) throws SQLException {
+        String[][] checks = {
+            {"Rule 1 overlapping acts",
+                "SELECT COUNT(*) FROM act_gig a JOIN act_gig b ON a.gigID = b.gigID AND a.actID < b.actID " +
+                "WHERE a.ontime < b.ontime + b.duration * interval '1 minute' AND b.ontime < a.ontime + a.duration * interval '1 minute'"},
+            {"Rules 2/5 travel time",
+                "SELECT COUNT(*) FROM act_gig a JOIN act_gig b ON a.actID = b.actID AND a.gigID < b.gigID " +
+                "WHERE a.ontime < b.ontime + (b.duration + 60) * interval '1 minute' AND b.ontime < a.ontime + (a.duration + 60) * interval '1 minute'"},
+            {"Rule 3 one fee per gig",
+                "SELECT COUNT(*) FROM (SELECT 1 FROM act_gig GROUP BY actID, gigID HAVING COUNT(DISTINCT actgigfee) > 1) f"},
+            {"Rule 4 90 minutes",
+                "SELECT COUNT(*) FROM act_gig WHERE duration > 90"},
+            {"Rule 6 venue gap",
+                "SELECT COUNT(*) FROM (SELECT g.gigdatetime, LAG(e.gigend) OVER (PARTITION BY g.venueID ORDER BY g.gigdatetime) AS previous_end " +
+                "FROM gig g JOIN (SELECT gigID, MAX(ontime + duration * interval '1 minute') AS gigend FROM act_gig GROUP BY gigID) e " +
+                "ON e.gigID = g.gigID WHERE g.gigstatus = 'GoingAhead') s WHERE gigdatetime <= previous_end + interval '180 minutes'"},
+            {"Rule 7 changeovers",
+                "SELECT COUNT(*) FROM (SELECT ontime, LAG(ontime + duration * interval '1 minute') OVER (PARTITION BY gigID ORDER BY ontime) AS previous_end " +
+                "FROM act_gig) s WHERE ontime - previous_end > interval '20 minutes'"},
+            {"Rule 8 first act",
+                "SELECT COUNT(*) FROM gig g JOIN (SELECT gigID, MIN(ontime) AS first_on FROM act_gig GROUP BY gigID) f " +
+                "ON f.gigID = g.gigID WHERE f.first_on != g.gigdatetime"},
+            {"Rule 9 capacity",
+                "SELECT COUNT(*) FROM gig g JOIN venue v ON v.venueID = g.venueID " +
+                "JOIN (SELECT gigID, COUNT(*) AS sold FROM ticket GROUP BY gigID) t ON t.gigID = g.gigID WHERE t.sold > v.capacity"},
+            {"Rule 11 finish times",
+                "SELECT COUNT(*) FROM act_gig ag JOIN act a ON a.actID = ag.actID JOIN gig g ON g.gigID = ag.gigID " +
+                "WHERE (a.genre IN ('rock', 'pop') AND (ag.ontime + ag.duration * interval '1 minute')::time > '23:00') " +
+                "OR (ag.ontime + ag.duration * interval '1 minute') > g.gigdatetime::date + interval '25 hours'"},
+            {"Rule 12 start times",
+                "SELECT COUNT(*) FROM gig WHERE EXTRACT(HOUR FROM gigdatetime) < 9"},
+            {"Ticket types",
+                "SELECT COUNT(*) FROM ticket t WHERE NOT EXISTS (SELECT 1 FROM gig_ticket p WHERE p.gigID = t.gigID AND p.pricetype = t.pricetype)"},
+            {"Free adult tickets",
+                "SELECT COUNT(*) FROM ticket t JOIN gig g ON g.gigID = t.gigID WHERE g.gigstatus = 'GoingAhead' AND t.pricetype = 'A' AND t.cost <= 0"},
+            {"Unknown customers",
+                "SELECT COUNT(*) FROM ticket t WHERE NOT EXISTS (SELECT 1 FROM customer c WHERE c.customerID = t.customerID)"},
+        };
+        try (Statement stmt = conn.createStatement()) {
+            for (String[] check : checks) {
+                try (ResultSet rs = stmt.executeQuery(check[1])) {
+                    rs.next();
+                    System.out.format("%-24s %d%n", check[0], rs.getLong(1));
+                }
+            }
+        }
+    }
+
+    /*
+     * Feeds one COPY in text format, encoding rows in batches so the data is never all in memory.
+     * None of the generated values contain tabs, newlines or backslashes, so nothing needs escaping.
+     */
+    private static class CopyWriter {
+        private final CopyIn copy;
+        private final StringBuilder buffer = new StringBuilder(1 << 17);
+        private boolean firstField = true;
+
+        CopyWriter(CopyManager manager, String sql) throws SQLException {
+            copy = manager.copyIn(sql);
+        }
+
+        CopyWriter field(String value) {
+            if (!firstField) {
+                buffer.append('\t');
+            }
+            buffer.append(value);
+            firstField = false;
+            return this;
+        }
+
+        CopyWriter field(long value) {
+            if (!firstField) {
+                buffer.append('\t');
+            }
+            buffer.append(value);
+            firstField = false;
+            return this;
+        }
+
+        void endRow() throws SQLException {
+            buffer.append('\n');
+            firstField = true;
+            if (buffer.length() >= 1 << 16) {
+                flush();
+            }
+        }
+
+        long finish() throws SQLException {
+            flush();
+            return copy.endCopy();
+        }
+
+        private void flush() throws SQLException {
+            byte[] bytes = buffer.toString().getBytes(StandardCharsets.UTF_8);
+            copy.writeToCopy(bytes, 0, bytes.length);
+            buffer.setLength(0);
+        }
+    }
+}
@@ -0,0 +1,296 @@
+import java.lang.management.ManagementFactory;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.sql.Timestamp;
+import java.util.Random;
+import java.util.function.Supplier;
+
+/**
+ * Measures ScheduleIndex on a database filled by ScheduleGenerator, and checks its answers against the triggers:
+ *
+ *   java -cp target/benchmarks.jar ScheduleIndexBenchmark [--queries=1000000] [--checks=500] [--url=jdbc:...]
+ *
+ * 1. How long a full load takes and how much it holds.
+ * 2. Time and bytes allocated per query (which should be 0) for each kind of query, next to the same question
+ *    asked of the database.
+ * 3. Random slots near existing performances and gigs, tried for real in a transaction that is rolled back:
+ *    the index should say "free" exactly when Rules 2, 5 and 6 let the insert through.
+ * 4. How long a change made on another connection takes to show up in the index.
+ */
+public class ScheduleIndexBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int queries = 1000000;
+        int checks = 500;
+        String url = null;
+        for (String arg : args) {
+            String value = arg.substring(arg.indexOf('=') + 1);
+            if (arg.startsWith("--queries=")) {
+                queries = Integer.parseInt(value);
+            } else if (arg.startsWith("--checks=")) {
+                checks = Integer.parseInt(value);
+            } else if (arg.startsWith("--url=")) {
+                url = value;
+            } else {
+                System.err.println("Unknown option " + arg);
+                return;
+            }
+        }
+        String jdbcUrl = url;
+        Supplier<Connection> factory = jdbcUrl == null ? GigSystem::getPortConnection : () -> {
+            try {
+                return DriverManager.getConnection(jdbcUrl);
+            } catch (SQLException e) {
+                System.err.println("SQL Error: " + e.getMessage());
+                return null;
+            }
+        };
+
+        try (ConnectionPool pool = new ConnectionPool(factory, 4);
+             GigChangeFeed feed = new GigChangeFeed(factory);
+             ScheduleIndex index = new ScheduleIndex(pool)) {
+            long start = System.nanoTime();
+            index.reload();
+            ScheduleIndex.Snapshot snapshot = index.snapshot();
+            System.out.format("full load: %.0f ms for %d performances, %d gigs, %d venues%n",
+                (System.nanoTime() - start) / 1e6, snapshot.performances(), snapshot.gigs(), snapshot.venueCount());
+            feed.addListener(index);
+            feed.start();
+            feed.awaitListening(10000);
+
+            queryCost(pool, snapshot, queries);
+            check(pool, snapshot, checks);
+            refresh(pool, index);
+        }
+    }
+
+    private static void queryCost(ConnectionPool pool, ScheduleIndex.Snapshot snapshot, int queries) throws SQLException {
+        int acts = snapshot.acts.maxKey();
+        int[] span = pool.withConnection(conn -> {
+            try (PreparedStatement stmt = conn.prepareStatement(
+                    "SELECT FLOOR(EXTRACT(EPOCH FROM MIN(ontime)) / 60)::INTEGER, FLOOR(EXTRACT(EPOCH FROM MAX(ontime)) / 60)::INTEGER FROM act_gig");
+                 ResultSet rs = stmt.executeQuery()) {
+                rs.next();
+                return new int[] {rs.getInt(1), rs.getInt(2)};
+            }
+        });
+        int days = Math.max(1, (span[1] - span[0]) / ScheduleIndex.MINUTES_PER_DAY);
+        int firstDay = span[0] - Math.floorMod(span[0], ScheduleIndex.MINUTES_PER_DAY);
+        //Same random questions for every kind of query, drawn up front so drawing them isn't measured
+        Random random = new Random(42);
+        int[] actIDs = new int[4096];
+        int[] times = new int[4096];
+        for (int i = 0; i < actIDs.length; i++) {
+            actIDs[i] = 1 + random.nextInt(acts);
+            times[i] = firstDay + random.nextInt(days) * ScheduleIndex.MINUTES_PER_DAY + 18 * 60 + random.nextInt(4) * 30;
+        }
+        int[] venues = new int[snapshot.venueCount()];
+
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long checksum = 0;
+        for (int round = 0; round < 2; round++) {
+            //The first round warms up, the second is printed
+            boolean print = round == 1;
+            long allocated = threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+            long started = System.nanoTime();
+            for (int i = 0; i < queries; i++) {
+                checksum += snapshot.isActFree(actIDs[i & 4095], times[i & 4095], 60) ? 1 : 0;
+            }
+            report(print, "isActFree", queries, started, allocated, threads);
+
+            allocated = threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+            started = System.nanoTime();
+            for (int i = 0; i < queries; i++) {
+                checksum += snapshot.nextFreeActSlot(actIDs[i & 4095], times[i & 4095], 60);
+            }
+            report(print, "nextFreeActSlot", queries, started, allocated, threads);
+
+            int dayQueries = Math.max(1, queries / 100);
+            allocated = threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+            started = System.nanoTime();
+            for (int i = 0; i < dayQueries; i++) {
+                int day = times[i & 4095] - Math.floorMod(times[i & 4095], ScheduleIndex.MINUTES_PER_DAY);
+                checksum += snapshot.venuesWithOpenSlot(day, 240, venues);
+            }
+            report(print, "venuesWithOpenSlot (" + venues.length + " venues)", dayQueries, started, allocated, threads);
+        }
+
+        //The same "is the act free" question asked of the database, as the triggers do
+        int sqlQueries = 2000;
+        long started = System.nanoTime();
+        pool.withConnection(conn -> {
+            try (PreparedStatement stmt = conn.prepareStatement(
+                    "SELECT EXISTS(SELECT 1 FROM act_gig WHERE actID = ? AND ontime < ?::TIMESTAMP + interval '120 minutes' " +
+                    "AND ontime + duration * interval '1 minute' > ?::TIMESTAMP - interval '60 minutes')")) {
+                for (int i = 0; i < sqlQueries; i++) {
+                    Timestamp at = Timestamp.valueOf(ScheduleIndex.time(times[i & 4095]));
+                    stmt.setInt(1, actIDs[i & 4095]);
+                    stmt.setTimestamp(2, at);
+                    stmt.setTimestamp(3, at);
+                    try (ResultSet rs = stmt.executeQuery()) {
+                        rs.next();
+                    }
+                }
+            }
+            return null;
+        });
+        System.out.format("%-40s %10.2f us per query%n", "same question asked of the database",
+            (System.nanoTime() - started) / 1000.0 / sqlQueries);
+        System.out.println("(checksum " + checksum + ")");
+    }
+
+    private static void report(boolean print, String name, int queries, long started, long allocatedBefore,
+                               com.sun.management.ThreadMXBean threads) {
+        long nanos = System.nanoTime() - started;
+        long allocated = threads.getThreadAllocatedBytes(Thread.currentThread().getId()) - allocatedBefore;
+        if (print) {
+            System.out.format("%-40s %10.2f us per query, %.2f bytes allocated per query%n", name,
+                nanos / 1000.0 / queries, allocated / (double) queries);
+        }
+    }
+
+    /*
+     * Tries each slot in the database inside one transaction, rolling back to a savepoint after each, and compares
+     * what the triggers said with what the index said. Inserts refused for other rules (closing times, ...) are
+     * skipped, since the index doesn't claim to know about them.
+     */
+    private static void check(ConnectionPool pool, ScheduleIndex.Snapshot snapshot, int checks) throws SQLException {
+        Random random = new Random(7);
+        int[] agree = new int[2];
+        int[] disagree = new int[2];
+        int[] skipped = new int[2];
+        int[] busy = new int[2];
+        pool.withConnection(conn -> {
+            conn.setAutoCommit(false);
+            try (PreparedStatement newAct = conn.prepareStatement(
+                     "INSERT INTO act(actname, genre, standardfee) VALUES ('Index Check Act', 'jazz', 100) RETURNING actID");
+                 PreparedStatement gig = conn.prepareStatement(
+                     "INSERT INTO gig(venueID, gigtitle, gigdatetime, gigstatus) VALUES (?, 'Index Check', ?, 'GoingAhead') RETURNING gigID");
+                 PreparedStatement lineup = conn.prepareStatement(
+                     "INSERT INTO act_gig(actID, gigID, actgigfee, ontime, duration) VALUES (?, ?, 100, ?, ?)");
+                 PreparedStatement touch = conn.prepareStatement("UPDATE gig SET gigtitle = gigtitle WHERE gigID = ?")) {
+                int freshAct;
+                try (ResultSet rs = newAct.executeQuery()) {
+                    rs.next();
+                    freshAct = rs.getInt(1);
+                }
+                ScheduleIndex.View acts = snapshot.acts;
+                ScheduleIndex.View venues = snapshot.venues;
+                for (int i = 0; i < checks; i++) {
+                    //Even checks: an existing act next to one of its performances. Odd: a new act next to a venue's gig.
+                    int kind = i & 1;
+                    ScheduleIndex.View view = kind == 0 ? acts : venues;
+                    int row = random.nextInt(view.start.length);
+                    int key = keyOf(view, row);
+                    int gap = kind == 0 ? ScheduleIndex.TRAVEL_GAP : ScheduleIndex.VENUE_GAP;
+                    int duration = 20 + random.nextInt(4) * 20;
+                    //Land around the edges of the gap, before or after the performance or gig
+                    int start = random.nextBoolean()
+                        ? view.end[row] + gap - 2 + random.nextInt(5)
+                        : view.start[row] - gap - duration - 2 + random.nextInt(5);
+                    int actID = kind == 0 ? key : freshAct;
+                    int venueID = kind == 0 ? anyVenueBut(snapshot, random) : key;
+                    boolean indexSaysFree = kind == 0
+                        ? snapshot.isActFree(actID, start, duration)
+                        : snapshot.isVenueFree(venueID, start, duration);
+
+                    Savepoint savepoint = conn.setSavepoint();
+                    String refusal = null;
+                    try {
+                        Timestamp at = Timestamp.valueOf(ScheduleIndex.time(start));
+                        gig.setInt(1, venueID);
+                        gig.setTimestamp(2, at);
+                        int gigID;
+                        try (ResultSet rs = gig.executeQuery()) {
+                            rs.next();
+                            gigID = rs.getInt(1);
+                        }
+                        lineup.setInt(1, actID);
+                        lineup.setInt(2, gigID);
+                        lineup.setTimestamp(3, at);
+                        lineup.setInt(4, duration);
+                        lineup.executeUpdate();
+                        //Rule 6 is checked when the gig row changes, once its end is known
+                        touch.setInt(1, gigID);
+                        touch.executeUpdate();
+                    } catch (SQLException e) {
+                        refusal = e.getMessage();
+                    }
+                    conn.rollback(savepoint);
+
+                    boolean ruleRefused = refusal != null && (kind == 0
+                        ? refusal.contains("RULE 2") || refusal.contains("RULE 5")
+                        : refusal.contains("RULE 6"));
+                    if (refusal != null && !ruleRefused) {
+                        skipped[kind]++;
+                    } else if (indexSaysFree == (refusal == null)) {
+                        agree[kind]++;
+                        busy[kind] += indexSaysFree ? 0 : 1;
+                    } else {
+                        disagree[kind]++;
+                        System.out.format("  MISMATCH %s %d at %s for %d min: index says %s, database %s%n",
+                            kind == 0 ? "act" : "venue", key, ScheduleIndex.time(start), duration,
+                            indexSaysFree ? "free" : "busy", refusal == null ? "accepted it" : refusal);
+                    }
+                }
+            } finally {
+                conn.rollback();
+                conn.setAutoCommit(true);
+            }
+            return null;
+        });
+        System.out.format("act slots checked against Rules 2 and 5: %d agree (%d of them busy), %d disagree, %d refused for other rules%n",
+            agree[0], busy[0], disagree[0], skipped[0]);
+        System.out.format("venue slots checked against Rule 6: %d agree (%d of them busy), %d disagree, %d refused for other rules%n",
+            agree[1], busy[1], disagree[1], skipped[1]);
+    }
+
+    private static int keyOf(ScheduleIndex.View view, int row) {
+        int lo = 0;
+        int hi = view.offset.length - 1;
+        //Last key whose range starts at or before row
+        while (hi - lo > 1) {
+            int mid = (lo + hi) >>> 1;
+            if (view.offset[mid] <= row) {
+                lo = mid;
+            } else {
+                hi = mid;
+            }
+        }
+        while (view.offset[lo + 1] <= row) {
+            lo++;
+        }
+        return lo;
+    }
+
+    private static int anyVenueBut(ScheduleIndex.Snapshot snapshot, Random random) {
+        int venueID;
+        do {
+            venueID = 1 + random.nextInt(snapshot.venueExists.length - 1);
+        } while (!snapshot.venueExists[venueID]);
+        return venueID;
+    }
+
+    //A few rounds, since the first merges run before the JIT has compiled them
+    private static void refresh(ConnectionPool pool, ScheduleIndex index) throws Exception {
+        for (int round = 0; round < 5; round++) {
+            long refreshesBefore = index.getRefreshes();
+            int gigID = pool.withConnection(conn -> BenchFixtures.createGig(conn, 100, 3));
+            long start = System.nanoTime();
+            while (index.getRefreshes() == refreshesBefore && System.nanoTime() - start < 5_000_000_000L) {
+                Thread.sleep(1);
+            }
+            double millis = (System.nanoTime() - start) / 1e6;
+            int[] gigVenue = index.snapshot().gigVenue;
+            int venueID = gigVenue.length > gigID ? gigVenue[gigID] : 0;
+            System.out.format("gig %d created on another connection: in the index after %.1f ms (refresh took %d us), %s%n",
+                gigID, millis, index.getLastRefreshMicros(),
+                venueID != 0 && !index.isVenueFree(venueID, ScheduleIndex.minute(java.time.LocalDateTime.of(2030, 6, 1, 20, 0)), 30)
+                    ? "its venue now shows busy" : "its venue does NOT show busy");
+        }
+    }
+}
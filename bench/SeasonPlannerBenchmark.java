@@ -0,0 +1,315 @@
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Supplier;
+
+/**
+ * Plans and organises a season of gigs with LineupScheduler on a database filled by ScheduleGenerator:
+ *
+ *   java -cp target/benchmarks.jar SeasonPlannerBenchmark [--gigs=300] [--acts=6] [--venues=30] [--threads=N]
+ *       [--naive=20] [--url=jdbc:...]
+ *
+ * Each request is a random day in the generated year at one of the first --venues venues (so several land on the
+ * same venue and day), with --acts random acts of 20 to 90 minutes, one of them headlining. Most acts already have
+ * gigs that year, so the search has to work round them.
+ *
+ * Prints how long planning and organising the whole season took, how many gigs got a line up, and checks that
+ * task2 took every one of them and that their act_gig rows are all there. Then, for the first --naive requests, it
+ * tries the usual way by hand: acts back to back in the order given, moving the start 5 minutes at a time until
+ * task2 accepts it (up to 100 attempts), and counts how many of those are too close to another gig at the venue.
+ * task2 only checks that gap (Rule 6) when a gig is moved, so it lets them through where the planner won't.
+ * All the gigs made are deleted again at the end.
+ */
+public class SeasonPlannerBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int gigs = 300;
+        int acts = 6;
+        int venues = 30;
+        int threads = Runtime.getRuntime().availableProcessors();
+        int naive = 20;
+        String url = null;
+        for (String arg : args) {
+            String value = arg.substring(arg.indexOf('=') + 1);
+            if (arg.startsWith("--gigs=")) {
+                gigs = Integer.parseInt(value);
+            } else if (arg.startsWith("--acts=")) {
+                acts = Integer.parseInt(value);
+            } else if (arg.startsWith("--venues=")) {
+                venues = Integer.parseInt(value);
+            } else if (arg.startsWith("--threads=")) {
+                threads = Integer.parseInt(value);
+            } else if (arg.startsWith("--naive=")) {
+                naive = Integer.parseInt(value);
+            } else if (arg.startsWith("--url=")) {
+                url = value;
+            } else {
+                System.err.println("Unknown option " + arg);
+                return;
+            }
+        }
+        String jdbcUrl = url;
+        Supplier<Connection> factory = jdbcUrl == null ? GigSystem::getPortConnection : () -> {
+            try {
+                return DriverManager.getConnection(jdbcUrl);
+            } catch (SQLException e) {
+                System.err.println("SQL Error: " + e.getMessage());
+                return null;
+            }
+        };
+
+        ForkJoinPool forkJoin = new ForkJoinPool(threads);
+        try (ConnectionPool pool = new ConnectionPool(factory, 4);
+             ScheduleIndex schedule = new ScheduleIndex(pool)) {
+            schedule.reload();
+            LineupValidator validator = new LineupValidator(schedule, pool);
+            LineupScheduler scheduler = new LineupScheduler(validator, pool, forkJoin);
+            List<LineupScheduler.GigRequest> requests = new Generator(pool, acts, venues).season(gigs);
+
+            //Plan every request on its own a few times so the JIT has compiled the search
+            for (int round = 0; round < 3; round++) {
+                for (LineupScheduler.GigRequest request : requests) {
+                    scheduler.plan(request);
+                }
+            }
+            long start = System.nanoTime();
+            int plannedAlone = 0;
+            for (LineupScheduler.GigRequest request : requests) {
+                plannedAlone += scheduler.plan(request).lineup != null ? 1 : 0;
+            }
+            long planNanos = System.nanoTime() - start;
+
+            List<Integer> created = new ArrayList<>();
+            try {
+                start = System.nanoTime();
+                List<LineupScheduler.Result> results = scheduler.planSeason(requests);
+                long seasonNanos = System.nanoTime() - start;
+
+                int planned = 0;
+                int lineupRows = 0;
+                TreeMap<String, Integer> problems = new TreeMap<>();
+                for (LineupScheduler.Result result : results) {
+                    if (result.gigID != 0) {
+                        created.add(result.gigID);
+                        lineupRows += result.lineup.length;
+                    }
+                    planned += result.lineup != null ? 1 : 0;
+                    if (result.problem != null) {
+                        problems.merge(result.problem.split("\n")[0].replaceAll("[0-9]+", "N"), 1, Integer::sum);
+                    }
+                }
+                int rows = countActGigRows(pool, created);
+
+                System.out.format("%d gig requests of %d acts over %d venues, %d fork-join threads%n",
+                    gigs, acts, venues, threads);
+                System.out.format("Planning alone:  %8.1f ms (%.2f ms per gig), %d could be planned%n",
+                    planNanos / 1e6, planNanos / 1e6 / gigs, plannedAlone);
+                System.out.format("Whole season:    %8.1f ms, %d planned, %d organised through task2%n",
+                    seasonNanos / 1e6, planned, created.size());
+                System.out.format("act_gig rows for the new gigs: %d of %d expected%n", rows, lineupRows);
+                System.out.println("Not planned or refused: " + problems);
+            } finally {
+                deleteGigs(pool, created);
+                schedule.refresh(bits(created));
+            }
+
+            //The same requests by hand, now the season has gone again
+            int naiveCount = Math.min(naive, requests.size());
+            created.clear();
+            int attempts = 0;
+            int organised = 0;
+            int clashing = 0;
+            start = System.nanoTime();
+            try {
+                for (int i = 0; i < naiveCount; i++) {
+                    int[] outcome = tryByHand(pool, requests.get(i));
+                    attempts += outcome[1];
+                    if (outcome[0] != 0) {
+                        created.add(outcome[0]);
+                        organised++;
+                        clashing += breaksRule6(validator, requests.get(i), outcome[2]) ? 1 : 0;
+                    }
+                }
+            } finally {
+                deleteGigs(pool, created);
+            }
+            long naiveNanos = System.nanoTime() - start;
+            if (naiveCount > 0) {
+                System.out.format("By hand: %d of %d organised, %.1f task2 attempts and %.1f ms per gig%n",
+                    organised, naiveCount, attempts / (double) naiveCount, naiveNanos / 1e6 / naiveCount);
+                System.out.format("         %d of them within 180 minutes of another gig at the venue (Rule 6, not checked on insert)%n",
+                    clashing);
+            }
+        } finally {
+            forkJoin.shutdown();
+        }
+    }
+
+    //Acts back to back in the order given (headliner last), start moved 5 minutes at a time from the preferred one.
+    //Returns the gigID (0 if none worked), the number of attempts and the start used.
+    private static int[] tryByHand(ConnectionPool pool, LineupScheduler.GigRequest request) throws SQLException {
+        List<LineupScheduler.Act> order = new ArrayList<>();
+        LineupScheduler.Act headliner = null;
+        for (LineupScheduler.Act act : request.acts) {
+            if (act.actID == request.headliner) {
+                headliner = act;
+            } else {
+                order.add(act);
+            }
+        }
+        order.add(headliner);
+        int preferred = ScheduleIndex.minute(request.date.atTime(request.preferredStart));
+        for (int attempt = 1; attempt <= 100; attempt++) {
+            //preferred, +5, -5, +10, -10 ...
+            int start = preferred + (attempt % 2 == 0 ? 1 : -1) * (attempt / 2) * 5;
+            ActPerformanceDetails[] lineup = new ActPerformanceDetails[order.size()];
+            int time = start;
+            for (int i = 0; i < lineup.length; i++) {
+                LineupScheduler.Act act = order.get(i);
+                lineup[i] = new ActPerformanceDetails(act.actID, act.fee, ScheduleIndex.time(time), act.duration);
+                time += act.duration;
+            }
+            try {
+                int gigID = pool.withConnection(conn -> GigSystem.organiseGig(conn, request.venue, request.title,
+                    lineup[0].getOnTime(), request.adultTicketPrice, lineup));
+                return new int[] {gigID, attempt, start};
+            } catch (SQLException e) {
+                //Refused, try the next start
+            }
+        }
+        return new int[] {0, 100, 0};
+    }
+
+    //The schedule hasn't been told about the by hand gigs, so this only sees the venue's other gigs
+    private static boolean breaksRule6(LineupValidator validator, LineupScheduler.GigRequest request, int start)
+            throws SQLException {
+        ActPerformanceDetails[] lineup = new ActPerformanceDetails[request.acts.length];
+        int time = start;
+        int at = 0;
+        for (LineupScheduler.Act act : request.acts) {
+            if (act.actID != request.headliner) {
+                lineup[at++] = new ActPerformanceDetails(act.actID, act.fee, ScheduleIndex.time(time), act.duration);
+                time += act.duration;
+            }
+        }
+        for (LineupScheduler.Act act : request.acts) {
+            if (act.actID == request.headliner) {
+                lineup[at] = new ActPerformanceDetails(act.actID, act.fee, ScheduleIndex.time(time), act.duration);
+            }
+        }
+        for (LineupValidator.Violation violation : validator.validate(request.venue, ScheduleIndex.time(start), lineup)) {
+            if (violation.rule == 6) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static BitSet bits(List<Integer> gigIDs) {
+        BitSet bits = new BitSet();
+        for (int gigID : gigIDs) {
+            bits.set(gigID);
+        }
+        return bits;
+    }
+
+    private static int countActGigRows(ConnectionPool pool, List<Integer> gigIDs) throws SQLException {
+        return pool.withConnection(conn -> {
+            try (PreparedStatement count = conn.prepareStatement("SELECT COUNT(*) FROM act_gig WHERE gigID = ANY(?)")) {
+                count.setArray(1, conn.createArrayOf("integer", gigIDs.toArray()));
+                try (ResultSet rs = count.executeQuery()) {
+                    rs.next();
+                    return rs.getInt(1);
+                }
+            }
+        });
+    }
+
+    private static void deleteGigs(ConnectionPool pool, List<Integer> gigIDs) throws SQLException {
+        if (gigIDs.isEmpty()) {
+            return;
+        }
+        pool.withConnection(conn -> {
+            Object[] ids = gigIDs.toArray();
+            for (String table : new String[] {"gig_headliner", "gig_sold", "gig_ticket", "act_gig", "gig"}) {
+                try (PreparedStatement delete = conn.prepareStatement("DELETE FROM " + table + " WHERE gigID = ANY(?)")) {
+                    delete.setArray(1, conn.createArrayOf("integer", ids));
+                    delete.executeUpdate();
+                }
+            }
+            return null;
+        });
+    }
+
+    /*
+     * Random requests on days of the generated year, at the first few venues.
+     */
+    private static final class Generator {
+        final Random random = new Random(18);
+        final int acts;
+        final List<String> venueNames = new ArrayList<>();
+        final List<Integer> actIDs = new ArrayList<>();
+        LocalDate firstDay;
+        int days;
+
+        Generator(ConnectionPool pool, int acts, int venues) throws SQLException {
+            this.acts = acts;
+            pool.withConnection(conn -> {
+                try (Statement stmt = conn.createStatement()) {
+                    try (ResultSet rs = stmt.executeQuery("SELECT venuename FROM venue ORDER BY venueID LIMIT " + venues)) {
+                        while (rs.next()) {
+                            venueNames.add(rs.getString(1));
+                        }
+                    }
+                    try (ResultSet rs = stmt.executeQuery("SELECT actID FROM act ORDER BY actID")) {
+                        while (rs.next()) {
+                            actIDs.add(rs.getInt(1));
+                        }
+                    }
+                    try (ResultSet rs = stmt.executeQuery(
+                            "SELECT MIN(gigdatetime)::DATE, (MAX(gigdatetime)::DATE - MIN(gigdatetime)::DATE) FROM gig " +
+                            "WHERE gigdatetime < (SELECT MIN(gigdatetime) + interval '1 year' FROM gig)")) {
+                        rs.next();
+                        firstDay = rs.getDate(1).toLocalDate();
+                        days = Math.max(1, rs.getInt(2));
+                    }
+                }
+                return null;
+            });
+        }
+
+        List<LineupScheduler.GigRequest> season(int gigs) {
+            List<LineupScheduler.GigRequest> requests = new ArrayList<>();
+            for (int g = 0; g < gigs; g++) {
+                LineupScheduler.Act[] lineup = new LineupScheduler.Act[acts];
+                for (int i = 0; i < acts; i++) {
+                    int actID;
+                    boolean repeat;
+                    do {
+                        actID = actIDs.get(random.nextInt(actIDs.size()));
+                        repeat = false;
+                        for (int k = 0; k < i; k++) {
+                            repeat |= lineup[k].actID == actID;
+                        }
+                    } while (repeat);
+                    lineup[i] = new LineupScheduler.Act(actID, 100 + random.nextInt(900), 20 + 5 * random.nextInt(15));
+                }
+                requests.add(new LineupScheduler.GigRequest(venueNames.get(random.nextInt(venueNames.size())),
+                    "Season Gig " + g, firstDay.plusDays(random.nextInt(days)), lineup,
+                    lineup[random.nextInt(acts)].actID, 25, LocalTime.of(12 + random.nextInt(8), 0)));
+            }
+            return requests;
+        }
+    }
+}
@@ -0,0 +1,159 @@
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+
+/**
+ * Keeps a fixed number of requests in flight against a running GigServer (like that many buyers all waiting on
+ * the site at once) and reports throughput, latency percentiles and status codes per kind of request.
+ * Start the server on a database filled by ScheduleGenerator, then:
+ *
+ *   java -cp target/benchmarks.jar ServerLoadTest [--clients=10000] [--seconds=60] [--warmup=10]
+ *        [--mix=lineup:60,book:35,report:5] [--gigs=1-1000] [--customers=1000000] [--server=http://127.0.0.1:8080]
+ *
+ * Requests are sent asynchronously, so 10000 clients need 10000 sockets but only a handful of threads here.
+ * The server's thread count is read from /metrics at the end, to show what holding them all cost it.
+ * 409 (a refused booking) and 503 (turned away by backpressure) are counted, not treated as failures.
+ */
+public class ServerLoadTest {
+
+    private static final String[] KINDS = {"lineup", "book", "report"};
+
+    public static void main(String[] args) throws Exception {
+        int clients = 10000;
+        int seconds = 60;
+        int warmup = 10;
+        int firstGig = 1;
+        int lastGig = 1000;
+        int customers = 1000000;
+        String server = "http://127.0.0.1:8080";
+        int[] weights = {60, 35, 5};
+        for (String arg : args) {
+            String value = arg.substring(arg.indexOf('=') + 1);
+            if (arg.startsWith("--clients=")) {
+                clients = Integer.parseInt(value);
+            } else if (arg.startsWith("--seconds=")) {
+                seconds = Integer.parseInt(value);
+            } else if (arg.startsWith("--warmup=")) {
+                warmup = Integer.parseInt(value);
+            } else if (arg.startsWith("--gigs=")) {
+                firstGig = Integer.parseInt(value.substring(0, value.indexOf('-')));
+                lastGig = Integer.parseInt(value.substring(value.indexOf('-') + 1));
+            } else if (arg.startsWith("--customers=")) {
+                customers = Integer.parseInt(value);
+            } else if (arg.startsWith("--server=")) {
+                server = value;
+            } else if (arg.startsWith("--mix=")) {
+                weights = new int[KINDS.length];
+                for (String part : value.split(",")) {
+                    String[] nameWeight = part.split(":");
+                    int kind = java.util.List.of(KINDS).indexOf(nameWeight[0].trim());
+                    if (kind < 0) {
+                        throw new IllegalArgumentException("Unknown request kind " + nameWeight[0]);
+                    }
+                    weights[kind] = Integer.parseInt(nameWeight[1].trim());
+                }
+            } else {
+                System.err.println("Unknown option " + arg);
+                return;
+            }
+        }
+
+        ExecutorService callbacks = Executors.newFixedThreadPool(Math.max(2, Runtime.getRuntime().availableProcessors()));
+        HttpClient client = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_1_1)
+            .connectTimeout(Duration.ofSeconds(30))
+            .executor(callbacks)
+            .build();
+
+        Histogram[] latency = new Histogram[KINDS.length];
+        Map<String, AtomicLong> statuses = new ConcurrentHashMap<>();
+        for (int k = 0; k < KINDS.length; k++) {
+            latency[k] = new ConcurrentHistogram(TimeUnit.MINUTES.toMicros(10), 3);
+        }
+        int totalWeight = 0;
+        for (int weight : weights) {
+            totalWeight += weight;
+        }
+
+        Semaphore inFlight = new Semaphore(clients);
+        long start = System.nanoTime();
+        long measureFrom = start + TimeUnit.SECONDS.toNanos(warmup);
+        long end = measureFrom + TimeUnit.SECONDS.toNanos(seconds);
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        while (System.nanoTime() < end) {
+            inFlight.acquire();
+            int pick = random.nextInt(totalWeight);
+            int kind = 0;
+            while (pick >= weights[kind]) {
+                pick -= weights[kind];
+                kind++;
+            }
+            int gigID = firstGig + random.nextInt(lastGig - firstGig + 1);
+            HttpRequest request = request(server, KINDS[kind], gigID, 1 + random.nextInt(customers));
+            int k = kind;
+            long began = System.nanoTime();
+            client.sendAsync(request, HttpResponse.BodyHandlers.discarding()).whenComplete((response, error) -> {
+                long finished = System.nanoTime();
+                inFlight.release();
+                if (began < measureFrom || finished > end) {
+                    return;
+                }
+                latency[k].recordValue(Math.min(latency[k].getHighestTrackableValue(), (finished - began) / 1000));
+                String status = KINDS[k] + " " + (error != null ? "failed: " + error.getClass().getSimpleName() : response.statusCode());
+                statuses.computeIfAbsent(status, s -> new AtomicLong()).incrementAndGet();
+            });
+        }
+        //Let the last requests finish
+        inFlight.acquire(clients);
+
+        System.out.format("%d clients, %d s measured after %d s warm up%n", clients, seconds, warmup);
+        System.out.println("request       calls    calls/s     p50 ms     p99 ms    p999 ms     max ms");
+        for (int k = 0; k < KINDS.length; k++) {
+            Histogram h = latency[k];
+            if (h.getTotalCount() == 0) {
+                continue;
+            }
+            System.out.format("%-8s %10d %10.1f %10.2f %10.2f %10.2f %10.2f%n", KINDS[k], h.getTotalCount(),
+                h.getTotalCount() / (double) seconds, h.getValueAtPercentile(50) / 1000.0, h.getValueAtPercentile(99) / 1000.0,
+                h.getValueAtPercentile(99.9) / 1000.0, h.getMaxValue() / 1000.0);
+        }
+        System.out.println("Responses:");
+        for (Map.Entry<String, AtomicLong> status : new TreeMap<>(statuses).entrySet()) {
+            System.out.format("  %-40s %d%n", status.getKey(), status.getValue().get());
+        }
+        HttpResponse<String> metrics = client.send(HttpRequest.newBuilder(URI.create(server + "/metrics")).build(),
+            HttpResponse.BodyHandlers.ofString());
+        System.out.println("Server: " + metrics.body());
+        callbacks.shutdown();
+    }
+
+    private static HttpRequest request(String server, String kind, int gigID, int customer) {
+        switch (kind) {
+            case "lineup":
+                return HttpRequest.newBuilder(URI.create(server + "/gigs/" + gigID + "/lineup")).build();
+            case "book":
+                String body = "{\"name\":\"Customer " + customer + "\",\"email\":\"customer" + customer
+                    + "@example.com\",\"ticketType\":\"A\"}";
+                return HttpRequest.newBuilder(URI.create(server + "/gigs/" + gigID + "/tickets"))
+                    .header("Content-Type", "application/json")
+                    .POST(HttpRequest.BodyPublishers.ofString(body))
+                    .build();
+            default:
+                return HttpRequest.newBuilder(URI.create(server + "/reports/regular-customers?act=Act%20" + (1 + gigID % 100))).build();
+        }
+    }
+}
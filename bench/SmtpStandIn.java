@@ -0,0 +1,168 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A local SMTP server that takes everything it is sent (or refuses some messages on purpose) and remembers who it
+ * was for, to try out CancellationOutbox.SmtpSender without a real mail server:
+ *
+ *   java -cp target/benchmarks.jar SmtpStandIn [--port=2525] [--fail=0.0]
+ *
+ * --fail is the fraction of messages answered with 451 (try again later) after DATA, like a mail server having a
+ * bad day. Recipients only count as delivered once their message is accepted, and one delivered twice is counted
+ * as a duplicate. Nothing is ever sent on.
+ */
+public class SmtpStandIn implements AutoCloseable {
+
+    private final ServerSocket server;
+    private final double failRate;
+    private final Thread acceptor;
+    private final Set<String> delivered = ConcurrentHashMap.newKeySet();
+    private final AtomicLong messages = new AtomicLong();
+    private final AtomicLong refused = new AtomicLong();
+    private final AtomicLong duplicates = new AtomicLong();
+
+    public static void main(String[] args) throws Exception {
+        int port = 2525;
+        double fail = 0;
+        for (String arg : args) {
+            String value = arg.substring(arg.indexOf('=') + 1);
+            if (arg.startsWith("--port=")) {
+                port = Integer.parseInt(value);
+            } else if (arg.startsWith("--fail=")) {
+                fail = Double.parseDouble(value);
+            } else {
+                System.err.println("Unknown option " + arg);
+                return;
+            }
+        }
+        SmtpStandIn standIn = new SmtpStandIn(port, fail);
+        System.out.println("SMTP stand-in on 127.0.0.1:" + standIn.getPort() + ", refusing " + fail + " of messages");
+        while (true) {
+            Thread.sleep(10000);
+            System.out.format("%d messages, %d refused, %d recipients, %d duplicates%n", standIn.getMessages(),
+                standIn.getRefused(), standIn.getDelivered().size(), standIn.getDuplicates());
+        }
+    }
+
+    /**
+     * @param port 0 for any free port
+     */
+    public SmtpStandIn(int port, double failRate) throws IOException {
+        this.server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+        this.failRate = failRate;
+        this.acceptor = new Thread(this::accept, "smtp-stand-in");
+        this.acceptor.setDaemon(true);
+        this.acceptor.start();
+    }
+
+    public int getPort() {
+        return server.getLocalPort();
+    }
+
+    public Set<String> getDelivered() {
+        return delivered;
+    }
+
+    public long getMessages() {
+        return messages.get();
+    }
+
+    public long getRefused() {
+        return refused.get();
+    }
+
+    public long getDuplicates() {
+        return duplicates.get();
+    }
+
+    @Override
+    public void close() throws IOException {
+        server.close();
+    }
+
+    private void accept() {
+        while (!server.isClosed()) {
+            try {
+                Socket socket = server.accept();
+                Thread session = new Thread(() -> session(socket), "smtp-stand-in-session");
+                session.setDaemon(true);
+                session.start();
+            } catch (IOException e) {
+                //Closed
+            }
+        }
+    }
+
+    private void session(Socket socket) {
+        try (Socket s = socket) {
+            BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+            Writer out = new OutputStreamWriter(s.getOutputStream(), StandardCharsets.UTF_8);
+            reply(out, "220 stand-in ready");
+            List<String> recipients = new ArrayList<>();
+            String line;
+            while ((line = in.readLine()) != null) {
+                String verb = line.length() >= 4 ? line.substring(0, 4).toUpperCase() : line.toUpperCase();
+                switch (verb) {
+                    case "HELO":
+                    case "EHLO":
+                    case "MAIL":
+                    case "NOOP":
+                        reply(out, "250 OK");
+                        break;
+                    case "RSET":
+                        recipients.clear();
+                        reply(out, "250 OK");
+                        break;
+                    case "RCPT":
+                        recipients.add(line.substring(line.indexOf('<') + 1, line.lastIndexOf('>')));
+                        reply(out, "250 OK");
+                        break;
+                    case "DATA":
+                        reply(out, "354 End data with <CR><LF>.<CR><LF>");
+                        while ((line = in.readLine()) != null && !line.equals(".")) {
+                            //The message itself isn't kept
+                        }
+                        if (ThreadLocalRandom.current().nextDouble() < failRate) {
+                            refused.incrementAndGet();
+                            reply(out, "451 Try again later");
+                        } else {
+                            messages.incrementAndGet();
+                            for (String recipient : recipients) {
+                                if (!delivered.add(recipient)) {
+                                    duplicates.incrementAndGet();
+                                }
+                            }
+                            reply(out, "250 Queued");
+                        }
+                        recipients.clear();
+                        break;
+                    case "QUIT":
+                        reply(out, "221 Bye");
+                        return;
+                    default:
+                        reply(out, "502 Not implemented");
+                }
+            }
+        } catch (IOException e) {
+            //The client went away
+        }
+    }
+
+    private static void reply(Writer out, String line) throws IOException {
+        out.write(line + "\r\n");
+        out.flush();
+    }
+}
@@ -0,0 +1,180 @@
+package jmh;
+
+import io.zonky.test.db.postgres.embedded.EmbeddedPostgres;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.LocalDateTime;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * The database every benchmark in a trial runs against: schema.sql plus synthetic data of the size given by the
+ * parameters, e.g.
+ *
+ *   java -jar target/benchmarks.jar -p venues=1000 -p acts=10000 -p gigs=100000 -p tickets=1000000
+ *
+ * By default a throwaway Postgres is started for the trial (embedded-postgres, nothing to install).
+ * Set -Dbench.url=jdbc:postgresql://host/db?user=...  to use an existing server instead. Its schema is dropped
+ * and reloaded, and the data load needs a superuser (it switches triggers off with session_replication_role).
+ *
+ * The history is valid by construction so the triggers can stay off while it loads: every gig is at 18:00 with
+ * two 50 minute acts an hour apart, no venue has more than one gig a day and no act plays twice a day.
+ * One gig in twenty is cancelled. Tickets are spread evenly over the gigs, and bought by tickets / 10 customers.
+ *
+ * The write benchmarks (task2, task3, task4) use their own venue, "Bench Venue", with gigs from 2100 onwards,
+ * one day per gig, so they never clash with the history or each other.
+ */
+@State(Scope.Benchmark)
+public class BenchDatabase {
+
+    static final String BENCH_VENUE = "Bench Venue";
+    static final LocalDateTime FIRST_BENCH_DAY = LocalDateTime.of(2100, 1, 1, 18, 0);
+
+    @Param("100")
+    public int venues;
+
+    @Param("1000")
+    public int acts;
+
+    @Param("10000")
+    public int gigs;
+
+    @Param("100000")
+    public int tickets;
+
+    private EmbeddedPostgres postgres;
+    private String url;
+    private final AtomicInteger nextDay = new AtomicInteger();
+
+    //The gig task3 books into, with effectively unlimited seats
+    int bookingGigID;
+
+    @Setup(Level.Trial)
+    public void start() throws Exception {
+        if (acts < 2) {
+            throw new IllegalArgumentException("Need at least 2 acts");
+        }
+        url = System.getProperty("bench.url");
+        if (url == null) {
+            postgres = EmbeddedPostgres.builder().start();
+            url = postgres.getJdbcUrl("postgres", "postgres");
+        }
+        try (Connection conn = connect(); Statement stmt = conn.createStatement()) {
+            stmt.execute(readSchema());
+            load(stmt);
+
+            stmt.execute("INSERT INTO venue(venuename, hirecost, capacity) VALUES ('" + BENCH_VENUE + "', 0, 2147483647)");
+            bookingGigID = newGig(conn);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void stop() throws IOException {
+        if (postgres != null) {
+            postgres.close();
+        }
+    }
+
+    Connection connect() throws SQLException {
+        return DriverManager.getConnection(url);
+    }
+
+    /**
+     * Start time for a new gig at the bench venue. Every call gets a different day.
+     */
+    LocalDateTime nextBenchDay() {
+        return FIRST_BENCH_DAY.plusDays(nextDay.getAndIncrement());
+    }
+
+    /**
+     * Creates a GoingAhead gig at the bench venue with adult tickets at 20 and acts 1, 2 and 3 playing
+     * 50 minutes each from the start, an hour apart.
+     * @return The new gigID
+     */
+    int newGig(Connection conn) throws SQLException {
+        LocalDateTime start = nextBenchDay();
+        try (PreparedStatement gig = conn.prepareStatement(
+                "INSERT INTO gig(venueID, gigtitle, gigdatetime, gigstatus) " +
+                "SELECT venueID, ?, ?, 'GoingAhead' FROM venue WHERE venuename = ? RETURNING gigID")) {
+            gig.setString(1, "Bench gig " + start);
+            gig.setObject(2, start);
+            gig.setString(3, BENCH_VENUE);
+            int gigID;
+            try (ResultSet rs = gig.executeQuery()) {
+                rs.next();
+                gigID = rs.getInt(1);
+            }
+            try (PreparedStatement lineup = conn.prepareStatement(
+                    "INSERT INTO act_gig(actID, gigID, actgigfee, ontime, duration) " +
+                    "SELECT k + 1, ?, 100, ? + k * interval '60 minutes', 50 FROM generate_series(0, 2) k");
+                 PreparedStatement price = conn.prepareStatement("INSERT INTO gig_ticket(gigID, pricetype, price) VALUES (?, 'A', 20)")) {
+                lineup.setInt(1, gigID);
+                lineup.setObject(2, start);
+                lineup.executeUpdate();
+                price.setInt(1, gigID);
+                price.executeUpdate();
+            }
+            return gigID;
+        }
+    }
+
+    private String readSchema() throws IOException {
+        //Packaged into the benchmarks jar by the bench profile, otherwise read from the working directory
+        try (InputStream in = BenchDatabase.class.getResourceAsStream("/schema.sql")) {
+            if (in != null) {
+                return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+            }
+        }
+        return Files.readString(Path.of("schema.sql"));
+    }
+
+    private void load(Statement stmt) throws SQLException {
+        //How many gigs share a day, so that each venue and each act is used at most once a day
+        int perDay = Math.max(1, Math.min(venues, acts / 2));
+        int customers = Math.max(1, tickets / 10);
+        int capacity = Math.max(100, tickets / Math.max(1, gigs) + 1);
+
+        stmt.execute("SET session_replication_role = replica");
+        stmt.execute("INSERT INTO venue(venuename, hirecost, capacity) " +
+            "SELECT 'Venue ' || v, 500 + v * 37 % 1500, " + capacity + " + v % 100 FROM generate_series(1, " + venues + ") v");
+        stmt.execute("INSERT INTO act(actname, genre, standardfee) " +
+            "SELECT 'Act ' || a, (ARRAY['rock', 'pop', 'jazz', 'folk'])[1 + a % 4], 100 + a * 37 % 5000 " +
+            "FROM generate_series(1, " + acts + ") a");
+        //gigID = i + 1 on an empty database
+        stmt.execute("INSERT INTO gig(venueID, gigtitle, gigdatetime, gigstatus) " +
+            "SELECT 1 + (i % " + perDay + " + i / " + perDay + " * " + perDay + ") % " + venues + ", 'Gig ' || i, " +
+            "timestamp '2020-01-01 18:00' + i / " + perDay + " * interval '1 day', " +
+            "CASE WHEN i % 20 = 19 THEN 'Cancelled' ELSE 'GoingAhead' END " +
+            "FROM generate_series(0, " + (gigs - 1) + ") i ORDER BY i");
+        stmt.execute("INSERT INTO act_gig(actID, gigID, actgigfee, ontime, duration) " +
+            "SELECT 1 + (2 * ((g.gigID - 1) % " + perDay + ") + k + (g.gigID - 1) / " + perDay + ") % " + acts + ", " +
+            "g.gigID, 100 + g.gigID % 400, g.gigdatetime + k * interval '60 minutes', 50 " +
+            "FROM gig g, generate_series(0, 1) k");
+        stmt.execute("INSERT INTO gig_ticket(gigID, pricetype, price) SELECT gigID, 'A', 10 + gigID % 40 FROM gig");
+        //customerID = i + 1 on an empty database
+        stmt.execute("INSERT INTO customer(customername, customeremail) " +
+            "SELECT 'Customer ' || i, 'customer' || i || '@example.com' FROM generate_series(0, " + (customers - 1) + ") i ORDER BY i");
+        stmt.execute("INSERT INTO ticket(gigID, pricetype, cost, customerID) " +
+            "SELECT g.gigID, 'A', CASE WHEN g.gigstatus = 'Cancelled' THEN 0 ELSE 10 + g.gigID % 40 END, 1 + i % " + customers + " " +
+            "FROM generate_series(0, " + (tickets - 1) + ") i JOIN gig g ON g.gigID = 1 + i % " + gigs);
+        stmt.execute("SET session_replication_role = DEFAULT");
+        stmt.execute("SELECT refresh_sales_aggregates()");
+        stmt.execute("ANALYZE");
+    }
+}
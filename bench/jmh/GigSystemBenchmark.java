@@ -0,0 +1,142 @@
+package jmh;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.LocalDateTime;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput and latency (sample time, with percentiles) of every GigSystem task against the database in
+ * BenchDatabase. Each benchmark thread has its own connection.
+ *
+ *   mvn -P bench package
+ *   java -jar target/benchmarks.jar                      # everything
+ *   java -jar target/benchmarks.jar "task[78]" -t 4      # the reports for Tasks 7 and 8 on 4 threads
+ *
+ * The write benchmarks grow the database as they run (new gigs, tickets and cancellations), so compare numbers
+ * from runs with the same iteration settings.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class GigSystemBenchmark {
+
+    @State(Scope.Thread)
+    public static class Session {
+        Connection conn;
+
+        @Setup(Level.Trial)
+        public void open(BenchDatabase db) throws SQLException {
+            conn = db.connect();
+        }
+
+        @TearDown(Level.Trial)
+        public void close() throws SQLException {
+            conn.close();
+        }
+    }
+
+    //A fresh three act gig for every task4 call, so each one cancels the middle act of an untouched line up
+    @State(Scope.Thread)
+    public static class CancellableGig {
+        int gigID;
+
+        @Setup(Level.Invocation)
+        public void create(BenchDatabase db, Session session) throws SQLException {
+            gigID = db.newGig(session.conn);
+        }
+    }
+
+    //A result set for convertResultToStrings, read once and rewound before every call so only the conversion is timed
+    @State(Scope.Thread)
+    public static class Rows {
+        @Param("10000")
+        public int rows;
+
+        Statement stmt;
+        ResultSet rs;
+
+        @Setup(Level.Trial)
+        public void query(Session session) throws SQLException {
+            stmt = session.conn.createStatement(ResultSet.TYPE_SCROLL_INSENSITIVE, ResultSet.CONCUR_READ_ONLY);
+            rs = stmt.executeQuery("SELECT c.customername, c.customeremail, t.cost::TEXT FROM ticket t JOIN customer c ON c.customerID = t.customerID LIMIT " + rows);
+        }
+
+        @Setup(Level.Invocation)
+        public void rewind() throws SQLException {
+            rs.beforeFirst();
+        }
+
+        @TearDown(Level.Trial)
+        public void close() throws SQLException {
+            stmt.close();
+        }
+    }
+
+    @Benchmark
+    public String[][] task1(BenchDatabase db, Session session) throws Throwable {
+        return Tasks.task1(session.conn, 1 + ThreadLocalRandom.current().nextInt(db.gigs));
+    }
+
+    @Benchmark
+    public void task2(BenchDatabase db, Session session) throws Throwable {
+        LocalDateTime start = db.nextBenchDay();
+        Object lineup = Tasks.lineup(start, new int[][] {{1, 100, 0, 50}, {2, 100, 60, 50}, {3, 100, 120, 50}});
+        Tasks.task2(session.conn, BenchDatabase.BENCH_VENUE, "Organised " + start, start, 20, lineup);
+    }
+
+    @Benchmark
+    public void task3(BenchDatabase db, Session session) throws Throwable {
+        String name = "Booker " + ThreadLocalRandom.current().nextInt(1000000);
+        Tasks.task3(session.conn, db.bookingGigID, name, name.replace(' ', '.') + "@example.com", "A");
+    }
+
+    @Benchmark
+    public String[][] task4(Session session, CancellableGig gig) throws Throwable {
+        return Tasks.task4(session.conn, gig.gigID, "Act 2");
+    }
+
+    @Benchmark
+    public String[][] task5(Session session) throws Throwable {
+        return Tasks.task5(session.conn);
+    }
+
+    @Benchmark
+    public String[][] task6(Session session) throws Throwable {
+        return Tasks.task6(session.conn);
+    }
+
+    @Benchmark
+    public String[][] task7(Session session) throws Throwable {
+        return Tasks.task7(session.conn);
+    }
+
+    @Benchmark
+    public String[][] task8(Session session) throws Throwable {
+        return Tasks.task8(session.conn);
+    }
+
+    @Benchmark
+    public String[][] convertResultToStrings(Rows rows) throws Throwable {
+        return Tasks.convertResultToStrings(rows.rs);
+    }
+}
@@ -0,0 +1,109 @@
+package jmh;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Array;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.time.LocalDateTime;
+
+/**
+ * Calls into GigSystem for the JMH benchmarks.
+ * JMH won't generate benchmarks for classes in the default package, and classes in a named package can't
+ * refer to GigSystem (which is in the default package) directly, so the methods are looked up once here
+ * and called through method handles, which costs next to nothing next to a database round trip.
+ */
+final class Tasks {
+
+    private static final MethodHandle TASK1;
+    private static final MethodHandle TASK2;
+    private static final MethodHandle TASK3;
+    private static final MethodHandle TASK4;
+    private static final MethodHandle TASK5;
+    private static final MethodHandle TASK6;
+    private static final MethodHandle TASK7;
+    private static final MethodHandle TASK8;
+    private static final MethodHandle CONVERT;
+    private static final MethodHandle NEW_PERFORMANCE;
+    private static final Class<?> PERFORMANCE;
+
+    static {
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+            Class<?> gigSystem = Class.forName("GigSystem");
+            PERFORMANCE = Class.forName("ActPerformanceDetails");
+            Class<?> performances = PERFORMANCE.arrayType();
+            MethodType report = MethodType.methodType(String[][].class, Connection.class);
+
+            TASK1 = lookup.findStatic(gigSystem, "task1", MethodType.methodType(String[][].class, Connection.class, int.class));
+            TASK2 = lookup.findStatic(gigSystem, "task2", MethodType.methodType(void.class, Connection.class, String.class,
+                    String.class, LocalDateTime.class, int.class, performances))
+                .asType(MethodType.methodType(void.class, Connection.class, String.class, String.class, LocalDateTime.class, int.class, Object.class));
+            TASK3 = lookup.findStatic(gigSystem, "task3", MethodType.methodType(void.class, Connection.class, int.class,
+                String.class, String.class, String.class));
+            TASK4 = lookup.findStatic(gigSystem, "task4", MethodType.methodType(String[][].class, Connection.class, int.class, String.class));
+            TASK5 = lookup.findStatic(gigSystem, "task5", report);
+            TASK6 = lookup.findStatic(gigSystem, "task6", report);
+            TASK7 = lookup.findStatic(gigSystem, "task7", report);
+            TASK8 = lookup.findStatic(gigSystem, "task8", report);
+            CONVERT = lookup.findStatic(gigSystem, "convertResultToStrings", MethodType.methodType(String[][].class, ResultSet.class));
+            NEW_PERFORMANCE = lookup.findConstructor(PERFORMANCE, MethodType.methodType(void.class, int.class, int.class, LocalDateTime.class, int.class))
+                .asType(MethodType.methodType(Object.class, int.class, int.class, LocalDateTime.class, int.class));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private Tasks() {
+    }
+
+    static String[][] task1(Connection conn, int gigID) throws Throwable {
+        return (String[][]) TASK1.invokeExact(conn, gigID);
+    }
+
+    static void task2(Connection conn, String venue, String gigTitle, LocalDateTime gigStart, int adultTicketPrice, Object performances) throws Throwable {
+        TASK2.invokeExact(conn, venue, gigTitle, gigStart, adultTicketPrice, performances);
+    }
+
+    static void task3(Connection conn, int gigID, String name, String email, String ticketType) throws Throwable {
+        TASK3.invokeExact(conn, gigID, name, email, ticketType);
+    }
+
+    static String[][] task4(Connection conn, int gigID, String actName) throws Throwable {
+        return (String[][]) TASK4.invokeExact(conn, gigID, actName);
+    }
+
+    static String[][] task5(Connection conn) throws Throwable {
+        return (String[][]) TASK5.invokeExact(conn);
+    }
+
+    static String[][] task6(Connection conn) throws Throwable {
+        return (String[][]) TASK6.invokeExact(conn);
+    }
+
+    static String[][] task7(Connection conn) throws Throwable {
+        return (String[][]) TASK7.invokeExact(conn);
+    }
+
+    static String[][] task8(Connection conn) throws Throwable {
+        return (String[][]) TASK8.invokeExact(conn);
+    }
+
+    static String[][] convertResultToStrings(ResultSet rs) throws Throwable {
+        return (String[][]) CONVERT.invokeExact(rs);
+    }
+
+    /**
+     * Builds an ActPerformanceDetails[] for task2.
+     * @param performances One {actID, fee, minutes after start, duration} per act
+     */
+    static Object lineup(LocalDateTime start, int[][] performances) throws Throwable {
+        Object lineup = Array.newInstance(PERFORMANCE, performances.length);
+        for (int i = 0; i < performances.length; i++) {
+            int[] p = performances[i];
+            Array.set(lineup, i, (Object) NEW_PERFORMANCE.invokeExact(p[0], p[1], start.plusMinutes(p[2]), p[3]));
+        }
+        return lineup;
+    }
+}
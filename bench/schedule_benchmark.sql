@@ -0,0 +1,97 @@
+/*
+Times task2-style gig creation against a large synthetic schedule.
+Run it once on the trigger schema and once with the range mode applied, on a throwaway database:
+
+    psql -d bench -f schema.sql
+    psql -d bench -v days=365 -v venues=1000 -f bench/schedule_benchmark.sql       -- before
+    psql -d bench -f schema.sql && psql -d bench -f schema_ranges.sql
+    psql -d bench -v days=365 -v venues=1000 -f bench/schedule_benchmark.sql       -- after
+
+The history is bulk loaded with triggers switched off (session_replication_role needs a superuser), which is
+fine because it is valid by construction: every venue has one gig per day at 18:00 with three 50 minute acts,
+and no act plays twice on the same day. It makes days * venues gigs and three times as many act_gig rows.
+Only the timed gigs at the end go through the rules.
+*/
+
+\if :{?days}
+\else
+    \set days 365
+\endif
+\if :{?venues}
+\else
+    \set venues 1000
+\endif
+\if :{?timed}
+\else
+    \set timed 500
+\endif
+
+SET session_replication_role = replica;
+
+INSERT INTO venue(venuename, hirecost, capacity)
+SELECT 'Venue ' || v, 1000 + v % 500, 200 + v % 5000 FROM generate_series(1, :venues) v;
+
+INSERT INTO act(actname, genre, standardfee)
+SELECT 'Act ' || a, (ARRAY['rock', 'pop', 'jazz', 'folk'])[1 + a % 4], 100 + a % 2000 FROM generate_series(1, 3 * :venues) a;
+
+INSERT INTO gig(venueID, gigtitle, gigdatetime, gigstatus)
+SELECT v, 'Gig ' || d || '/' || v, timestamp '2020-01-01 18:00' + d * interval '1 day', 'GoingAhead'
+FROM generate_series(0, :days - 1) d, generate_series(1, :venues) v
+ORDER BY d, v;
+
+--Gig (d, v) gets acts 3v-2 .. 3v rotated by the day, so acts never clash within a day
+INSERT INTO act_gig(actID, gigID, actgigfee, ontime, duration)
+SELECT 1 + ((3 * (g.venueID - 1) + k + ((g.gigID - 1) / :venues) * 7) % (3 * :venues)), g.gigID, 100,
+       g.gigdatetime + k * interval '60 minutes', 50
+FROM gig g, generate_series(0, 2) k;
+
+INSERT INTO gig_ticket(gigID, pricetype, price) SELECT gigID, 'A', 20 FROM gig;
+
+--gigend only exists in range mode, and its trigger is off during the load
+DO $$
+BEGIN
+    IF EXISTS (SELECT 1 FROM information_schema.columns WHERE table_name = 'gig' AND column_name = 'gigend') THEN
+        EXECUTE 'UPDATE gig SET gigend = gigdatetime + interval ''170 minutes''';
+    END IF;
+END $$;
+
+SET session_replication_role = DEFAULT;
+
+SELECT refresh_sales_aggregates();
+
+ANALYZE;
+
+SELECT COUNT(*) AS history_gigs FROM gig;
+SELECT COUNT(*) AS history_performances FROM act_gig;
+
+--The timed part: new gigs on the day after the history, each one gig row, three performances and a price,
+--inserted row by row exactly like task2 does
+CREATE TEMP TABLE timing(n INTEGER, elapsed INTERVAL);
+SELECT set_config('bench.timed', :'timed', false);
+
+DO $$
+DECLARE
+    venues INTEGER := (SELECT COUNT(*) FROM venue);
+    day TIMESTAMP := (SELECT MAX(gigdatetime)::date + interval '1 day 18 hours' FROM gig);
+    new_gig INTEGER;
+    started TIMESTAMP;
+    i INTEGER;
+    k INTEGER;
+BEGIN
+    FOR i IN 1 .. LEAST(current_setting('bench.timed')::INTEGER, venues) LOOP
+        started := clock_timestamp();
+        INSERT INTO gig(venueID, gigtitle, gigdatetime, gigstatus)
+        VALUES (i, 'Timed gig ' || i, day, 'GoingAhead') RETURNING gigID INTO new_gig;
+        FOR k IN 0 .. 2 LOOP
+            INSERT INTO act_gig(actID, gigID, actgigfee, ontime, duration)
+            VALUES (3 * (i - 1) + k + 1, new_gig, 100, day + k * interval '60 minutes', 50);
+        END LOOP;
+        INSERT INTO gig_ticket(gigID, pricetype, price) VALUES (new_gig, 'A', 20);
+        INSERT INTO timing VALUES (i, clock_timestamp() - started);
+    END LOOP;
+END $$;
+
+SELECT COUNT(*) AS timed_gigs,
+       ROUND(AVG(EXTRACT(EPOCH FROM elapsed) * 1000)::NUMERIC, 3) AS avg_ms_per_gig,
+       ROUND((PERCENTILE_CONT(0.99) WITHIN GROUP (ORDER BY EXTRACT(EPOCH FROM elapsed) * 1000))::NUMERIC, 3) AS p99_ms_per_gig
+FROM timing;
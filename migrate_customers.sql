@@ -0,0 +1,101 @@
+/*
+Moves a database from before the customer table over to this schema.sql.
+Older databases kept each ticket holder's name and email on the ticket row itself. Here they become one customer
+row per email, which the tickets point to by customerID.
+
+The old tables are kept in their own schema while the new ones are loaded, and this file copies the rows across.
+As a superuser (the copy runs with triggers off, as SeasonArchive's --restore does):
+
+    ALTER SCHEMA public RENAME TO before_customers;
+    CREATE SCHEMA public;
+    -- load schema.sql into the new public schema
+    -- run this file
+    -- if the old database was in range mode, run schema_ranges.sql now
+    DROP SCHEMA before_customers CASCADE;    -- once you are happy with the result
+
+Emails are matched exactly, as the old email_unique trigger did, so every email on a ticket becomes its own customer
+and task4 returns the same emails it did before. Customers are numbered in email order, which is the order the
+cancellation outbox used to send in, so a cancellation that was part way through carries on where it stopped.
+The old trigger made sure an email only ever had one name. If the data breaks that anyway, the whole migration is
+rolled back; the query at the bottom of this file lists the offending emails.
+
+The running totals (gig_sold, gig_headliner and the Task 7 tables) aren't copied, refresh_sales_aggregates()
+counts them again from the tickets at the end.
+*/
+
+BEGIN;
+
+SET LOCAL session_replication_role = replica;
+
+DO $$
+DECLARE
+    clashes INTEGER;
+BEGIN
+    SELECT COUNT(*) INTO clashes FROM (
+        SELECT customeremail FROM before_customers.ticket GROUP BY customeremail HAVING COUNT(DISTINCT customername) > 1
+    ) clashing;
+    IF clashes > 0 THEN
+        RAISE EXCEPTION '% emails are used with more than one customer name', clashes;
+    END IF;
+END;
+$$;
+
+INSERT INTO venue(venueID, venuename, hirecost, capacity)
+SELECT venueID, venuename, hirecost, capacity FROM before_customers.venue;
+
+INSERT INTO act(actID, actname, genre, standardfee)
+SELECT actID, actname, genre, standardfee FROM before_customers.act;
+
+INSERT INTO gig(gigID, venueID, gigtitle, gigdatetime, gigstatus)
+SELECT gigID, venueID, gigtitle, gigdatetime, gigstatus FROM before_customers.gig;
+
+INSERT INTO act_gig(actID, gigID, actgigfee, ontime, duration)
+SELECT actID, gigID, actgigfee, ontime, duration FROM before_customers.act_gig;
+
+INSERT INTO gig_ticket(gigID, pricetype, price)
+SELECT gigID, pricetype, price FROM before_customers.gig_ticket;
+
+--One customer per email, with the name it was booked under
+INSERT INTO customer(customerID, customername, customeremail)
+SELECT row_number() OVER (ORDER BY customeremail), customername, customeremail
+FROM (SELECT DISTINCT customername, customeremail FROM before_customers.ticket) holders;
+
+INSERT INTO ticket(ticketID, gigID, pricetype, cost, customerID)
+SELECT t.ticketID, t.gigID, t.pricetype, t.cost, c.customerID
+FROM before_customers.ticket t
+JOIN customer c ON c.customeremail = t.customeremail
+ORDER BY t.ticketID;
+
+--last_email was the last address sent to in email order. Customers are numbered in that order, so the last
+--customer at or before it is where the outbox has got to.
+INSERT INTO cancellation_outbox(outboxID, gigID, created, status, last_customer, sent, attempts, next_attempt, last_error)
+SELECT o.outboxID, o.gigID, o.created, o.status,
+    (SELECT MAX(c.customerID) FROM customer c WHERE c.customeremail <= o.last_email),
+    o.sent, o.attempts, o.next_attempt, o.last_error
+FROM before_customers.cancellation_outbox o;
+
+SET LOCAL session_replication_role = origin;
+
+--The serial columns carry on after the copied IDs
+SELECT setval(pg_get_serial_sequence('venue', 'venueid'), COALESCE(MAX(venueID), 0) + 1, false) FROM venue;
+SELECT setval(pg_get_serial_sequence('act', 'actid'), COALESCE(MAX(actID), 0) + 1, false) FROM act;
+SELECT setval(pg_get_serial_sequence('gig', 'gigid'), COALESCE(MAX(gigID), 0) + 1, false) FROM gig;
+SELECT setval(pg_get_serial_sequence('customer', 'customerid'), COALESCE(MAX(customerID), 0) + 1, false) FROM customer;
+SELECT setval(pg_get_serial_sequence('ticket', 'ticketid'), COALESCE(MAX(ticketID), 0) + 1, false) FROM ticket;
+SELECT setval(pg_get_serial_sequence('cancellation_outbox', 'outboxid'), COALESCE(MAX(outboxID), 0) + 1, false) FROM cancellation_outbox;
+
+SELECT refresh_sales_aggregates();
+
+COMMIT;
+
+ANALYZE;
+
+/*
+Emails used with more than one customer name, if the migration stopped because of them:
+
+SELECT customeremail, array_agg(DISTINCT customername) AS names, COUNT(*) AS tickets
+FROM before_customers.ticket
+GROUP BY customeremail
+HAVING COUNT(DISTINCT customername) > 1
+ORDER BY customeremail;
+*/
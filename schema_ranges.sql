@@ -0,0 +1,116 @@
+/*
+Range-based scheduling mode.
+Run this after schema.sql, on an empty database or on one that already holds gigs (it doubles as the migration).
+
+Rules 1, 2, 5 and 6 are normally checked by triggers that scan act_gig again for every inserted row
+(and Rule 6 loops over every act at the venue). Here the performance and gig windows are stored as
+tsrange columns instead and the rules become GiST exclusion constraints, so each check is an index probe
+and task2 stays logarithmic however much history act_gig holds.
+
+The padding rules are handled by widening the stored windows by half the gap on each side:
+- Rule 5 (60 minutes to travel between gigs): travel_window is the performance +-30 minutes, two of them overlap
+  exactly when the performances are less than 60 minutes apart. This also covers Rule 2.
+- Rule 6 (180 minutes between gigs at a venue): venue_window is the gig +-90 minutes.
+  Unlike the trigger, this allows a gap of exactly 180 minutes. The trigger refuses a new gig that starts exactly
+  180 minutes after another one ends (it tests <=), but accepts a new gig that ends exactly 180 minutes before
+  another one starts. An exclusion constraint can't tell which gig is the new one, so range mode follows the rule
+  as worded ("at least 180 minutes apart") both ways. That exact gap is the only place the two modes disagree.
+
+If existing data already breaks one of these rules, adding the constraint fails and the whole migration is
+rolled back. The query at the bottom of this file lists the offending rows.
+
+The exclusion constraints are named rule_<n>_..., so the violation message still says which rule was broken.
+*/
+
+BEGIN;
+
+CREATE EXTENSION IF NOT EXISTS btree_gist;
+
+--Performance windows, kept up to date by Postgres itself
+ALTER TABLE act_gig ADD COLUMN slot TSRANGE
+    GENERATED ALWAYS AS (tsrange(ontime, ontime + duration * interval '1 minute')) STORED;
+
+ALTER TABLE act_gig ADD COLUMN travel_window TSRANGE
+    GENERATED ALWAYS AS (tsrange(ontime - interval '30 minutes', ontime + duration * interval '1 minute' + interval '30 minutes')) STORED;
+
+--The end of a gig is the end of its last act, maintained by the act_gig trigger below
+ALTER TABLE gig ADD COLUMN gigend TIMESTAMP;
+
+ALTER TABLE gig ADD COLUMN venue_window TSRANGE
+    GENERATED ALWAYS AS (tsrange(gigdatetime - interval '90 minutes', COALESCE(gigend, gigdatetime) + interval '90 minutes')) STORED;
+
+CREATE OR REPLACE FUNCTION update_gig_end()
+RETURNS TRIGGER AS $$
+DECLARE
+    gig_id INTEGER;
+BEGIN
+    -- The gig is being archived along with its line up
+    IF archiving_in_progress() THEN
+        RETURN NULL;
+    END IF;
+    FOR gig_id IN
+        SELECT NEW.gigID WHERE TG_OP != 'DELETE'
+        UNION
+        SELECT OLD.gigID WHERE TG_OP != 'INSERT'
+    LOOP
+        UPDATE gig SET gigend = (
+            SELECT MAX(ontime + duration * interval '1 minute') FROM act_gig WHERE act_gig.gigID = gig_id
+        )
+        WHERE gig.gigID = gig_id;
+    END LOOP;
+    RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER gig_end
+AFTER INSERT OR UPDATE OF ontime, duration, gigID OR DELETE ON act_gig
+FOR EACH ROW EXECUTE FUNCTION update_gig_end();
+
+--Backfill for existing gigs
+UPDATE gig SET gigend = ends.gigend
+FROM (
+    SELECT gigID, MAX(ontime + duration * interval '1 minute') AS gigend FROM act_gig GROUP BY gigID
+) ends
+WHERE gig.gigID = ends.gigID;
+
+--The triggers these constraints replace
+DROP TRIGGER IF EXISTS overlapping ON act_gig;
+DROP TRIGGER IF EXISTS one_gig_at_a_time ON act_gig;
+DROP TRIGGER IF EXISTS sixty_mins_travel ON act_gig;
+DROP TRIGGER IF EXISTS no_gig_overlaps ON gig;
+
+--RULE 1: acts in the same gig can't overlap (the same act overlapping itself is Rule 4's job)
+--Deferrable so that cancel_act_in_gig can move the whole line up in one statement
+ALTER TABLE act_gig ADD CONSTRAINT rule_1_overlapping_act
+    EXCLUDE USING gist (gigID WITH =, actID WITH <>, slot WITH &&)
+    DEFERRABLE INITIALLY IMMEDIATE;
+
+--RULES 2 and 5: an act needs 60 minutes between performances at different gigs
+ALTER TABLE act_gig ADD CONSTRAINT rule_5_travel_time
+    EXCLUDE USING gist (actID WITH =, gigID WITH <>, travel_window WITH &&);
+
+--RULE 6: gigs at the same venue need at least 180 minutes between them, cancelled gigs don't count
+--(exactly 180 is allowed here, see the note at the top)
+ALTER TABLE gig ADD CONSTRAINT rule_6_venue_gap
+    EXCLUDE USING gist (venueID WITH =, venue_window WITH &&)
+    WHERE (gigstatus IS DISTINCT FROM 'Cancelled');
+
+COMMIT;
+
+/*
+If the migration fails on one of the constraints, these list the rows that clash:
+
+SELECT a.actID, a.gigID, a.ontime, b.actID, b.gigID, b.ontime
+FROM act_gig a JOIN act_gig b ON a.gigID = b.gigID AND a.actID < b.actID
+WHERE tsrange(a.ontime, a.ontime + a.duration * interval '1 minute') && tsrange(b.ontime, b.ontime + b.duration * interval '1 minute');
+
+SELECT a.actID, a.gigID, a.ontime, b.gigID, b.ontime
+FROM act_gig a JOIN act_gig b ON a.actID = b.actID AND a.gigID < b.gigID
+WHERE tsrange(a.ontime - interval '30 minutes', a.ontime + a.duration * interval '1 minute' + interval '30 minutes')
+   && tsrange(b.ontime - interval '30 minutes', b.ontime + b.duration * interval '1 minute' + interval '30 minutes');
+
+SELECT a.gigID, b.gigID, a.venueID
+FROM gig a JOIN gig b ON a.venueID = b.venueID AND a.gigID < b.gigID
+WHERE a.gigstatus IS DISTINCT FROM 'Cancelled' AND b.gigstatus IS DISTINCT FROM 'Cancelled'
+AND a.venue_window && b.venue_window;
+*/